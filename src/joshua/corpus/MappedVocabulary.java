@@ -0,0 +1,226 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only vocabulary backed by a memory-mapped file, so that loading it takes no parsing and
+ * processes on the same machine share its pages. The file contains, after a header,
+ *
+ * <ol>
+ * <li>an offsets array: word i occupies bytes [offsets[i], offsets[i+1]) of the string pool;</li>
+ * <li>a hash index: an open-addressing table (linear probing, load factor at most 1/2) holding the
+ * id of each word in the slot given by its hash, or 0 for an empty slot;</li>
+ * <li>the string pool: the UTF-8 encoded words, one after the other.</li>
+ * </ol>
+ *
+ * Ids run from 1 to size(); id 0 is the unknown word and is not stored. Words are decoded on first
+ * use and then kept.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+class MappedVocabulary {
+
+  /* "JVOC" */
+  static final int MAGIC = 0x4a564f43;
+  static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 5 * 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int size;
+  private final IntBuffer offsets;
+  private final IntBuffer index;
+  private final int mask;
+  private final ByteBuffer pool;
+
+  private final String[] words;
+
+  private MappedVocabulary(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+      throw new IOException("not a mapped vocabulary (version " + VERSION + ")");
+    size = buffer.getInt(8);
+    int index_size = buffer.getInt(12);
+    int pool_size = buffer.getInt(16);
+
+    int position = HEADER_SIZE;
+    buffer.position(position);
+    offsets = buffer.slice().asIntBuffer();
+    offsets.limit(size + 2);
+
+    position += 4 * (size + 2);
+    buffer.position(position);
+    index = buffer.slice().asIntBuffer();
+    index.limit(index_size);
+    mask = index_size - 1;
+
+    position += 4 * index_size;
+    buffer.position(position);
+    pool = buffer.slice();
+    pool.limit(pool_size);
+
+    words = new String[size + 1];
+  }
+
+  /**
+   * Maps the vocabulary in the given file, which must have been written by write().
+   */
+  static MappedVocabulary open(String file_name) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(file_name, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      return new MappedVocabulary(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      // the mapping stays valid after the file is closed
+      file.close();
+    }
+  }
+
+  /**
+   * Returns true if the file starts with the mapped vocabulary header.
+   */
+  static boolean isMapped(String file_name) throws IOException {
+    File file = new File(file_name);
+    if (file.length() < HEADER_SIZE) return false;
+    DataInputStream stream = new DataInputStream(new FileInputStream(file));
+    try {
+      return stream.readInt() == MAGIC;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Writes the words words[1 .. count - 1] (words[0], the unknown word, is skipped) in the mapped
+   * format, so that the word words[i] gets id i.
+   */
+  static void write(String file_name, String[] words, int count) throws IOException {
+    int size = count - 1;
+
+    byte[][] encoded = new byte[count][];
+    int[] offsets = new int[size + 2];
+    for (int i = 1; i <= size; i++) {
+      encoded[i] = words[i].getBytes(UTF8);
+      offsets[i + 1] = offsets[i] + encoded[i].length;
+    }
+
+    int index_size = 2;
+    while (index_size < 2 * size)
+      index_size <<= 1;
+    int[] index = new int[index_size];
+    for (int i = 1; i <= size; i++) {
+      int slot = hash(words[i]) & (index_size - 1);
+      while (index[slot] != 0)
+        slot = (slot + 1) & (index_size - 1);
+      index[slot] = i;
+    }
+
+    DataOutputStream stream =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file_name)));
+    stream.writeInt(MAGIC);
+    stream.writeInt(VERSION);
+    stream.writeInt(size);
+    stream.writeInt(index_size);
+    stream.writeInt(offsets[size + 1]);
+    for (int offset : offsets)
+      stream.writeInt(offset);
+    for (int slot : index)
+      stream.writeInt(slot);
+    for (int i = 1; i <= size; i++)
+      stream.write(encoded[i]);
+    stream.close();
+  }
+
+  /** The number of words, not counting the unknown word. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the (unsigned) id of the word, or 0 if it is not in the vocabulary.
+   */
+  int id(String word) {
+    for (int slot = hash(word) & mask;; slot = (slot + 1) & mask) {
+      int id = index.get(slot);
+      if (id == 0 || matches(id, word)) return id;
+    }
+  }
+
+  String word(int id) {
+    String word = words[id];
+    if (word == null) {
+      // Benign race: two threads may both decode the word, but they store equal strings.
+      int start = offsets.get(id);
+      byte[] bytes = new byte[offsets.get(id + 1) - start];
+      for (int i = 0; i < bytes.length; i++)
+        bytes[i] = pool.get(start + i);
+      word = new String(bytes, UTF8);
+      words[id] = word;
+    }
+    return word;
+  }
+
+  /*
+   * Compares the word against the pool without decoding it. ASCII words are compared character by
+   * character; anything else is encoded first.
+   */
+  private boolean matches(int id, String word) {
+    String decoded = words[id];
+    if (decoded != null) return decoded.equals(word);
+
+    int start = offsets.get(id);
+    int length = offsets.get(id + 1) - start;
+    if (length < word.length()) return false;
+    if (length == word.length()) {
+      int i = 0;
+      while (i < length) {
+        char c = word.charAt(i);
+        if (c >= 0x80 || pool.get(start + i) != (byte) c) break;
+        i++;
+      }
+      if (i == length) return true;
+      if (word.charAt(i) < 0x80) return false;
+    }
+    byte[] bytes = word.getBytes(UTF8);
+    if (bytes.length != length) return false;
+    for (int i = 0; i < length; i++)
+      if (pool.get(start + i) != bytes[i]) return false;
+    return true;
+  }
+
+  /* String.hashCode() is fixed by the language specification, so it is stable across JVMs. */
+  private static int hash(String word) {
+    int h = word.hashCode();
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+}
@@ -16,18 +16,17 @@
 package joshua.corpus;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
 import joshua.decoder.ff.lm.NGramLanguageModel;
@@ -36,7 +35,12 @@ import joshua.util.MurmurHash;
 
 /**
  * Static singular vocabulary class. Supports vocabulary freezing and (de-)serialization into a
- * vocabulary file.
+ * vocabulary file. Vocabulary files are written in the memory-mapped format of MappedVocabulary;
+ * the older format, a list of (id, word) pairs, can still be read.
+ * 
+ * Lookups of known words and ids take no locks: words are found in an open-addressing hash table
+ * that is only ever replaced as a whole, and ids index into an append-only array. Adding a word
+ * synchronizes on a lock, which also protects the language model registrations.
  * 
  * @author Juri Ganitkevitch
  */
@@ -47,9 +51,21 @@ public class Vocabulary {
 
   private static ArrayList<NGramLanguageModel> lms;
 
-  private static TreeMap<Long, Integer> hashToId;
-  private static ArrayList<String> idToString;
-  private static TreeMap<Long, String> hashToString;
+  /* Maps words to their (signed) ids. */
+  private static volatile WordTable wordToId;
+
+  /*
+   * Maps (absolute) ids to words. Only the first idCount entries are valid; a word is written here
+   * before idCount is incremented, and the array is replaced by a larger copy when it fills up.
+   */
+  private static volatile String[] idToString;
+  private static volatile int idCount;
+
+  /*
+   * The words read from a mapped vocabulary file, with ids 1 .. mapped.size(), or null. Their
+   * entries in wordToId and idToString are left empty.
+   */
+  private static volatile MappedVocabulary mapped;
 
   private static final Integer lock = new Integer(0);
 
@@ -73,8 +89,8 @@ public class Vocabulary {
       lms.add(lm);
       // Notify it of all the existing words.
       boolean collision = false;
-      for (int i = idToString.size() - 1; i > 0; i--)
-        collision = collision || lm.registerWord(idToString.get(i), i);
+      for (int i = idCount - 1; i > 0; i--)
+        collision = collision || lm.registerWord(word(i), i);
       return collision;
     }
   }
@@ -89,6 +105,24 @@ public class Vocabulary {
    */
   public static boolean read(String file_name) throws IOException {
     synchronized (lock) {
+      if (MappedVocabulary.isMapped(file_name)) {
+        MappedVocabulary vocab = MappedVocabulary.open(file_name);
+        logger.info("Mapping vocabulary: " + vocab.size() + " tokens.");
+        clear();
+        idToString = new String[vocab.size() + 1024];
+        idToString[UNKNOWN_ID] = UNKNOWN_WORD;
+        mapped = vocab;
+        idCount = vocab.size() + 1;
+
+        // Language models keep their own id mappings, so each one must be told about every word.
+        // This decodes (and keeps) every mapped word: with language models registered, loading
+        // still costs O(V), as reading the old format did. Only loads without them are O(1).
+        for (NGramLanguageModel lm : lms)
+          for (int i = 1; i < idCount; i++)
+            lm.registerWord(word(i), i);
+        return true;
+      }
+
       File vocab_file = new File(file_name);
       DataInputStream vocab_stream =
           new DataInputStream(new BufferedInputStream(new FileInputStream(vocab_file)));
@@ -104,83 +138,109 @@ public class Vocabulary {
         }
       }
       vocab_stream.close();
-      return (size + 1 == idToString.size());
+      return (size + 1 == idCount);
     }
   }
 
   public static void write(String file_name) throws IOException {
     synchronized (lock) {
-      File vocab_file = new File(file_name);
-      DataOutputStream vocab_stream =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
-      vocab_stream.writeInt(idToString.size() - 1);
-      logger.info("Writing vocabulary: " + (idToString.size() - 1) + " tokens.");
-      for (int i = 1; i < idToString.size(); i++) {
-        vocab_stream.writeInt(i);
-        vocab_stream.writeUTF(idToString.get(i));
-      }
-      vocab_stream.close();
+      logger.info("Writing vocabulary: " + (idCount - 1) + " tokens.");
+      String[] words = new String[idCount];
+      for (int i = 1; i < idCount; i++)
+        words[i] = word(i);
+      MappedVocabulary.write(file_name, words, idCount);
     }
   }
 
+  /**
+   * Renumbers the vocabulary so that ids follow the order of the words' 64-bit MurmurHashes. The
+   * id assigned to a word then no longer depends on the order in which words were added.
+   */
   public static void freeze() {
     synchronized (lock) {
-      int current_id = 1;
-
-      TreeMap<Long, Integer> hash_to_id = new TreeMap<Long, Integer>();
-      ArrayList<String> id_to_string = new ArrayList<String>(idToString.size() + 1);
-      id_to_string.add(UNKNOWN_ID, UNKNOWN_WORD);
+      final int count = idCount;
+      final long[] hashes = new long[count];
+      Integer[] order = new Integer[count - 1];
+      for (int i = 1; i < count; i++) {
+        hashes[i] = hash(word(i));
+        order[i - 1] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Long.compare(hashes[a], hashes[b]);
+        }
+      });
 
-      Map.Entry<Long, Integer> walker = hashToId.firstEntry();
-      while (walker != null) {
-        String word = hashToString.get(walker.getKey());
-        hash_to_id.put(walker.getKey(), (walker.getValue() < 0 ? -current_id : current_id));
-        id_to_string.add(current_id, word);
+      WordTable word_to_id = new WordTable(tableCapacity(count));
+      String[] id_to_string = new String[idToString.length];
+      id_to_string[UNKNOWN_ID] = UNKNOWN_WORD;
+      int current_id = 1;
+      for (int old_id : order) {
+        String word = word(old_id);
+        word_to_id.put(word, nt(word) ? -current_id : current_id);
+        id_to_string[current_id] = word;
         current_id++;
-        walker = hashToId.higherEntry(walker.getKey());
       }
       idToString = id_to_string;
-      hashToId = hash_to_id;
+      wordToId = word_to_id;
+      mapped = null;
     }
   }
 
   public static int id(String token) {
+    // The common case: the word is already known.
+    int id = lookup(token);
+    if (id != WordTable.MISSING) return id;
+
     synchronized (lock) {
-      long hash = 0;
-      try {
-        hash = MurmurHash.hash64(token);
-      } catch (UnsupportedEncodingException e) {
-        e.printStackTrace();
-      }
-      String hash_word = hashToString.get(hash);
-      if (hash_word != null) {
-        if (!token.equals(hash_word)) {
-          logger.warning("MurmurHash for the following symbols collides: '" + hash_word + "', '"
-              + token + "'");
-        }
-        return hashToId.get(hash);
-      } else {
-        int id = idToString.size() * (nt(token) ? -1 : 1);
+      // Another thread may have added the word (or replaced the table) in the meantime.
+      id = lookup(token);
+      if (id != WordTable.MISSING) return id;
 
-        // register this (token,id) mapping with each language
-        // model, so that they can map it to their own private
-        // vocabularies
-        for (NGramLanguageModel lm : lms)
-          lm.registerWord(token, Math.abs(id));
+      WordTable table = wordToId;
+
+      int count = idCount;
+      id = count * (nt(token) ? -1 : 1);
+
+      // register this (token,id) mapping with each language
+      // model, so that they can map it to their own private
+      // vocabularies
+      for (NGramLanguageModel lm : lms)
+        lm.registerWord(token, Math.abs(id));
 
-        idToString.add(token);
-        hashToString.put(hash, token);
-        hashToId.put(hash, id);
-        return id;
+      String[] id_to_string = idToString;
+      if (count == id_to_string.length) {
+        id_to_string = Arrays.copyOf(id_to_string, 2 * count);
+        idToString = id_to_string;
       }
+      id_to_string[count] = token;
+      idCount = count + 1;
+
+      if (2 * (table.size + 1) > table.capacity()) {
+        table = table.resize(2 * table.capacity());
+        table.put(token, id);
+        wordToId = table;
+      } else {
+        table.put(token, id);
+      }
+      return id;
     }
   }
 
-  public static boolean hasId(int id) {
-    synchronized (lock) {
-      id = Math.abs(id);
-      return (id < idToString.size());
+  /* Returns the word's id, or WordTable.MISSING if it has none yet. */
+  private static int lookup(String token) {
+    int id = wordToId.get(token);
+    if (id == WordTable.MISSING) {
+      MappedVocabulary vocab = mapped;
+      if (vocab != null && (id = vocab.id(token)) != 0) return nt(token) ? -id : id;
+      return WordTable.MISSING;
     }
+    return id;
+  }
+
+  public static boolean hasId(int id) {
+    id = Math.abs(id);
+    return (id < idCount);
   }
 
   public static int[] addAll(String sentence) {
@@ -192,13 +252,13 @@ public class Vocabulary {
   }
 
   public static String word(int id) {
-    synchronized (lock) {
-      id = Math.abs(id);
-      if (id >= idToString.size()) {
-        throw new UnknownSymbolException(id);
-      }
-      return idToString.get(id);
+    id = Math.abs(id);
+    // read the count first: every id below it is in the array we read next
+    if (id >= idCount) {
+      throw new UnknownSymbolException(id);
     }
+    String word = idToString[id];
+    return (word != null) ? word : mapped.word(id);
   }
 
   public static String getWords(int[] ids) {
@@ -237,9 +297,7 @@ public class Vocabulary {
   }
 
   public static int size() {
-    synchronized (lock) {
-      return idToString.size();
-    }
+    return idCount;
   }
 
   public static int getTargetNonterminalIndex(int id) {
@@ -247,11 +305,87 @@ public class Vocabulary {
   }
 
   private static void clear() {
-    hashToId = new TreeMap<Long, Integer>();
-    hashToString = new TreeMap<Long, String>();
-    idToString = new ArrayList<String>();
+    wordToId = new WordTable(tableCapacity(1));
+    idToString = new String[1024];
+
+    idToString[UNKNOWN_ID] = UNKNOWN_WORD;
+    idCount = 1;
+    mapped = null;
+  }
+
+  private static long hash(String word) {
+    try {
+      return MurmurHash.hash64(word);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /* The smallest power of two that holds the given number of words at a load factor of 1/2. */
+  private static int tableCapacity(int words) {
+    int capacity = 1024;
+    while (capacity < 2 * words)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  /**
+   * An open-addressing (linear probing) hash table from words to ids. Words are never removed, so
+   * readers need no locks: an id is stored before the word that keys it is published, so any
+   * reader that sees the word also sees its id. Writers must hold the vocabulary lock. Growing the
+   * table creates a new one, which is then published in place of the old.
+   */
+  private static class WordTable {
+    static final int MISSING = Integer.MIN_VALUE;
+
+    private final AtomicReferenceArray<String> words;
+    private final int[] ids;
+    private final int mask;
+    int size = 0;
+
+    WordTable(int capacity) {
+      this.words = new AtomicReferenceArray<String>(capacity);
+      this.ids = new int[capacity];
+      this.mask = capacity - 1;
+    }
+
+    int capacity() {
+      return ids.length;
+    }
+
+    int get(String word) {
+      for (int i = index(word); ; i = (i + 1) & mask) {
+        String w = words.get(i);
+        if (w == null) return MISSING;
+        if (w.equals(word)) return ids[i];
+      }
+    }
+
+    void put(String word, int id) {
+      int i = index(word);
+      while (words.get(i) != null)
+        i = (i + 1) & mask;
+      ids[i] = id;
+      words.set(i, word);
+      size++;
+    }
+
+    WordTable resize(int capacity) {
+      WordTable table = new WordTable(capacity);
+      for (int i = 0; i < ids.length; i++) {
+        String w = words.get(i);
+        if (w != null) table.put(w, ids[i]);
+      }
+      return table;
+    }
 
-    idToString.add(UNKNOWN_ID, UNKNOWN_WORD);
+    private int index(String word) {
+      int h = word.hashCode();
+      h ^= (h >>> 16);
+      h *= 0x85ebca6b;
+      h ^= (h >>> 13);
+      return h & mask;
+    }
   }
 
   /**
@@ -299,6 +433,22 @@ public class Vocabulary {
   }
 
   public static Iterator<String> wordIterator() {
-    return idToString.iterator();
+    final int count = idCount;
+    return new Iterator<String>() {
+      private int id = 0;
+
+      public boolean hasNext() {
+        return id < count;
+      }
+
+      public String next() {
+        if (id >= count) throw new NoSuchElementException();
+        return word(id++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
   }
 }
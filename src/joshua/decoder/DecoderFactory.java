@@ -63,9 +63,18 @@ public class DecoderFactory {
    * accumulated and output sequentially.
    */
   public void decodeTestSet(String testFile, String nbestFile, String oracleFile) {
+    decodeTestSet(new InputHandler(testFile, oracleFile));
+  }
+
+  /**
+   * Decodes a set of sentences like decodeTestSet(String, String, String), but hands the
+   * translations to the handler, in input order, instead of printing them.
+   */
+  public void decodeTestSet(String testFile, TranslationHandler handler) {
+    decodeTestSet(new InputHandler(testFile, null, handler));
+  }
 
-    // create the input manager
-    InputHandler inputHandler = new InputHandler(testFile, oracleFile);
+  private void decodeTestSet(InputHandler inputHandler) {
     if (JoshuaConfiguration.parse)
       this.decoderThreads = new ParserThread[JoshuaConfiguration.num_parallel_decoders];
     else
@@ -106,12 +115,30 @@ public class DecoderFactory {
       }
     }
 
+    // wait for the last translations to be written
+    inputHandler.finish();
+
     // if (JoshuaConfiguration.save_disk_hg) {
     // pdecoder.hypergraphSerializer.writeRulesNonParallel(
     // nbestFile + ".hg.rules");
 
   }
 
+  /**
+   * Runs the decoder in server mode, reusing a fixed pool of decoding contexts for every sentence.
+   * If a server port is configured, this listens on that port and never returns; otherwise it
+   * translates standard input to standard output until the input is exhausted.
+   */
+  public void serve() throws IOException {
+    DecoderServer server =
+        new DecoderServer(this.grammarFactories, this.featureFunctions, this.stateComputers);
+
+    if (JoshuaConfiguration.server_port > 0)
+      server.listen(JoshuaConfiguration.server_port);
+    else
+      server.serve(System.in, System.out);
+  }
+
   /**
    * Decode a single sentence and return its hypergraph.
    **/
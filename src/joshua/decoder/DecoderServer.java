@@ -0,0 +1,257 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.state_maintenance.StateComputer;
+import joshua.decoder.ff.tm.GrammarFactory;
+import joshua.decoder.segment_file.Sentence;
+
+/**
+ * Runs the decoder as a long-lived server. Models are loaded once (by JoshuaDecoder) and shared by
+ * a fixed pool of worker threads, each of which owns a reusable DecoderThread context. Sentences
+ * arrive on one or more input streams (standard input, or connections to a local socket) and are
+ * placed on a single bounded request queue; when the queue is full, readers block until a worker
+ * frees up a slot. Translations are written back to the stream they came from, in input order. At
+ * most reorder_window sentences of a stream are in flight at once (queued, being translated, or
+ * translated and waiting for an earlier one to be written), so that a slow sentence can't make
+ * finished translations pile up behind it.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+public class DecoderServer {
+
+  private static final Logger logger = Logger.getLogger(DecoderServer.class.getName());
+
+  private static final Charset FILE_ENCODING = Charset.forName("UTF-8");
+
+  /* Shared by all input streams; bounded so that readers feel back-pressure. */
+  private final BlockingQueue<Request> requests;
+
+  private final Worker[] workers;
+
+  @SuppressWarnings("rawtypes")
+  public DecoderServer(List<GrammarFactory> grammarFactories,
+      List<FeatureFunction> featureFunctions, List<StateComputer> stateComputers)
+      throws IOException {
+
+    this.requests = new ArrayBlockingQueue<Request>(JoshuaConfiguration.server_queue_size);
+
+    this.workers = new Worker[JoshuaConfiguration.num_parallel_decoders];
+    for (int i = 0; i < workers.length; i++) {
+      DecoderThread context =
+          new DecoderThread(grammarFactories, featureFunctions, stateComputers, null);
+      workers[i] = new Worker(context);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Accepts connections on the given port of the loopback interface until the process is killed.
+   * Each connection is served on its own thread; the client sends one sentence per line and reads
+   * back the n-best list for each sentence, in order.
+   */
+  public void listen(int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+    logger.info("Listening for sentences on port " + port);
+
+    try {
+      for (;;) {
+        final Socket socket = serverSocket.accept();
+        logger.info("Accepted connection from " + socket.getRemoteSocketAddress());
+
+        Thread handler = new Thread() {
+          public void run() {
+            try {
+              serve(socket.getInputStream(), socket.getOutputStream());
+            } catch (IOException e) {
+              logger.warning("Connection from " + socket.getRemoteSocketAddress() + " failed: "
+                  + e.getMessage());
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException e) {
+                // nothing left to do
+              }
+            }
+          }
+        };
+        handler.setDaemon(true);
+        handler.start();
+      }
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  /**
+   * Translates every line of the input stream, writing the results to the output stream in input
+   * order. Returns once the input is exhausted and every translation has been written.
+   */
+  public void serve(InputStream input, OutputStream output) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, FILE_ENCODING));
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, FILE_ENCODING));
+
+    // Requests from this stream, in input order, waiting to be written out. The reader blocks while
+    // this is full, which bounds the translations held for the writer, as in InputHandler.
+    BlockingQueue<Request> pending =
+        new ArrayBlockingQueue<Request>(JoshuaConfiguration.reorder_window);
+    ResponseWriter responseWriter = new ResponseWriter(pending, writer);
+    responseWriter.start();
+
+    try {
+      int sentenceNo = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        Request request = new Request(InputHandler.parseSentence(line, sentenceNo++));
+        pending.put(request);
+        requests.put(request);
+      }
+      pending.put(Request.END_OF_INPUT);
+      responseWriter.join();
+
+    } catch (InterruptedException e) {
+      responseWriter.interrupt();
+      throw new IOException("interrupted while reading input");
+    }
+
+    if (responseWriter.failure != null) throw responseWriter.failure;
+  }
+
+
+  /**
+   * A sentence waiting to be (or being) translated, along with a slot for its output.
+   */
+  private static class Request {
+    static final Request END_OF_INPUT = new Request(null);
+
+    final Sentence sentence;
+    final CountDownLatch done = new CountDownLatch(1);
+    String output = null;
+
+    Request(Sentence sentence) {
+      this.sentence = sentence;
+    }
+
+    void complete(String output) {
+      this.output = output;
+      done.countDown();
+    }
+  }
+
+
+  /**
+   * A worker repeatedly takes requests from the shared queue and translates them with its own
+   * DecoderThread, which is created once and reused for every sentence.
+   */
+  private class Worker extends Thread {
+    private final DecoderThread context;
+
+    Worker(DecoderThread context) {
+      this.context = context;
+    }
+
+    public void run() {
+      for (;;) {
+        Request request;
+        try {
+          request = requests.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        StringWriter sw = new StringWriter();
+        try {
+          BufferedWriter out = new BufferedWriter(sw);
+          context.decode(request.sentence).print(out);
+          out.close();
+
+        } catch (Exception e) {
+          // A bad input should not bring down the server, so we log the problem and pass the
+          // source sentence through untranslated.
+          logger.log(Level.SEVERE, "Failed to translate sentence " + request.sentence.id(), e);
+          sw = new StringWriter();
+          try {
+            BufferedWriter out = new BufferedWriter(sw);
+            new Translation(request.sentence, null, context.featureFunctions()).print(out);
+            out.close();
+          } catch (IOException e2) {
+            // can't happen with a StringWriter
+          }
+
+        } catch (Throwable e) {
+          // e.g., OutOfMemoryError: there is no way to recover, so stop everything
+          e.printStackTrace();
+          System.exit(1);
+        }
+
+        request.complete(sw.toString());
+      }
+    }
+  }
+
+
+  /**
+   * Writes translations for a single input stream in the order their sentences were read, waiting
+   * on each one in turn.
+   */
+  private static class ResponseWriter extends Thread {
+    private final BlockingQueue<Request> pending;
+    private final BufferedWriter writer;
+    IOException failure = null;
+
+    ResponseWriter(BlockingQueue<Request> pending, BufferedWriter writer) {
+      this.pending = pending;
+      this.writer = writer;
+    }
+
+    public void run() {
+      try {
+        for (;;) {
+          Request request = pending.take();
+          if (request == Request.END_OF_INPUT) break;
+
+          request.done.await();
+          writer.write(request.output);
+          writer.flush();
+        }
+      } catch (InterruptedException e) {
+        // the reader gave up; stop writing
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import joshua.decoder.chart_parser.Chart;
+import joshua.decoder.chart_parser.ChartArena;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.SourceDependentFF;
 import joshua.decoder.ff.state_maintenance.StateComputer;
@@ -67,6 +68,8 @@ public class DecoderThread extends Thread {
   // final String nbestFile; // package-private for DecoderFactory
   private BufferedWriter nbestWriter; // set in decodeTestFile
   private final KBestExtractor kbestExtractor;
+  // chart storage, reused from sentence to sentence
+  private final ChartArena chartArena = new ChartArena();
   DiskHyperGraph hypergraphSerializer; // package-private for DecoderFactory
 
 
@@ -204,6 +207,24 @@ public class DecoderThread extends Thread {
   }
 
 
+  /**
+   * Translates a single sentence and wraps the result in a Translation object. This does not
+   * consult the InputHandler, so it can be used by callers (like the DecoderServer) that reuse a
+   * DecoderThread as a decoding context without starting it.
+   */
+  public Translation decode(Sentence sentence) throws IOException {
+    return new Translation(sentence, translate(sentence, null), featureFunctions);
+  }
+
+
+  /**
+   * Returns this thread's feature functions (with its own copies of any source-dependent ones).
+   */
+  List<FeatureFunction> featureFunctions() {
+    return featureFunctions;
+  }
+
+
   /**
    * Translate a sentence.
    * 
@@ -289,7 +310,7 @@ public class DecoderThread extends Thread {
     /* Seeding: the chart only sees the grammars, not the factories */
     Chart chart =
         new Chart(sentence, this.featureFunctions, this.stateComputers, grammars, false,
-            JoshuaConfiguration.goal_symbol);
+            JoshuaConfiguration.goal_symbol, chartArena);
 
     /* Parsing */
     HyperGraph hypergraph = chart.expand();
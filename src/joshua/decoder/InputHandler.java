@@ -17,16 +17,26 @@
 package joshua.decoder;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
@@ -43,6 +53,27 @@ import joshua.decoder.segment_file.Sentence;
  * The input handler provides thread-safe sequential access to the input sentences. It also manages
  * receiving and assembling decoded sentences in order (via calls to register()).
  * 
+ * Input and output are each handled by a dedicated thread, so that decoder threads never wait on
+ * I/O or on each other. The reader thread parses input lines ahead of time into a bounded queue,
+ * from which next() takes sentences. Translations passed to register() are placed in a reorder
+ * buffer of fixed size (the "reorder window"), from which the writer thread prints them in input
+ * order. A decoder thread that finishes a sentence more than a window's length ahead of the oldest
+ * unprinted sentence blocks until the writer catches up, which bounds the memory held by completed
+ * translations. If a TranslationHandler is given, the writer thread passes it the translations, in
+ * the same order, instead of printing them.
+ * 
+ * Handing translations to the writer takes no locks: each sentence has its own slot in the reorder
+ * buffer, and threads that wait (the writer for the next slot to fill, decoder threads for room in
+ * the window) park and are unparked by whoever changed what they wait on. The sentence queue is an
+ * ArrayBlockingQueue, whose lock is held only to move one sentence in or out.
+ * 
+ * Sentences are normally handed out in input order. When JoshuaConfiguration.sort_window is
+ * greater than one, the reader instead collects blocks of that many sentences and hands each block
+ * out longest sentence first, so that a long sentence near the end of a block doesn't leave one
+ * thread working after the others have run out of input. Every sentence of a block is handed out
+ * before any sentence of the next, and the block is no larger than the reorder window, so a thread
+ * waiting for room in the window is always waiting on a sentence that some other thread holds.
+ * 
  * Ideally, InputHandler objects could represent complicated constraints and restrictions on the
  * object being decoded. This would require the actual chart-parsing code to be aware of the
  * restrictions, which could be provided through this object, whose job it would be to parse those
@@ -55,23 +86,51 @@ public class InputHandler implements Iterator<Sentence> {
 
   private static final Logger logger = Logger.getLogger(InputHandler.class.getName());
 
+  /* Marks the end of the input in the sentence queue. */
+  private static final Sentence END_OF_INPUT = new Sentence("", -1);
+
   String corpusFile = null;
-  int sentenceNo = -1;
-  Sentence nextSentence = null;
   BufferedReader lineReader = null;
-
-  String nextOracleSentence = null;
   BufferedReader oracleReader = null;
 
   private static final Charset FILE_ENCODING = Charset.forName("UTF-8");
 
-  List<Sentence> issued;
-  List<Translation> completed;
-  List<String> oracles;
-  int lastCompletedId = -1;
+  /* Sentences that have been read but not yet handed out by next(). */
+  private final BlockingQueue<Sentence> sentences;
+
+  /* Oracle sentences, keyed by sentence id, for sentences that have been read. */
+  private final Map<Integer, String> oracles;
+
+  /*
+   * The reorder buffer. The translation with sequence id i lives in slot (i % window) until it is
+   * printed; only the writer thread advances nextToWrite.
+   */
+  private final AtomicReferenceArray<Translation> completed;
+  private final int window;
+
+  /* The number of sentences the reader sorts at a time (1 means input order). */
+  private final int sortWindow;
+  private volatile int nextToWrite = 0;
+
+  /* Decoder threads waiting for room in the reorder window. */
+  private final ConcurrentLinkedQueue<Thread> waiting = new ConcurrentLinkedQueue<Thread>();
+
+  /* The number of sentences in the input, set by the reader once it reaches the end. */
+  private volatile int numSentences = -1;
+
+  /* Receives the translations in place of standard output, if not null. */
+  private final TranslationHandler handler;
+
+  private final Thread readerThread;
+  private final Thread writerThread;
 
   InputHandler(String corpusFile, String oracleFile) {
+    this(corpusFile, oracleFile, null);
+  }
+
+  InputHandler(String corpusFile, String oracleFile, TranslationHandler handler) {
     this.corpusFile = corpusFile;
+    this.handler = handler;
 
     InputStream inputStream = null;
 
@@ -90,14 +149,21 @@ public class InputHandler implements Iterator<Sentence> {
 
     }
 
-    issued = new ArrayList<Sentence>();
-    completed = new ArrayList<Translation>();
+    this.sentences = new ArrayBlockingQueue<Sentence>(JoshuaConfiguration.input_queue_size);
+    this.window = JoshuaConfiguration.reorder_window;
+    this.completed = new AtomicReferenceArray<Translation>(window);
+
+    if (JoshuaConfiguration.sort_window > window) {
+      logger.warning("sort_window can't be larger than reorder_window; using " + window);
+      this.sortWindow = window;
+    } else {
+      this.sortWindow = JoshuaConfiguration.sort_window;
+    }
 
-    // load the first input item
     this.lineReader = new BufferedReader(new InputStreamReader(inputStream, FILE_ENCODING));
 
     if (oracleFile != null) {
-      oracles = new ArrayList<String>();
+      oracles = new ConcurrentHashMap<Integer, String>();
       try {
         this.oracleReader =
             new BufferedReader(
@@ -108,62 +174,156 @@ public class InputHandler implements Iterator<Sentence> {
         System.exit(1);
       }
     } else {
+      oracles = null;
       System.err.println("oracle file is null");
     }
 
-    prepareNextLine();
+    this.readerThread = new Thread() {
+      public void run() {
+        readAll();
+      }
+    };
+    this.writerThread = new Thread() {
+      public void run() {
+        writeAll();
+      }
+    };
+    readerThread.setDaemon(true);
+    readerThread.start();
+    writerThread.start();
+  }
+
+  /**
+   * Builds the appropriate input object for a line of input: a lattice (if the line is in Python
+   * Lattice Format), a parsed sentence, or a plain sentence.
+   */
+  static Sentence parseSentence(String line, int sentenceNo) {
+    if (line.replaceAll("\\s", "").startsWith("(((")) {
+      return new LatticeInput(line, sentenceNo);
+    } else if (ParsedSentence.matches(line)) {
+      return new ParsedSentence(line, sentenceNo);
+    } else {
+      return new Sentence(line, sentenceNo);
+    }
   }
 
   /**
-   * This is called only from (a) the constructor and (b) the next() function. Since the Constructor
-   * is called only once, and the call to prepareNextLine() in next() happens within a lock, this
-   * function does not require synchronization.
+   * The reader stage. Reads and parses the input (and the parallel oracle file, if any), blocking
+   * whenever the sentence queue is full.
    */
-  private void prepareNextLine() {
+  private void readAll() {
+    int sentenceNo = 0;
+    List<Sentence> block = new ArrayList<Sentence>();
     try {
-      String line = lineReader.readLine();
-      sentenceNo++;
-      if (line == null) {
-        nextSentence = null;
-      } else {
-        if (line.replaceAll("\\s", "").startsWith("(((")) {
-          nextSentence = new LatticeInput(line, sentenceNo);
-        } else if (ParsedSentence.matches(line)) {
-          nextSentence = new ParsedSentence(line, sentenceNo);
+      for (String line = lineReader.readLine(); line != null; line = lineReader.readLine()) {
+        Sentence sentence = parseSentence(line, sentenceNo++);
+
+        // oracle sentence
+        if (this.oracleReader != null) {
+          String oracle = oracleReader.readLine();
+          if (oracle != null) oracles.put(sentence.id(), oracle);
+        }
+
+        if (sortWindow > 1) {
+          block.add(sentence);
+          if (block.size() == sortWindow) putLongestFirst(block);
         } else {
-          nextSentence = new Sentence(line, sentenceNo);
+          sentences.put(sentence);
         }
+      }
+      putLongestFirst(block);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      logger.warning("input reader was interrupted");
+    }
+
+    numSentences = sentenceNo;
+    LockSupport.unpark(writerThread);
+    try {
+      sentences.put(END_OF_INPUT);
+    } catch (InterruptedException e) {
+      logger.warning("input reader was interrupted");
+    }
+  }
+
+  /*
+   * Queues the sentences of a block from longest to shortest (ties in input order), and empties it.
+   */
+  private void putLongestFirst(List<Sentence> block) throws InterruptedException {
+    // the negated length in the high bits, the position in the block in the low bits
+    long[] keys = new long[block.size()];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = ((long) -block.get(i).length() << 32) | i;
+    Arrays.sort(keys);
+
+    for (long key : keys)
+      sentences.put(block.get((int) key));
+    block.clear();
+  }
 
-        issued.add(nextSentence);
-        completed.add(null);
+  /**
+   * The writer stage. Prints translations (or hands them to the handler) in input order as they
+   * become available, and stops once every input sentence has been printed.
+   */
+  private void writeAll() {
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+    for (;;) {
+      int n = numSentences;
+      if (n != -1 && nextToWrite >= n) break;
+
+      int slot = nextToWrite % window;
+      Translation translation = completed.get(slot);
+      if (translation == null) {
+        LockSupport.park(this);
+        continue;
       }
 
-      // oracle sentence
-      if (this.oracleReader != null) {
-        oracles.add(oracleReader.readLine());
+      if (handler != null) {
+        handler.handle(translation);
+      } else {
+        try {
+          translation.print(out);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
       }
 
-    } catch (IOException e) {
-      e.printStackTrace();
+      completed.set(slot, null);
+      nextToWrite++;
+
+      // wake up any decoder threads waiting for room in the window
+      for (Thread thread : waiting)
+        LockSupport.unpark(thread);
     }
   }
 
-  public synchronized boolean hasNext() {
-    return nextSentence != null;
+  public boolean hasNext() {
+    Sentence sentence = sentences.peek();
+    if (sentence != null) return sentence != END_OF_INPUT;
+
+    // nothing buffered: more is coming unless the reader has reached the end of the input
+    return numSentences == -1;
   }
 
   /*
-   * Returns the next sentence item.
+   * Returns the next sentence item, or null once the input is exhausted. Since many threads call
+   * this concurrently, callers should check for null rather than rely on hasNext().
    */
   public Sentence next() {
-    Sentence sentence = null;
+    try {
+      Sentence sentence = sentences.take();
+      if (sentence == END_OF_INPUT) {
+        // leave the marker in place for the other decoder threads
+        sentences.put(END_OF_INPUT);
+        return null;
+      }
+      return sentence;
 
-    synchronized (this) {
-      sentence = nextSentence;
-      prepareNextLine();
+    } catch (InterruptedException e) {
+      logger.warning("interrupted while waiting for input");
+      return null;
     }
-
-    return sentence;
   }
 
   public void remove() {
@@ -172,31 +332,40 @@ public class InputHandler implements Iterator<Sentence> {
 
 
   /**
-   * Receives a sentence from a thread that has finished translating it.
+   * Receives a sentence from a thread that has finished translating it. If the sentence is too far
+   * ahead of the oldest unprinted one to fit in the reorder window, this blocks until it fits.
    */
   public void register(Translation translation) {
-    int id = translation.id();
-
-    synchronized (this) {
-      // store this one
-      completed.set(id, translation);
-
-      // if the previous sentence is the last item, then print
-      // this translation and all the subsequent ones waiting on
-      // it
-      if (lastCompletedId == id - 1) {
-
-        for (int i = id; i < completed.size() && completed.get(i) != null; i++) {
-          Translation t = completed.get(i);
-          t.print();
-          // delete it
-          completed.set(i, null);
-          // update the last completed item
-          lastCompletedId++;
-        }
-      } else {
-        logger.fine("InputManager::register(sentence " + id + ") waiting on sentence " + (id - 1));
+    int seq = translation.getSourceSentence().sequenceId();
+
+    if (seq >= nextToWrite + window) {
+      logger.fine("InputManager::register(sentence " + seq + ") waiting on sentence "
+          + nextToWrite);
+      // Enqueue before checking again: either the writer sees this thread and unparks it, or this
+      // thread sees the writer's progress.
+      Thread thread = Thread.currentThread();
+      waiting.add(thread);
+      while (seq >= nextToWrite + window) {
+        LockSupport.park(this);
+        if (Thread.interrupted())
+          logger.warning("interrupted while waiting for room in the reorder window");
       }
+      waiting.remove(thread);
+    }
+
+    completed.set(seq % window, translation);
+    LockSupport.unpark(writerThread);
+  }
+
+
+  /**
+   * Blocks until every translation has been printed. Called once all decoder threads are done.
+   */
+  public void finish() {
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      logger.warning("interrupted while waiting for output to be written");
     }
   }
 
@@ -206,7 +375,7 @@ public class InputHandler implements Iterator<Sentence> {
    * parallel oracle sentence.
    */
   public String oracleSentence(int id) {
-    if (oracles != null) return oracles.get(id);
+    if (oracles != null) return oracles.remove(id);
 
     return null;
   }
@@ -48,6 +48,8 @@ public class JoshuaConfiguration {
   public static boolean use_sent_specific_lm = false;
   public static String lm_file = null;
   public static int ngramStateID = 0; // TODO ?????????????
+  // number of n-gram probabilities each decoder thread caches per LM (0 turns the cache off)
+  public static int lm_cache_size = 0;
 
   // tm config
   public static int span_limit = 10;
@@ -59,6 +61,12 @@ public class JoshuaConfiguration {
   public static boolean use_sent_specific_tm = false;
 
   public static boolean dense_features = true;
+  // read packed grammars onto the heap instead of memory-mapping them
+  public static boolean packed_grammar_in_heap = false;
+  // the number of trie nodes each slice of a packed grammar keeps for reuse (0 to keep none)
+  public static int packed_trie_cache = 16384;
+  // the number of decoded target sides each slice of a packed grammar keeps (0 to keep none)
+  public static int packed_target_cache = 16384;
 
   public static String tm_file = null;
   public static String tm_format = null;
@@ -108,6 +116,21 @@ public class JoshuaConfiguration {
   public static String parallel_files_prefix = "/tmp/temp.parallel"; // C:\\Users\\zli\\Documents\\temp.parallel;
                                                                      // used for parallel decoding
   public static int num_parallel_decoders = 1; // number of threads should run
+  // threads (shared by all decoders) that fill the spans of a sentence's chart in parallel; with
+  // 1, each sentence is parsed by its decoder thread alone
+  public static int span_threads = 1;
+  // input sentences read ahead of the decoder threads, and translations buffered for in-order output
+  public static int input_queue_size = 100;
+  public static int reorder_window = 1000;
+  // if greater than 1, the input is read in blocks of this many sentences, and each block is
+  // decoded longest sentence first (output order is unchanged); at most reorder_window
+  public static int sort_window = 1;
+
+  // server mode: load the models once and translate sentences as they arrive, either on stdin or
+  // (if server_port > 0) on connections to a local socket
+  public static boolean server = false;
+  public static int server_port = 0;
+  public static int server_queue_size = 100;
 
   // disk hg
   public static boolean save_disk_hg = false; // if true, save three files: fnbest, fnbest.hg.items,
@@ -235,6 +258,10 @@ public class JoshuaConfiguration {
               System.exit(1);
             }
 
+          } else if (parameter.equals(normalize_key("lm_cache_size"))) {
+            lm_cache_size = Integer.parseInt(fds[1]);
+            logger.finest(String.format("lm_cache_size: %s", lm_cache_size));
+
           } else if (parameter.equals(normalize_key("lm_ceiling_cost"))) {
             lm_ceiling_cost = Double.parseDouble(fds[1]);
             logger.finest(String.format("lm_ceiling_cost: %s", lm_ceiling_cost));
@@ -257,6 +284,26 @@ public class JoshuaConfiguration {
             use_sent_specific_lm = Boolean.valueOf(fds[1]);
             logger.finest(String.format("use_sent_specific_lm: %s", use_sent_specific_lm));
 
+          } else if (parameter.equals(normalize_key("packed_grammar_in_heap"))) {
+            packed_grammar_in_heap = Boolean.valueOf(fds[1]);
+            logger.finest(String.format("packed_grammar_in_heap: %s", packed_grammar_in_heap));
+
+          } else if (parameter.equals(normalize_key("packed_trie_cache"))) {
+            packed_trie_cache = Integer.parseInt(fds[1]);
+            if (packed_trie_cache < 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number for packed_trie_cache");
+            }
+            logger.finest(String.format("packed_trie_cache: %s", packed_trie_cache));
+
+          } else if (parameter.equals(normalize_key("packed_target_cache"))) {
+            packed_target_cache = Integer.parseInt(fds[1]);
+            if (packed_target_cache < 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number for packed_target_cache");
+            }
+            logger.finest(String.format("packed_target_cache: %s", packed_target_cache));
+
           } else if (parameter.equals(normalize_key("use_sent_specific_tm"))) {
             use_sent_specific_tm = Boolean.valueOf(fds[1]);
             logger.finest(String.format("use_sent_specific_tm: %s", use_sent_specific_tm));
@@ -354,6 +401,52 @@ public class JoshuaConfiguration {
             }
             logger.finest(String.format("num_parallel_decoders: %s", num_parallel_decoders));
 
+          } else if (parameter.equals(normalize_key("span_threads"))) {
+            span_threads = Integer.parseInt(fds[1]);
+            if (span_threads <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for span_threads");
+            }
+            logger.finest(String.format("span_threads: %s", span_threads));
+
+          } else if (parameter.equals(normalize_key("input_queue_size"))) {
+            input_queue_size = Integer.parseInt(fds[1]);
+            if (input_queue_size <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for input_queue_size");
+            }
+            logger.finest(String.format("input_queue_size: %s", input_queue_size));
+
+          } else if (parameter.equals(normalize_key("reorder_window"))) {
+            reorder_window = Integer.parseInt(fds[1]);
+            if (reorder_window <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for reorder_window");
+            }
+            logger.finest(String.format("reorder_window: %s", reorder_window));
+
+          } else if (parameter.equals(normalize_key("sort_window"))) {
+            sort_window = Integer.parseInt(fds[1]);
+            if (sort_window <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for sort_window");
+            }
+            logger.finest(String.format("sort_window: %s", sort_window));
+
+          } else if (parameter.equals(normalize_key("server"))) {
+            server = Boolean.valueOf(fds[1]);
+            logger.finest(String.format("server: %s", server));
+
+          } else if (parameter.equals(normalize_key("server_port"))) {
+            server_port = Integer.parseInt(fds[1]);
+            logger.finest(String.format("server_port: %s", server_port));
+
+          } else if (parameter.equals(normalize_key("server_queue_size"))) {
+            server_queue_size = Integer.parseInt(fds[1]);
+            if (server_queue_size <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for server_queue_size");
+            }
+            logger.finest(String.format("server_queue_size: %s", server_queue_size));
+
           } else if (parameter.equals(normalize_key("save_disk_hg"))) {
             save_disk_hg = Boolean.valueOf(fds[1]);
             logger.finest(String.format("save_disk_hg: %s", save_disk_hg));
@@ -30,6 +30,7 @@ import joshua.decoder.ff.OOVFF;
 import joshua.decoder.ff.PhraseModelFF;
 import joshua.decoder.ff.SourcePathFF;
 import joshua.decoder.ff.WordPenaltyFF;
+import joshua.decoder.ff.lm.CachingLanguageModel;
 import joshua.decoder.ff.lm.LanguageModelFF;
 import joshua.decoder.ff.lm.NGramLanguageModel;
 import joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
@@ -173,6 +174,25 @@ public class JoshuaDecoder {
     this.decoderFactory.decodeTestSet(testFile, nbestFile, null);
   }
 
+  /**
+   * Decode a whole test set, handing each translation to the handler (in input order) instead of
+   * printing it. This lets a caller in the same JVM, such as MERT, take the hypotheses as objects.
+   * 
+   * @param testFile
+   * @param handler
+   */
+  public void decodeTestSet(String testFile, TranslationHandler handler) {
+    this.decoderFactory.decodeTestSet(testFile, handler);
+  }
+
+
+  /**
+   * Run as a server, translating sentences as they arrive without reloading any models.
+   */
+  public void serve() throws IOException {
+    this.decoderFactory.serve();
+  }
+
 
   /** Decode a sentence. This must be non-parallel. */
   public void decodeSentence(String testSentence, String[] nbests) {
@@ -183,6 +203,16 @@ public class JoshuaDecoder {
   public void cleanUp() {
     // TODO
     // this.languageModel.end_lm_grammar(); //end the threads
+
+    for (NGramLanguageModel lm : this.languageModels) {
+      if (lm instanceof CachingLanguageModel) {
+        CachingLanguageModel cache = (CachingLanguageModel) lm;
+        long queries = cache.getHits() + cache.getMisses();
+        logger.info(String.format("LM cache: %d hits, %d misses (%.1f%% hit rate)",
+            cache.getHits(), cache.getMisses(), queries == 0 ? 0.0 : 100.0 * cache.getHits()
+                / queries));
+      }
+    }
   }
 
   public void visualizeHyperGraphForSentence(String sentence) {
@@ -346,6 +376,14 @@ public class JoshuaDecoder {
             right_equiv_state));
       }
     }
+
+    if (JoshuaConfiguration.lm_cache_size > 0) {
+      logger.info(String.format("Caching up to %d n-gram probabilities per thread for each LM",
+          JoshuaConfiguration.lm_cache_size));
+      for (int i = 0; i < this.languageModels.size(); i++)
+        this.languageModels.set(i, new CachingLanguageModel(this.languageModels.get(i),
+            JoshuaConfiguration.lm_cache_size));
+    }
   }
 
   private void initializeGlueGrammar() throws IOException {
@@ -566,7 +604,10 @@ public class JoshuaDecoder {
         .getRuntime().freeMemory()) / 1000000.0)));
 
     /* Step-2: Decoding */
-    decoder.decodeTestSet(testFile, nbestFile, oracleFile);
+    if (JoshuaConfiguration.server)
+      decoder.serve();
+    else
+      decoder.decodeTestSet(testFile, nbestFile, oracleFile);
 
     logger.info("Decoding completed.");
     logger.info(String.format("Memory used %.1f MB", ((Runtime.getRuntime().totalMemory() - Runtime
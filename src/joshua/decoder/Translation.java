@@ -18,6 +18,7 @@ package joshua.decoder;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
@@ -26,6 +27,7 @@ import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.SourceDependentFF;
 import joshua.decoder.hypergraph.HyperGraph;
 import joshua.decoder.hypergraph.KBestExtractor;
+import joshua.decoder.hypergraph.KBestExtractor.Hypothesis;
 import joshua.decoder.segment_file.Sentence;
 
 /**
@@ -106,31 +108,59 @@ public class Translation {
    * Prints the k-best list to standard output.
    */
   public void print() {
+    try {
+      print(new BufferedWriter(new OutputStreamWriter(System.out)));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /*
+   * Writes the k-best list to the given writer, which is flushed but not closed.
+   */
+  public void print(BufferedWriter out) throws IOException {
     if (hypergraph != null) {
       KBestExtractor kBestExtractor =
           new KBestExtractor(JoshuaConfiguration.use_unique_nbest,
               JoshuaConfiguration.use_tree_nbest, JoshuaConfiguration.include_align_index,
               JoshuaConfiguration.add_combined_cost, false, true);
 
-      try {
-        kBestExtractor.lazyKBestExtractOnHG(hypergraph, this.featureFunctions,
-            JoshuaConfiguration.topN, id(), (BufferedWriter) null);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      kBestExtractor.lazyKBestExtractOnHG(hypergraph, this.featureFunctions,
+          JoshuaConfiguration.topN, id(), out);
 
     } else {
 
-      System.out.print(id() + " ||| " + getSourceSentence().sentence() + " ||| ");
+      out.write(id() + " ||| " + getSourceSentence().sentence() + " ||| ");
 
       for (FeatureFunction ff : featureFunctions)
-        System.out.print(" 0");
-
-      System.out.println(" ||| 0.0");
+        out.write(" 0");
 
+      out.write(" ||| 0.0");
+      out.newLine();
     }
 
-    System.out.flush();
+    out.flush();
+  }
+
+  /*
+   * Returns the top n hypotheses, with their feature values, as objects rather than as the lines of
+   * an n-best list. Without a hypergraph, the source sentence is the only hypothesis, and every
+   * feature value is 0 (as in print()).
+   */
+  public List<Hypothesis> kBest(int topN) {
+    List<Hypothesis> hypotheses = new ArrayList<Hypothesis>();
+    if (hypergraph != null) {
+      KBestExtractor kBestExtractor =
+          new KBestExtractor(JoshuaConfiguration.use_unique_nbest,
+              JoshuaConfiguration.use_tree_nbest, JoshuaConfiguration.include_align_index,
+              JoshuaConfiguration.add_combined_cost, false, true);
+
+      kBestExtractor.lazyKBestExtractOnHG(hypergraph, this.featureFunctions, topN, hypotheses);
+    } else {
+      hypotheses.add(new Hypothesis(getSourceSentence().sentence(),
+          new double[featureFunctions.size()]));
+    }
+    return hypotheses;
   }
 
   public String toString() {
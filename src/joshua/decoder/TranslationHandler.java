@@ -0,0 +1,28 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder;
+
+/**
+ * Receives the translations of a test set in place of the printed n-best lists, so that a program
+ * running the decoder in the same JVM (such as MERT) can use the hypotheses directly. Translations
+ * are handed over one at a time, in input order, by a single thread.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+public interface TranslationHandler {
+
+  void handle(Translation translation);
+}
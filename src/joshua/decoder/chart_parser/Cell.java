@@ -21,7 +21,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,7 +53,7 @@ class Cell {
   private int constraintSymbolId;
 
   // to maintain uniqueness of nodes
-  private HashMap<String, HGNode> nodesSigTbl = new HashMap<String, HGNode>();
+  private NodeTable nodesSigTbl = new NodeTable();
 
   // signature by lhs
   private Map<Integer, SuperNode> superNodesTbl = new HashMap<Integer, SuperNode>();
@@ -181,7 +180,7 @@ class Cell {
       SourcePath srcPath, boolean noPrune) {
     HGNode res = null;
 
-    TreeMap<Integer, DPState> dpStates = result.getDPStates();
+    DPState[] dpStates = result.getDPStates();
     double expectedTotalLogP = result.getExpectedTotalLogP(); // including outside estimation
     double transitionLogP = result.getTransitionTotalLogP();
     double finalizedTotalLogP = result.getFinalizedTotalLogP();
@@ -190,7 +189,7 @@ class Cell {
 
     if (noPrune == false && beamPruner != null
         && beamPruner.relativeThresholdPrune(expectedTotalLogP)) {// the hyperedge should be pruned
-      this.chart.nPreprunedEdges++;
+      this.chart.nPreprunedEdges.incrementAndGet();
       res = null;
     } else {
       HyperEdge dt = new HyperEdge(rule, finalizedTotalLogP, transitionLogP, ants, srcPath);
@@ -200,9 +199,9 @@ class Cell {
        * each node has a list of hyperedges, need to check whether the node is already exist, if
        * yes, just add the hyperedges, this may change the best logP of the node
        * */
-      HGNode oldNode = this.nodesSigTbl.get(res.getSignature());
+      HGNode oldNode = this.nodesSigTbl.get(res);
       if (null != oldNode) { // have an item with same states, combine items
-        this.chart.nMerged++;
+        this.chart.nMerged.incrementAndGet();
 
         /**
          * the position of oldItem in this.heapItems may change, basically, we should remove the
@@ -224,7 +223,7 @@ class Cell {
         }
 
       } else { // first time item
-        this.chart.nAdded++; // however, this item may not be used in the future due to pruning in
+        this.chart.nAdded.incrementAndGet(); // however, this item may not be used in the future due to pruning in
                              // the hyper-graph
         addNewNode(res, noPrune);
       }
@@ -256,16 +255,16 @@ class Cell {
    * is worse than the new hyperedge's logP
    * */
   private void addNewNode(HGNode node, boolean noPrune) {
-    this.nodesSigTbl.put(node.getSignature(), node); // add/replace the item
+    this.nodesSigTbl.put(node); // add/replace the item
     this.sortedNodes = null; // reset the list
 
 
     if (beamPruner != null) {
       if (noPrune == false) {
         List<HGNode> prunedNodes = beamPruner.addOneObjInHeapWithPrune(node);
-        this.chart.nPrunedItems += prunedNodes.size();
+        this.chart.nPrunedItems.addAndGet(prunedNodes.size());
         for (HGNode prunedNode : prunedNodes)
-          nodesSigTbl.remove(prunedNode.getSignature());
+          nodesSigTbl.remove(prunedNode);
       } else {
         beamPruner.addOneObjInHeapWithoutPrune(node);
       }
@@ -296,10 +295,7 @@ class Cell {
     if (null == this.sortedNodes) {
       // == get sortedNodes
       // HGNode[] tCollection =(HGNode[])((Collection<HGNode>)this.nodesSigTbl.values()).toArray();
-      HGNode[] nodesArray = new HGNode[this.nodesSigTbl.size()];
-      int i = 0;
-      for (HGNode node : this.nodesSigTbl.values())
-        nodesArray[i++] = node;
+      HGNode[] nodesArray = this.nodesSigTbl.toArray();
 
       /**
        * sort the node in an decreasing-LogP order
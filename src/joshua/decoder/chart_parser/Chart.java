@@ -20,6 +20,11 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -70,15 +75,15 @@ public class Chart {
    * how many items have been pruned away because its cost is greater than the cutoff in calling
    * chart.add_deduction_in_chart()
    */
-  int nPreprunedEdges = 0;
+  final AtomicInteger nPreprunedEdges = new AtomicInteger();
 
-  int nPreprunedFuzz1 = 0;
-  int nPreprunedFuzz2 = 0;
-  int nPrunedItems = 0;
-  int nMerged = 0;
-  int nAdded = 0;
-  int nDotitemAdded = 0; // note: there is no pruning in dot-item
-  int nCalledComputeNode = 0;
+  // these are updated from several threads when spans are filled in parallel
+  final AtomicInteger nPreprunedFuzz1 = new AtomicInteger();
+  final AtomicInteger nPreprunedFuzz2 = new AtomicInteger();
+  final AtomicInteger nPrunedItems = new AtomicInteger();
+  final AtomicInteger nMerged = new AtomicInteger();
+  final AtomicInteger nAdded = new AtomicInteger();
+  final AtomicInteger nDotitemAdded = new AtomicInteger(); // note: there is no pruning in dot-item
 
   int segmentID;
 
@@ -104,6 +109,17 @@ public class Chart {
   // Static fields
   // ===============================================================
 
+  // cube pruning scratch space, reused from span to span by each thread
+  private static final ThreadLocal<CubePruneScratch> scratch =
+      new ThreadLocal<CubePruneScratch>() {
+        protected CubePruneScratch initialValue() {
+          return new CubePruneScratch();
+        }
+      };
+
+  // the threads that fill spans in parallel, shared by all charts; created on first use
+  private static ForkJoinPool spanPool = null;
+
   // ===========================================================
   // Logger
   // ===========================================================
@@ -125,6 +141,17 @@ public class Chart {
   public Chart(Sentence sentence, List<FeatureFunction> featureFunctions,
       List<StateComputer> stateComputers, Grammar[] grammars, boolean useMaxLMCostForOOV,
       String goalSymbol) {
+    this(sentence, featureFunctions, stateComputers, grammars, useMaxLMCostForOOV, goalSymbol, null);
+  }
+
+  /**
+   * Builds a chart whose cell arrays come from the given arena (if it is not null), clearing
+   * whatever chart last used it.
+   */
+  @SuppressWarnings("rawtypes")
+  public Chart(Sentence sentence, List<FeatureFunction> featureFunctions,
+      List<StateComputer> stateComputers, Grammar[] grammars, boolean useMaxLMCostForOOV,
+      String goalSymbol, ChartArena arena) {
     this.inputLattice = sentence.intLattice();
     this.sourceLength = inputLattice.size() - 1;
     this.featureFunctions = featureFunctions;
@@ -134,7 +161,10 @@ public class Chart {
     if (sentence instanceof ParsedSentence)
       this.parseTree = ((ParsedSentence) sentence).syntaxTree();
 
-    this.cells = new Cell[sourceLength][sourceLength + 1];
+    if (arena != null)
+      this.cells = arena.cells(sourceLength, sourceLength + 1);
+    else
+      this.cells = new Cell[sourceLength][sourceLength + 1];
 
     this.segmentID = sentence.id();
     this.goalSymbolID = Vocabulary.id(goalSymbol);
@@ -143,8 +173,12 @@ public class Chart {
 
     // each grammar will have a dot chart
     this.dotcharts = new DotChart[this.grammars.length];
-    for (int i = 0; i < this.grammars.length; i++)
-      this.dotcharts[i] = new DotChart(this.inputLattice, this.grammars[i], this);
+    for (int i = 0; i < this.grammars.length; i++) {
+      int size = this.inputLattice.size();
+      this.dotcharts[i] =
+          new DotChart(this.inputLattice, this.grammars[i], this,
+              (arena != null) ? arena.dotCells(i, size, size + 1) : null);
+    }
 
     /*
      * The CubePruneCombiner defined here is fairly complicated. It is designed to work both at the
@@ -278,8 +312,13 @@ public class Chart {
       /* STEP 1: create the heap, and seed it with all of the candidate states */
       PriorityQueue<CubePruneState> candidates = new PriorityQueue<CubePruneState>();
 
-      // this records states we have already visited
-      HashSet<CubePruneState> visitedStates = new HashSet<CubePruneState>();
+      // this records states we have already visited, by dot node index and ranks
+      CubePruneScratch scratch = Chart.scratch.get();
+      VisitedStates visitedStates = scratch.visitedStates;
+      List<List<Rule>> spanRules = scratch.spanRules;
+      visitedStates.clear();
+      spanRules.clear();
+      int dotIndex = 0;
 
       // seed it with the beginning states
       // for each applicable grammar
@@ -328,10 +367,11 @@ public class Chart {
             for (int r = 0; r < ranks.length; r++)
               ranks[r] = 1;
 
-            CubePruneState bestState = new CubePruneState(result, ranks, bestRule, currentAntNodes);
-            bestState.setDotNode(dotNode);
-            candidates.add(bestState);
-            visitedStates.add(bestState);
+            candidates.add(scratch.newState(result, ranks, bestRule, currentAntNodes, dotNode,
+                dotIndex));
+            spanRules.add(sortedAndFilteredRules);
+            visitedStates.add(dotIndex, ranks);
+            dotIndex++;
           }
         }
       }
@@ -343,9 +383,7 @@ public class Chart {
         Rule currentRule = state.rule;
         SourcePath sourcePath = dotNode.getSourcePath();
         List<SuperNode> superNodes = dotNode.getAntSuperNodes();
-        List<Rule> rules =
-            manualConstraintsHandler.filterRules(i, j, dotNode.getApplicableRules()
-                .getSortedRules());
+        List<Rule> rules = spanRules.get(state.dotIndex);
 
         List<HGNode> currentAntNodes = new ArrayList<HGNode>(state.antNodes);
 
@@ -354,54 +392,52 @@ public class Chart {
             sourcePath, true);
 
         // expand the hypothesis
-        for (int k = 0; k < state.ranks.length; k++) {
-
-          // get new_ranks, which is the same as the old
-          // ranks, with the current index extended
-          int[] newRanks = new int[state.ranks.length];
-          for (int d = 0; d < state.ranks.length; d++)
-            newRanks[d] = state.ranks[d];
-
-          newRanks[k] = state.ranks[k] + 1;
+        int[] ranks = state.ranks;
+        for (int k = 0; k < ranks.length; k++) {
 
           // can't extend
-          if ((k == 0 && newRanks[k] > rules.size())
-              || (k != 0 && newRanks[k] > superNodes.get(k - 1).nodes.size())) continue;
+          if ((k == 0 && ranks[k] >= rules.size())
+              || (k != 0 && ranks[k] >= superNodes.get(k - 1).nodes.size())) continue;
+
+          // Check whether we have explored the neighbor (the same ranks, with the current index
+          // extended) before, which is much cheaper than scoring it first. Nothing has been slid
+          // yet, so skipping leaves the rule and antecedents of this pop intact for the neighbors
+          // after it. (The old loop slid first and skipped the recovery, so those neighbors were
+          // built from the wrong rule or antecedents; fixing that changes which hypotheses survive
+          // the beam, and the model score of the 1-best can move either way.)
+          ranks[k]++;
+          boolean unvisited = visitedStates.add(state.dotIndex, ranks);
+          ranks[k]--;
+          if (!unvisited) continue;
 
           // k = 0 means we extend the rule being used
           // k > 0 means we extend one of the nodes
-
-          Rule oldRule = null;
-          HGNode oldItem = null;
+          Rule nextRule = currentRule;
           if (k == 0) { // slide rule
-            oldRule = currentRule;
-            currentRule = rules.get(newRanks[k] - 1);
+            nextRule = rules.get(ranks[k]);
           } else { // slide ant
-            oldItem = currentAntNodes.get(k - 1); // conside k == 0 is rule
-            currentAntNodes.set(k - 1, superNodes.get(k - 1).nodes.get(newRanks[k] - 1));
+            currentAntNodes.set(k - 1, superNodes.get(k - 1).nodes.get(ranks[k]));
           }
 
+          ComputeNodeResult result =
+              new ComputeNodeResult(featureFunctions, nextRule, currentAntNodes, i, j, sourcePath,
+                  stateComputers, this.segmentID);
           CubePruneState nextState =
-              new CubePruneState(new ComputeNodeResult(featureFunctions, currentRule,
-                  currentAntNodes, i, j, sourcePath, stateComputers, this.segmentID), newRanks,
-                  currentRule, currentAntNodes);
-          nextState.setDotNode(dotNode);
-
-          if (visitedStates.contains(nextState)) // explored before
-            continue;
-
-          visitedStates.add(nextState);
+              scratch.newState(result, ranks, nextRule, currentAntNodes, dotNode, state.dotIndex);
+          nextState.ranks[k]++;
           candidates.add(nextState);
 
           // recover
-          if (k == 0)
-            currentRule = oldRule;
-          else
-            currentAntNodes.set(k - 1, oldItem);
-
+          if (k != 0) currentAntNodes.set(k - 1, state.antNodes.get(k - 1));
         }
+
+        scratch.recycle(state);
       }
 
+      for (CubePruneState state : candidates)
+        scratch.recycle(state);
+      spanRules.clear();
+
     } else {
       for (int k = 0; k < this.grammars.length; k++) {
         // grammars have a maximum input span they'll apply to
@@ -434,53 +470,15 @@ public class Chart {
     logger.fine("Begin expand.");
 
     for (int width = 1; width <= sourceLength; width++) {
-      for (int i = 0; i <= sourceLength - width; i++) {
-        int j = i + width;
-        if (logger.isLoggable(Level.FINEST))
-          logger.finest(String.format("Processing span (%d, %d)", i, j));
-
-
-        // (1)=== expand the cell in dotchart
-        logger.finest("Expanding cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          /**
-           * each dotChart can act individually (without consulting other dotCharts) because it
-           * either consumes the source input or the complete nonTerminals, which are both
-           * grammar-independent
-           **/
-          this.dotcharts[k].expandDotCell(i, j);
-        }
-
-
-        // (2)=== populate COMPLETE rules into Chart: the regular CKY part
-        logger.finest("Adding complete items into chart");
-
-        completeSpan(i, j);
-
-        // (3)=== process unary rules (e.g., S->X, NP->NN), just add these items in chart, assume
-        // acyclic
-        logger.finest("Adding unary items into chart");
-        addUnaryNodes(this.grammars, i, j);
-
-
-        // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/ superIterms in
-        // chart_cell(i,j)
-        logger.finest("Initializing new dot-items that start from complete items in this cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          if (this.grammars[k].hasRuleForSpan(i, j, sourceLength)) {
-            this.dotcharts[k].startDotItems(i, j);
-          }
-        }
-
-        // (5)=== sort the nodes in the cell
-        /**
-         * Cube-pruning requires the nodes being sorted, when prunning for later/wider cell.
-         * Cuebe-pruning will see superNode, which contains a list of nodes. getSortedNodes() will
-         * make the nodes in the superNode get sorted
-         */
-        if (null != this.cells[i][j]) {
-          this.cells[i][j].getSortedNodes();
-        }
+      /*
+       * The spans of a given width only read from narrower spans, so they can be filled in any
+       * order, or in parallel.
+       */
+      if (JoshuaConfiguration.span_threads > 1 && width < sourceLength) {
+        expandInParallel(width);
+      } else {
+        for (int i = 0; i <= sourceLength - width; i++)
+          expandSpan(i, i + width);
       }
     }
 
@@ -507,6 +505,93 @@ public class Chart {
   }
 
 
+  /*
+   * Fills in the chart cell for span (i,j), whose subspans must all have been filled in.
+   */
+  private void expandSpan(int i, int j) {
+    if (logger.isLoggable(Level.FINEST))
+      logger.finest(String.format("Processing span (%d, %d)", i, j));
+
+
+    // (1)=== expand the cell in dotchart
+    logger.finest("Expanding cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      /**
+       * each dotChart can act individually (without consulting other dotCharts) because it either
+       * consumes the source input or the complete nonTerminals, which are both grammar-independent
+       **/
+      this.dotcharts[k].expandDotCell(i, j);
+    }
+
+
+    // (2)=== populate COMPLETE rules into Chart: the regular CKY part
+    logger.finest("Adding complete items into chart");
+
+    completeSpan(i, j);
+
+    // (3)=== process unary rules (e.g., S->X, NP->NN), just add these items in chart, assume
+    // acyclic
+    logger.finest("Adding unary items into chart");
+    addUnaryNodes(this.grammars, i, j);
+
+
+    // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/ superIterms in
+    // chart_cell(i,j)
+    logger.finest("Initializing new dot-items that start from complete items in this cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      if (this.grammars[k].hasRuleForSpan(i, j, sourceLength)) {
+        this.dotcharts[k].startDotItems(i, j);
+      }
+    }
+
+    // (5)=== sort the nodes in the cell
+    /**
+     * Cube-pruning requires the nodes being sorted, when prunning for later/wider cell.
+     * Cuebe-pruning will see superNode, which contains a list of nodes. getSortedNodes() will make
+     * the nodes in the superNode get sorted. This also means that wider spans only ever read the
+     * cell, which is what makes it safe for them to be filled in parallel.
+     */
+    if (null != this.cells[i][j]) {
+      this.cells[i][j].getSortedNodes();
+    }
+  }
+
+  /*
+   * Fills in all the spans of the given width on the shared span pool, returning when they are
+   * done.
+   */
+  private void expandInParallel(final int width) {
+    List<Callable<Void>> spans = new ArrayList<Callable<Void>>();
+    for (int i = 0; i <= sourceLength - width; i++) {
+      final int start = i;
+      spans.add(new Callable<Void>() {
+        public Void call() {
+          expandSpan(start, start + width);
+          return null;
+        }
+      });
+    }
+
+    try {
+      for (Future<Void> span : getSpanPool().invokeAll(spans))
+        span.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while filling spans of width " + width);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static synchronized ForkJoinPool getSpanPool() {
+    if (spanPool == null) spanPool = new ForkJoinPool(JoshuaConfiguration.span_threads);
+    return spanPool;
+  }
+
+
   // ===============================================================
   // Private methods
   // ===============================================================
@@ -518,8 +603,9 @@ public class Chart {
             String
                 .format(
                     "ADDED: %d; MERGED: %d; PRUNED: %d; PRE-PRUNED: %d, FUZZ1: %d, FUZZ2: %d; DOT-ITEMS ADDED: %d",
-                    this.nAdded, this.nMerged, this.nPrunedItems, this.nPreprunedEdges,
-                    this.nPreprunedFuzz1, this.nPreprunedFuzz2, this.nDotitemAdded));
+                    this.nAdded.get(), this.nMerged.get(), this.nPrunedItems.get(),
+                    this.nPreprunedEdges.get(), this.nPreprunedFuzz1.get(),
+                    this.nPreprunedFuzz2.get(), this.nDotitemAdded.get()));
   }
 
 
@@ -631,4 +717,49 @@ public class Chart {
       combiner.combine(this, this.cells[i][j], i, j, dotNode.getAntSuperNodes(), filteredRules,
           arity, srcPath);
   }
+
+
+  // ===============================================================
+  // CubePruneScratch class
+  // ===============================================================
+
+  /**
+   * The space completeSpan() needs for cube pruning, kept by each thread and reused from span to
+   * span (and sentence to sentence).
+   */
+  private static final class CubePruneScratch {
+    final VisitedStates visitedStates = new VisitedStates();
+    // the sorted and filtered rules of each dot node in the span, by dot node index
+    final List<List<Rule>> spanRules = new ArrayList<List<Rule>>();
+    private final List<CubePruneState> statePool = new ArrayList<CubePruneState>();
+
+    /*
+     * Returns a cube pruning state from the pool, or a new one if the pool is empty.
+     */
+    CubePruneState newState(ComputeNodeResult result, int[] ranks, Rule rule,
+        List<HGNode> antNodes, DotNode dotNode, int dotIndex) {
+      CubePruneState state;
+      if (statePool.isEmpty()) {
+        state = new CubePruneState(result, ranks.clone(), rule, antNodes);
+        state.setDotNode(dotNode);
+        state.dotIndex = dotIndex;
+      } else {
+        state = statePool.remove(statePool.size() - 1);
+        state.reset(result, ranks, rule, antNodes, dotNode, dotIndex);
+      }
+      return state;
+    }
+
+    /*
+     * Returns a state to the pool. Its scores and antecedents are released so they can be collected
+     * (the hyperedge built from the state keeps its own references).
+     */
+    void recycle(CubePruneState state) {
+      state.nodeStatesTbl = null;
+      state.rule = null;
+      state.antNodes = null;
+      state.setDotNode(null);
+      statePool.add(state);
+    }
+  }
 }
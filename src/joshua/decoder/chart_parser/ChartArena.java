@@ -0,0 +1,91 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder.chart_parser;
+
+import joshua.decoder.chart_parser.DotChart.DotCell;
+
+/**
+ * Storage for the chart of one sentence that is reused for the next. A decoder thread keeps one of
+ * these and passes it to each Chart it builds, so that the cell arrays (and the dot cells, along
+ * with their lists) are allocated once, when the thread first sees a sentence that long, instead
+ * of once per sentence.
+ *
+ * Only the structures that die with the chart are kept here. The nodes and hyperedges a chart
+ * creates live on in the hypergraph it returns, so they are always allocated fresh.
+ *
+ * Building a new chart from an arena clears the previous one, so an arena must only be used by one
+ * thread, and by one chart at a time.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+public class ChartArena {
+
+  private Cell[][] cells = new Cell[0][];
+  // the number of rows and columns of cells that the last chart used
+  private int usedRows = 0;
+  private int usedColumns = 0;
+
+  private DotCell[][][] dotcells = new DotCell[0][][];
+  private int[] usedDotRows = new int[0];
+  private int[] usedDotColumns = new int[0];
+
+  /**
+   * Returns an empty array of chart cells with at least the given dimensions.
+   */
+  Cell[][] cells(int rows, int columns) {
+    if (rows > cells.length || (rows > 0 && columns > cells[0].length)) {
+      cells = new Cell[rows][columns];
+    } else {
+      for (int i = 0; i < usedRows; i++)
+        for (int j = 0; j < usedColumns; j++)
+          cells[i][j] = null;
+    }
+    usedRows = rows;
+    usedColumns = columns;
+    return cells;
+  }
+
+  /**
+   * Returns an empty array of dot cells, with at least the given dimensions, for the dot chart of
+   * the given grammar. Dot cells left by the previous chart are emptied but kept.
+   */
+  DotCell[][] dotCells(int grammar, int rows, int columns) {
+    if (grammar >= dotcells.length) {
+      DotCell[][][] grown = new DotCell[grammar + 1][][];
+      System.arraycopy(dotcells, 0, grown, 0, dotcells.length);
+      dotcells = grown;
+      int[] grownRows = new int[grammar + 1];
+      System.arraycopy(usedDotRows, 0, grownRows, 0, usedDotRows.length);
+      usedDotRows = grownRows;
+      int[] grownColumns = new int[grammar + 1];
+      System.arraycopy(usedDotColumns, 0, grownColumns, 0, usedDotColumns.length);
+      usedDotColumns = grownColumns;
+    }
+
+    DotCell[][] cells = dotcells[grammar];
+    if (cells == null || rows > cells.length || (rows > 0 && columns > cells[0].length)) {
+      cells = new DotCell[rows][columns];
+      dotcells[grammar] = cells;
+    } else {
+      for (int i = 0; i < usedDotRows[grammar]; i++)
+        for (int j = 0; j < usedDotColumns[grammar]; j++)
+          if (cells[i][j] != null) cells[i][j].clear();
+    }
+    usedDotRows[grammar] = rows;
+    usedDotColumns[grammar] = columns;
+    return cells;
+  }
+}
@@ -1,8 +1,8 @@
 package joshua.decoder.chart_parser;
 
 import java.util.List;
-import java.util.TreeMap;
 
+import joshua.decoder.ff.DefaultStatelessFF;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.state_maintenance.StateComputer;
@@ -23,8 +23,8 @@ public class ComputeNodeResult {
   private double finalizedTotalLogP;
   private double transitionTotalLogP;
 
-  // the key is state id;
-  private TreeMap<Integer, DPState> dpStates;
+  // indexed by state id
+  private DPState[] dpStates;
 
   /**
    * Compute logPs and the states of the node
@@ -41,26 +41,40 @@ public class ComputeNodeResult {
       }
     }
 
-    TreeMap<Integer, DPState> allDPStates = null;
+    DPState[] allDPStates = null;
 
-    if (stateComputers != null) {
-      for (StateComputer stateComputer : stateComputers) {
-        DPState dpState = stateComputer.computeState(rule, antNodes, i, j, srcPath);
+    if (stateComputers != null && stateComputers.size() == 1) {
+      // the usual case: just the n-gram state
+      StateComputer<?> stateComputer = stateComputers.get(0);
+      allDPStates = new DPState[stateComputer.getStateID() + 1];
+      allDPStates[stateComputer.getStateID()] =
+          stateComputer.computeState(rule, antNodes, i, j, srcPath);
 
-        if (allDPStates == null) allDPStates = new TreeMap<Integer, DPState>();
-        allDPStates.put(stateComputer.getStateID(), dpState);
-      }
+    } else if (stateComputers != null && stateComputers.size() > 1) {
+      int maxStateID = 0;
+      for (StateComputer<?> stateComputer : stateComputers)
+        maxStateID = Math.max(maxStateID, stateComputer.getStateID());
+
+      allDPStates = new DPState[maxStateID + 1];
+      for (StateComputer<?> stateComputer : stateComputers)
+        allDPStates[stateComputer.getStateID()] =
+            stateComputer.computeState(rule, antNodes, i, j, srcPath);
     }
 
     // === compute feature logPs
-    double transitionLogPSum = 0.0;
+    // Features that depend only on the rule are scored once per rule; see statelessLogP().
+    double transitionLogPSum = statelessLogP(featureFunctions, rule, sentID);
     double futureLogPEstimation = 0.0;
 
     for (FeatureFunction ff : featureFunctions) {
+      if (dependsOnRuleOnly(ff)) continue;
+
       transitionLogPSum +=
           ff.getWeight() * ff.transitionLogP(rule, antNodes, i, j, srcPath, sentID);
       DPState dpState = null;
-      if (allDPStates != null) dpState = allDPStates.get(ff.getStateID());
+      int stateID = ff.getStateID();
+      if (allDPStates != null && stateID >= 0 && stateID < allDPStates.length)
+        dpState = allDPStates[stateID];
       futureLogPEstimation += ff.getWeight() * ff.estimateFutureLogP(rule, dpState, sentID);
     }
 
@@ -88,6 +102,31 @@ public class ComputeNodeResult {
     // printInfo();
   }
 
+  /**
+   * Returns the weighted sum of the scores of the features that depend only on the rule. The sum is
+   * cached in the rule, along with the version of the weights it was computed with, so that it is
+   * computed once per rule rather than once per hyperedge.
+   *
+   * The terms are added in a different order than before, which gives the same sum up to rounding.
+   * That is enough to change tie-breaking and pruning, and so n-best lists and tied 1-bests.
+   */
+  private static double statelessLogP(List<FeatureFunction> featureFunctions, Rule rule,
+      int sentID) {
+    int version = DefaultStatelessFF.getWeightVersion();
+    double logP = rule.getStatelessLogP(version);
+    if (Double.isNaN(logP)) {
+      logP = 0.0;
+      for (FeatureFunction ff : featureFunctions)
+        if (dependsOnRuleOnly(ff)) logP += ff.getWeight() * ff.estimateLogP(rule, sentID);
+      rule.setStatelessLogP(logP, version);
+    }
+    return logP;
+  }
+
+  private static boolean dependsOnRuleOnly(FeatureFunction ff) {
+    return (ff instanceof DefaultStatelessFF) && ((DefaultStatelessFF) ff).dependsOnRuleOnly();
+  }
+
   public static double computeCombinedTransitionLogP(List<FeatureFunction> featureFunctions,
       HyperEdge edge, int i, int j, int sentID) {
     double res = 0;
@@ -174,11 +213,11 @@ public class ComputeNodeResult {
     return this.transitionTotalLogP;
   }
 
-  void setDPStates(TreeMap<Integer, DPState> states) {
+  void setDPStates(DPState[] states) {
     this.dpStates = states;
   }
 
-  TreeMap<Integer, DPState> getDPStates() {
+  DPState[] getDPStates() {
     return this.dpStates;
   }
 
@@ -103,7 +103,7 @@ public class CubePruneCombiner implements Combiner {
       if (curState.nodeStatesTbl.getExpectedTotalLogP() < cell.beamPruner.getCutoffLogP()
           - JoshuaConfiguration.fuzz1) {
         // n_prepruned += heap_cands.size();
-        chart.nPreprunedFuzz1 += combinationHeap.size();
+        chart.nPreprunedFuzz1.addAndGet(combinationHeap.size());
         break;
       }
 
@@ -145,7 +145,7 @@ public class CubePruneCombiner implements Combiner {
           combinationHeap.add(tState);
         } else {
           // n_prepruned += 1;
-          chart.nPreprunedFuzz2 += 1;
+          chart.nPreprunedFuzz2.incrementAndGet();
         }
 
         // recover
@@ -170,6 +170,8 @@ public class CubePruneCombiner implements Combiner {
     Rule rule;
     List<HGNode> antNodes;
     private DotNode dotNode;
+    // the index of the dot node among those of its span (see VisitedStates)
+    int dotIndex;
 
     public CubePruneState(ComputeNodeResult state, int[] ranks, Rule rule, List<HGNode> antecedents) {
       this.nodeStatesTbl = state;
@@ -181,6 +183,21 @@ public class CubePruneCombiner implements Combiner {
       this.dotNode = null;
     }
 
+    /**
+     * Reinitializes a state that is being reused. The ranks are copied into the state's own array.
+     */
+    void reset(ComputeNodeResult state, int[] ranks, Rule rule, List<HGNode> antecedents,
+        DotNode dotNode, int dotIndex) {
+      this.nodeStatesTbl = state;
+      if (this.ranks.length != ranks.length) this.ranks = new int[ranks.length];
+      System.arraycopy(ranks, 0, this.ranks, 0, ranks.length);
+      this.rule = rule;
+      // the old list may be held by a hyperedge, so we can't reuse it
+      this.antNodes = new ArrayList<HGNode>(antecedents);
+      this.dotNode = dotNode;
+      this.dotIndex = dotIndex;
+    }
+
     public void setDotNode(DotNode node) {
       this.dotNode = node;
     }
@@ -16,6 +16,9 @@
 package joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,6 +42,10 @@ import joshua.lattice.Node;
  * matched against proved items (items in the +LM chart, Chart.java) or input symbols. Once the rule
  * is complete, it is entered into the DotChart.
  * 
+ * When the spans of a given width are filled in parallel (see Chart.expand()), each is handled by
+ * its own thread. The work for span (i,j) only writes dot cells that start at i, and only reads dot
+ * cells that start at i and chart cells narrower than (i,j), so no locking is needed.
+ * 
  * @author Zhifei Li, <zhifei.work@gmail.com>
  */
 class DotChart {
@@ -78,6 +85,9 @@ class DotChart {
   /** Represents the input sentence being translated. */
   private final Lattice<Integer> input;
 
+  /** The distinct terminals in the input, in ascending order. */
+  private final int[] terminals;
+
 
   // ===============================================================
   // Static fields
@@ -85,6 +95,8 @@ class DotChart {
 
   private static final Logger logger = Logger.getLogger(DotChart.class.getName());
 
+  private static final List<SuperNode> NO_ANTECEDENTS = Collections.emptyList();
+
 
   // ===============================================================
   // Constructors
@@ -101,13 +113,16 @@ class DotChart {
    * @param input A lattice which represents an input sentence.
    * @param grammar A translation grammar.
    * @param chart A CKY+ style chart in which completed span entries are stored.
+   * @param dotcells Empty storage for the dot cells, at least input.size() by input.size() + 1 (for
+   *          example, from a ChartArena), or null to allocate it
    */
-  public DotChart(Lattice<Integer> input, Grammar grammar, Chart chart) {
+  public DotChart(Lattice<Integer> input, Grammar grammar, Chart chart, DotCell[][] dotcells) {
     this.dotChart = chart;
     this.pGrammar = grammar;
     this.input = input;
     this.sentLen = input.size();
-    this.dotcells = new DotCell[sentLen][sentLen + 1];
+    this.dotcells = (dotcells != null) ? dotcells : new DotCell[sentLen][sentLen + 1];
+    this.terminals = collectTerminals(input);
 
     // seeding the dotChart
     seed();
@@ -151,7 +166,7 @@ class DotChart {
         if (null == pGrammar.getTrieRoot()) {
           throw new RuntimeException("trie root is null");
         }
-        addDotItem(pGrammar.getTrieRoot(), j, j, null, null, new SourcePath());
+        addDotItem(pGrammar.getTrieRoot(), j, j, NO_ANTECEDENTS, null, new SourcePath());
       }
     }
   }
@@ -221,6 +236,27 @@ class DotChart {
   // Private methods
   // ===============================================================
 
+  /*
+   * Returns the distinct labels of the lattice's arcs, in ascending order.
+   */
+  private static int[] collectTerminals(Lattice<Integer> input) {
+    int count = 0;
+    for (Node<Integer> node : input)
+      count += node.size();
+
+    int[] labels = new int[count];
+    int i = 0;
+    for (Node<Integer> node : input)
+      for (Arc<Integer> arc : node.getOutgoingArcs())
+        labels[i++] = arc.getLabel();
+    Arrays.sort(labels);
+
+    int distinct = 0;
+    for (int j = 0; j < labels.length; j++)
+      if (j == 0 || labels[j] != labels[j - 1]) labels[distinct++] = labels[j];
+    return Arrays.copyOf(labels, distinct);
+  }
+
   /**
    * Attempt to combine an item in the dot chart with an item in the chart to create a new item in
    * the dot chart.
@@ -238,14 +274,14 @@ class DotChart {
       return;
     }
 
-    // complete super-items (items over the same span with different LHSs)
-    List<SuperNode> t_ArrayList =
-        new ArrayList<SuperNode>(this.dotChart.getCell(k, j).getSortedSuperItems().values());
+    // complete super-items (items over the same span with different LHSs); nothing below changes
+    // the chart, so they can be used in place
+    Collection<SuperNode> superNodes = this.dotChart.getCell(k, j).getSortedSuperItems().values();
 
     // dotitem in dot_bins[i][k]: looking for an item in the right to the dot
     for (DotNode dotNode : dotcells[i][k].dotNodes) {
       // see if it matches what the dotitem is looking for
-      for (SuperNode superNode : t_ArrayList) {
+      for (SuperNode superNode : superNodes) {
         Trie child_tnode = dotNode.trieNode.match(superNode.lhs);
         if (null != child_tnode) {
           if (true == startDotItems && !child_tnode.hasExtensions()) {
@@ -262,20 +298,30 @@ class DotChart {
   /**
    * Creates a dot item and adds it into the cell(i,j) of this dot chart.
    * 
+   * The antecedent lists are never modified, so a dot item that only moves the dot past a terminal
+   * shares the list of the item it extends, and one that moves it past a nonterminal gets a new
+   * list of exactly the right size.
+   * 
    * @param tnode
    * @param i
    * @param j
-   * @param ant_s_items_in
-   * @param curSuperNode
+   * @param antSuperNodesIn the antecedents of the dot item being extended
+   * @param curSuperNode the antecedent the dot moved past, or null if it moved past a terminal
    */
   private void addDotItem(Trie tnode, int i, int j, List<SuperNode> antSuperNodesIn,
       SuperNode curSuperNode, SourcePath srcPath) {
-    List<SuperNode> antSuperNodes = new ArrayList<SuperNode>();
-    if (antSuperNodesIn != null) {
-      antSuperNodes.addAll(antSuperNodesIn);
-    }
+    /*
+     * A dot item that completes no rules, and whose trie node can't be extended by any nonterminal
+     * or any word of the input, can never be used, so it isn't worth adding (and then trying to
+     * extend in every wider span).
+     */
+    if (!tnode.hasRules() && !tnode.hasExtensionsIn(terminals)) return;
+
+    List<SuperNode> antSuperNodes = antSuperNodesIn;
     if (curSuperNode != null) {
-      antSuperNodes.add(curSuperNode);
+      SuperNode[] ants = antSuperNodesIn.toArray(new SuperNode[antSuperNodesIn.size() + 1]);
+      ants[ants.length - 1] = curSuperNode;
+      antSuperNodes = Arrays.asList(ants);
     }
 
     DotNode item = new DotNode(i, j, tnode, antSuperNodes, srcPath);
@@ -283,11 +329,11 @@ class DotChart {
       dotcells[i][j] = new DotCell();
     }
     dotcells[i][j].addDotNode(item);
-    dotChart.nDotitemAdded++;
+    int nDotitemAdded = dotChart.nDotitemAdded.incrementAndGet();
 
     if (logger.isLoggable(Level.FINEST)) {
       logger.finest(String.format("Add a dotitem in cell (%d, %d), n_dotitem=%d, %s", i, j,
-          dotChart.nDotitemAdded, srcPath));
+          nDotitemAdded, srcPath));
 
       RuleCollection rules = tnode.getRuleCollection();
       if (rules != null) {
@@ -321,6 +367,11 @@ class DotChart {
        */
       dotNodes.add(dt);
     }
+
+    /* Empties the cell so it can be reused for another sentence. */
+    void clear() {
+      dotNodes.clear();
+    }
   }
 
 
@@ -0,0 +1,127 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder.chart_parser;
+
+import joshua.decoder.hypergraph.HGNode;
+
+/**
+ * An open-addressing hash table holding at most one node per signature, used by Cell to recombine
+ * nodes. Nodes are compared by their packed signatures (HGNode.hasSameSignature()), so unlike a
+ * map keyed on HGNode.getSignature(), no strings are built when hyperedges are added to a cell.
+ *
+ * Collisions are resolved by linear probing; removal shifts later entries of the probe sequence
+ * back, so no tombstones are needed.
+ */
+class NodeTable {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private HGNode[] slots;
+  private int size = 0;
+
+  NodeTable() {
+    this.slots = new HGNode[INITIAL_CAPACITY];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the node with the same signature as the given one, or null if there is none.
+   */
+  HGNode get(HGNode node) {
+    int mask = slots.length - 1;
+    for (int i = index(node, mask); slots[i] != null; i = (i + 1) & mask) {
+      if (slots[i].hasSameSignature(node)) return slots[i];
+    }
+    return null;
+  }
+
+  /**
+   * Adds the node, replacing any node with the same signature.
+   */
+  void put(HGNode node) {
+    int mask = slots.length - 1;
+    int i = index(node, mask);
+    for (; slots[i] != null; i = (i + 1) & mask) {
+      if (slots[i].hasSameSignature(node)) {
+        slots[i] = node;
+        return;
+      }
+    }
+    slots[i] = node;
+    size++;
+
+    // keep the load factor at or below one half
+    if (2 * size > slots.length) resize(2 * slots.length);
+  }
+
+  /**
+   * Removes whichever node has the same signature as the given one.
+   */
+  void remove(HGNode node) {
+    int mask = slots.length - 1;
+    int i = index(node, mask);
+    for (; slots[i] != null; i = (i + 1) & mask) {
+      if (slots[i].hasSameSignature(node)) break;
+    }
+    if (slots[i] == null) return;
+
+    slots[i] = null;
+    size--;
+
+    // shift back any following entries whose probe sequence passed through the freed slot
+    for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+      int home = index(slots[j], mask);
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        slots[i] = slots[j];
+        slots[j] = null;
+        i = j;
+      }
+    }
+  }
+
+  /**
+   * Returns the nodes in the table, in no particular order.
+   */
+  HGNode[] toArray() {
+    HGNode[] nodes = new HGNode[size];
+    int k = 0;
+    for (HGNode node : slots)
+      if (node != null) nodes[k++] = node;
+    return nodes;
+  }
+
+  private void resize(int capacity) {
+    HGNode[] old = slots;
+    slots = new HGNode[capacity];
+    int mask = capacity - 1;
+    for (HGNode node : old) {
+      if (node != null) {
+        int i = index(node, mask);
+        while (slots[i] != null)
+          i = (i + 1) & mask;
+        slots[i] = node;
+      }
+    }
+  }
+
+  private static int index(HGNode node, int mask) {
+    long hash = node.getSignatureHash();
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder.chart_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The set of cube-pruning states already visited in a span. A state is identified by the index of
+ * its dot node within the span and its ranks (the rule rank followed by the rank of each
+ * antecedent), which are packed into a single long: the dot node index takes the low 16 bits, and
+ * the remaining 48 bits are divided evenly among the ranks. The packed keys are kept in an
+ * open-addressing table, so checking a state allocates nothing. The rare state that does not fit
+ * is kept in a fallback hash set instead.
+ *
+ * Ranks start at 1, so a packed key is never 0, which marks an empty slot.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+class VisitedStates {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final int DOT_BITS = 16;
+  private static final int RANK_BITS = 64 - DOT_BITS;
+
+  private long[] keys;
+  private int size = 0;
+
+  /* States whose dot node index or ranks are too large to pack; created on demand. */
+  private HashSet<List<Integer>> overflow = null;
+
+  VisitedStates() {
+    this.keys = new long[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Forgets every state, so that the set can be reused for the next span.
+   */
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0L);
+      size = 0;
+    }
+    overflow = null;
+  }
+
+  /**
+   * Adds the state, returning false if it had already been visited.
+   */
+  boolean add(int dotIndex, int[] ranks) {
+    long key = pack(dotIndex, ranks);
+    if (key == 0) return addOverflow(dotIndex, ranks);
+
+    int mask = keys.length - 1;
+    int i = index(key, mask);
+    for (; keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) return false;
+    }
+    keys[i] = key;
+    size++;
+
+    // keep the load factor at or below one half
+    if (2 * size > keys.length) resize(2 * keys.length);
+    return true;
+  }
+
+  /*
+   * Returns the packed key for the state, or 0 if it can't be packed.
+   */
+  private static long pack(int dotIndex, int[] ranks) {
+    if (dotIndex >= (1 << DOT_BITS)) return 0;
+    int bits = RANK_BITS / ranks.length;
+    long limit = 1L << bits;
+
+    long key = 0;
+    for (int rank : ranks) {
+      if (rank >= limit) return 0;
+      key = (key << bits) | rank;
+    }
+    return (key << DOT_BITS) | dotIndex;
+  }
+
+  private boolean addOverflow(int dotIndex, int[] ranks) {
+    if (overflow == null) overflow = new HashSet<List<Integer>>();
+    List<Integer> key = new ArrayList<Integer>(ranks.length + 1);
+    key.add(dotIndex);
+    for (int rank : ranks)
+      key.add(rank);
+    return overflow.add(key);
+  }
+
+  private void resize(int capacity) {
+    long[] old = keys;
+    keys = new long[capacity];
+    int mask = capacity - 1;
+    for (long key : old) {
+      if (key != 0) {
+        int i = index(key, mask);
+        while (keys[i] != 0)
+          i = (i + 1) & mask;
+        keys[i] = key;
+      }
+    }
+  }
+
+  private static int index(long key, int mask) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+}
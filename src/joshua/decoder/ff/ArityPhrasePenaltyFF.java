@@ -67,4 +67,8 @@ public final class ArityPhrasePenaltyFF extends DefaultStatelessFF {
     }
   }
 
+  public boolean dependsOnRuleOnly() {
+    return true;
+  }
+
 }
@@ -18,6 +18,7 @@ package joshua.decoder.ff;
 
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import joshua.decoder.chart_parser.SourcePath;
 import joshua.decoder.ff.state_maintenance.DPState;
@@ -34,6 +35,12 @@ import joshua.decoder.hypergraph.HyperEdge;
  */
 public abstract class DefaultStatelessFF implements FeatureFunction {
 
+  /*
+   * Incremented whenever a stateless feature is created or reweighted, so that cached sums of
+   * stateless scores (see Rule.getStatelessLogP()) can tell whether they are out of date.
+   */
+  private static final AtomicInteger weightVersion = new AtomicInteger(0);
+
   private int stateID = -1;// invalid id
 
   private double weight = 0.0;
@@ -44,6 +51,24 @@ public abstract class DefaultStatelessFF implements FeatureFunction {
     this.weight = weight;
     this.owner = owner;
     this.featureID = id;
+    weightVersion.incrementAndGet();
+  }
+
+  /**
+   * Returns the current version of the stateless feature weights.
+   */
+  public static int getWeightVersion() {
+    return weightVersion.get();
+  }
+
+  /**
+   * Whether this feature's value depends only on the rule (and not on the antecedents, span,
+   * source path or sentence), in which case its weighted value can be computed once per rule and
+   * cached. This is false unless a feature says otherwise, so that a feature whose
+   * transitionLogP() looks at anything else is never cached by mistake.
+   */
+  public boolean dependsOnRuleOnly() {
+    return false;
   }
 
   public final boolean isStateful() {
@@ -56,6 +81,7 @@ public abstract class DefaultStatelessFF implements FeatureFunction {
 
   public final void setWeight(final double weight) {
     this.weight = weight;
+    weightVersion.incrementAndGet();
   }
 
 
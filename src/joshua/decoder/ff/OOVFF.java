@@ -39,4 +39,8 @@ public final class OOVFF extends DefaultStatelessFF {
     else
       return 0.0;
   }
+
+  public boolean dependsOnRuleOnly() {
+    return true;
+  }
 }
@@ -66,6 +66,11 @@ public final class PhraseModelFF extends DefaultStatelessFF {
   }
 
 
+  public boolean dependsOnRuleOnly() {
+    return true;
+  }
+
+
   public int getColumnIndex() {
     return columnIndex;
   }
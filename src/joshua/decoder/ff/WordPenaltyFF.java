@@ -46,4 +46,8 @@ public final class WordPenaltyFF extends DefaultStatelessFF {
 
     return OMEGA * (rule.getEnglish().length - rule.getArity());
   }
+
+  public boolean dependsOnRuleOnly() {
+    return true;
+  }
 }
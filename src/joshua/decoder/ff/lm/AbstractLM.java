@@ -15,6 +15,7 @@
  */
 package joshua.decoder.ff.lm;
 
+import java.util.Arrays;
 import java.util.List;
 
 import joshua.decoder.JoshuaConfiguration;
@@ -69,6 +70,26 @@ public abstract class AbstractLM extends DefaultNGramLanguageModel {
   protected abstract double ngramLogProbability_helper(int[] ngram, int order);
 
 
+  public final double ngramLogProbability(int[] buffer, int offset, int length) {
+    if (length <= 0 || length > this.ngramOrder) {
+      throw new RuntimeException("Error: history size is " + (length - 1));
+    }
+    double probability = ngramLogProbability_helper(buffer, offset, length);
+    if (probability < -JoshuaConfiguration.lm_ceiling_cost) {
+      probability = -JoshuaConfiguration.lm_ceiling_cost;
+    }
+    return probability;
+  }
+
+  /**
+   * Scores an n-gram held in part of a larger array. Subclasses that can read the window in place
+   * should override this; the default copies it out.
+   */
+  protected double ngramLogProbability_helper(int[] buffer, int offset, int length) {
+    return ngramLogProbability_helper(Arrays.copyOfRange(buffer, offset, offset + length), length);
+  }
+
+
   /**
    * @deprecated this function is much slower than the int[] version
    */
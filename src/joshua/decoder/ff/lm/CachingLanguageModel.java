@@ -0,0 +1,224 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder.ff.lm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps another language model with a cache of n-gram log probabilities. Cube pruning scores the
+ * same boundary n-grams over and over, and each query to the underlying model can be expensive (for
+ * KenLM, it crosses the JNI boundary), so this can save a lot of time.
+ *
+ * Each decoder thread has its own fixed-size, open-addressed cache, so there is no locking. When
+ * all the slots an n-gram may occupy are taken, the entry in its first slot is replaced. Only
+ * lookups of complete n-grams (where the order equals the n-gram length) are cached; everything
+ * else is passed through to the wrapped model.
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+public class CachingLanguageModel implements NGramLanguageModel {
+
+  /* How many slots to try before evicting. */
+  private static final int MAX_PROBES = 4;
+
+  private final NGramLanguageModel lm;
+  private final int order;
+  private final int capacity;
+
+  /*
+   * The hit and miss counters of every thread's cache, kept so that they can be reported. Only the
+   * counters are kept here, so a cache is released when its thread finishes.
+   */
+  private final List<Counters> counters = new ArrayList<Counters>();
+
+  private final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+    protected Cache initialValue() {
+      Cache c = new Cache(capacity, order);
+      synchronized (counters) {
+        counters.add(c.counters);
+      }
+      return c;
+    }
+  };
+
+  /**
+   * @param lm the model to wrap
+   * @param cacheSize the number of n-grams each thread may cache (rounded up to a power of two)
+   */
+  public CachingLanguageModel(NGramLanguageModel lm, int cacheSize) {
+    this.lm = lm;
+    this.order = lm.getOrder();
+    int capacity = 1;
+    while (capacity < cacheSize)
+      capacity <<= 1;
+    this.capacity = capacity;
+  }
+
+  /** Returns the wrapped language model. */
+  public NGramLanguageModel getLanguageModel() {
+    return lm;
+  }
+
+  /** The number of queries answered from the cache, summed over all threads. */
+  public long getHits() {
+    long hits = 0;
+    synchronized (counters) {
+      for (Counters c : counters)
+        hits += c.hits;
+    }
+    return hits;
+  }
+
+  /** The number of queries passed through to the wrapped model, summed over all threads. */
+  public long getMisses() {
+    long misses = 0;
+    synchronized (counters) {
+      for (Counters c : counters)
+        misses += c.misses;
+    }
+    return misses;
+  }
+
+
+  // ===============================================================
+  // NGramLanguageModel methods
+  // ===============================================================
+
+  public int getOrder() {
+    return lm.getOrder();
+  }
+
+  public boolean registerWord(String token, int id) {
+    return lm.registerWord(token, id);
+  }
+
+  public double sentenceLogProbability(List<Integer> sentence, int order, int startIndex) {
+    return lm.sentenceLogProbability(sentence, order, startIndex);
+  }
+
+  public double ngramLogProbability(List<Integer> ngram, int order) {
+    return lm.ngramLogProbability(ngram, order);
+  }
+
+  public double ngramLogProbability(int[] ngram, int order) {
+    if (order != ngram.length) return lm.ngramLogProbability(ngram, order);
+    return ngramLogProbability(ngram, 0, ngram.length);
+  }
+
+  public double ngramLogProbability(int[] ngram) {
+    if (ngram.length != lm.getOrder()) return lm.ngramLogProbability(ngram);
+    return ngramLogProbability(ngram, 0, ngram.length);
+  }
+
+  public double ngramLogProbability(int[] buffer, int offset, int length) {
+    if (length > order) return lm.ngramLogProbability(buffer, offset, length);
+
+    Cache c = cache.get();
+    int slot = c.find(buffer, offset, length);
+    if (slot >= 0) {
+      c.counters.hits++;
+      return c.values[slot];
+    }
+
+    c.counters.misses++;
+    double logProb = lm.ngramLogProbability(buffer, offset, length);
+    c.put(-slot - 1, buffer, offset, length, logProb);
+    return logProb;
+  }
+
+  public double logProbOfBackoffState(List<Integer> ngram, int order,
+      int qtyAdditionalBackoffWeight) {
+    return lm.logProbOfBackoffState(ngram, order, qtyAdditionalBackoffWeight);
+  }
+
+  public double logProbabilityOfBackoffState(int[] ngram, int order, int qtyAdditionalBackoffWeight) {
+    return lm.logProbabilityOfBackoffState(ngram, order, qtyAdditionalBackoffWeight);
+  }
+
+  public double logProbabilityOfBackoffState(int[] buffer, int offset, int length,
+      int qtyAdditionalBackoffWeight) {
+    return lm.logProbabilityOfBackoffState(buffer, offset, length, qtyAdditionalBackoffWeight);
+  }
+
+  public int[] leftEquivalentState(int[] originalState, int order, double[] cost) {
+    return lm.leftEquivalentState(originalState, order, cost);
+  }
+
+  public int[] rightEquivalentState(int[] originalState, int order) {
+    return lm.rightEquivalentState(originalState, order);
+  }
+
+
+  /**
+   * A single thread's cache. Slot i holds an n-gram of length lengths[i] (0 if the slot is empty)
+   * in words[i * order ...], and its log probability in values[i].
+   */
+  private static final class Cache {
+    final int order;
+    final int mask;
+    final int[] words;
+    final byte[] lengths;
+    final double[] values;
+    final Counters counters = new Counters();
+
+    Cache(int capacity, int order) {
+      this.order = order;
+      this.mask = capacity - 1;
+      this.words = new int[capacity * order];
+      this.lengths = new byte[capacity];
+      this.values = new double[capacity];
+    }
+
+    /**
+     * Returns the slot holding the n-gram, or (-slot - 1) for the slot it should be stored in.
+     */
+    int find(int[] buffer, int offset, int length) {
+      int hash = length;
+      for (int i = 0; i < length; i++)
+        hash = hash * 0x01000193 ^ buffer[offset + i];
+      hash ^= hash >>> 16;
+
+      int home = hash & mask;
+      for (int probe = 0; probe < MAX_PROBES; probe++) {
+        int slot = (home + probe) & mask;
+        if (lengths[slot] == 0) return -slot - 1;
+        if (lengths[slot] == length && matches(slot, buffer, offset, length)) return slot;
+      }
+      return -home - 1;
+    }
+
+    void put(int slot, int[] buffer, int offset, int length, double value) {
+      System.arraycopy(buffer, offset, words, slot * order, length);
+      lengths[slot] = (byte) length;
+      values[slot] = value;
+    }
+
+    private boolean matches(int slot, int[] buffer, int offset, int length) {
+      int base = slot * order;
+      for (int i = 0; i < length; i++)
+        if (words[base + i] != buffer[offset + i]) return false;
+      return true;
+    }
+  }
+
+
+  /* Written only by the owning thread, and read once decoding is done. */
+  private static final class Counters {
+    long hits = 0;
+    long misses = 0;
+  }
+}
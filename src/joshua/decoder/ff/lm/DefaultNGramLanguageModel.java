@@ -15,6 +15,7 @@
  */
 package joshua.decoder.ff.lm;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -113,6 +114,11 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
   public abstract double ngramLogProbability(int[] ngram, int order);
 
 
+  public double ngramLogProbability(int[] buffer, int offset, int length) {
+    return ngramLogProbability(Arrays.copyOfRange(buffer, offset, offset + length), length);
+  }
+
+
   /**
    * Will never be called, because BACKOFF_LEFT_LM_STATE_SYM_ID token will never exist. However,
    * were it to be called, it should return a probability of 1 (logprob of 0).
@@ -130,6 +136,13 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
   }
 
 
+  public double logProbabilityOfBackoffState(int[] buffer, int offset, int length,
+      int qtyAdditionalBackoffWeight) {
+    return logProbabilityOfBackoffState(Arrays.copyOfRange(buffer, offset, offset + length),
+        length, qtyAdditionalBackoffWeight);
+  }
+
+
   public int[] leftEquivalentState(int[] originalState, int order, double[] cost) {
     return originalState;
   }
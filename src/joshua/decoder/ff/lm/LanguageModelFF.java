@@ -22,6 +22,7 @@ import java.util.logging.Logger;
 import joshua.corpus.Vocabulary;
 import joshua.decoder.chart_parser.SourcePath;
 import joshua.decoder.ff.DefaultStatefulFF;
+import joshua.decoder.ff.lm.kenlm.jni.KenLM;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.state_maintenance.NgramDPState;
 import joshua.decoder.ff.tm.Rule;
@@ -86,6 +87,22 @@ public class LanguageModelFF extends DefaultStatefulFF {
 
   // boolean add_boundary=false; //this is needed unless the text already has <s> and </s>
 
+  /**
+   * Each decoder thread scores hyperedges in its own n-gram window, so that scoring does not
+   * allocate.
+   */
+  private final ThreadLocal<NgramWindow> windows = new ThreadLocal<NgramWindow>() {
+    protected NgramWindow initialValue() {
+      return new NgramWindow(ngramOrder);
+    }
+  };
+
+  /**
+   * For KenLM, the n-grams of a hyperedge are collected and scored in a single native call, rather
+   * than crossing JNI once per n-gram. Null for other language models.
+   */
+  private final ThreadLocal<KenLM.Batch> batches;
+
   /**
    * stateID is any integer exept -1
    **/
@@ -100,6 +117,17 @@ public class LanguageModelFF extends DefaultStatefulFF {
 
     LanguageModelFF.BACKOFF_LEFT_LM_STATE_SYM_ID = Vocabulary.id(BACKOFF_LEFT_LM_STATE_SYM);
     LanguageModelFF.NULL_RIGHT_LM_STATE_SYM_ID = Vocabulary.id(NULL_RIGHT_LM_STATE_SYM);
+
+    if (lmGrammar instanceof KenLM) {
+      final KenLM kenLM = (KenLM) lmGrammar;
+      this.batches = new ThreadLocal<KenLM.Batch>() {
+        protected KenLM.Batch initialValue() {
+          return kenLM.newBatch();
+        }
+      };
+    } else {
+      this.batches = null;
+    }
   }
 
 
@@ -144,7 +172,9 @@ public class LanguageModelFF extends DefaultStatefulFF {
    */
   private double computeTransition(int[] enWords, List<HGNode> antNodes) {
 
-    List<Integer> currentNgram = new ArrayList<Integer>();
+    NgramWindow currentNgram = windows.get();
+    currentNgram.clear();
+    KenLM.Batch batch = (batches == null) ? null : batches.get();
     double transitionLogP = 0.0;
 
     for (int c = 0; c < enWords.length; c++) {
@@ -154,54 +184,54 @@ public class LanguageModelFF extends DefaultStatefulFF {
         int index = -(curID + 1);
 
         NgramDPState state = (NgramDPState) antNodes.get(index).getDPState(this.getStateID());
-        List<Integer> leftContext = state.getLeftLMStateWords();
-        List<Integer> rightContext = state.getRightLMStateWords();
-        if (leftContext.size() != rightContext.size()) {
+        int[] leftContext = state.getLeftLMStateWords();
+        int[] rightContext = state.getRightLMStateWords();
+        if (leftContext.length != rightContext.length) {
           throw new RuntimeException(
               "computeTransition: left and right contexts have unequal lengths");
         }
 
         // ================ left context
-        for (int i = 0; i < leftContext.size(); i++) {
-          int t = leftContext.get(i);
+        for (int i = 0; i < leftContext.length; i++) {
+          int t = leftContext[i];
           currentNgram.add(t);
 
           // always calculate logP for <bo>: additional backoff weight
           if (t == BACKOFF_LEFT_LM_STATE_SYM_ID) {
-            int numAdditionalBackoffWeight = currentNgram.size() - (i + 1);// number of non-state
-                                                                           // words
+            int numAdditionalBackoffWeight = currentNgram.size - (i + 1);// number of non-state
+                                                                         // words
 
             // compute additional backoff weight
             transitionLogP +=
-                this.lmGrammar.logProbOfBackoffState(currentNgram, currentNgram.size(),
-                    numAdditionalBackoffWeight);
+                this.lmGrammar.logProbabilityOfBackoffState(currentNgram.buffer,
+                    currentNgram.start, currentNgram.size, numAdditionalBackoffWeight);
 
-            if (currentNgram.size() == this.ngramOrder) {
-              currentNgram.remove(0);
+            if (currentNgram.size == this.ngramOrder) {
+              currentNgram.removeFirst();
             }
-          } else if (currentNgram.size() == this.ngramOrder) {
+          } else if (currentNgram.size == this.ngramOrder) {
             // compute the current word probablity, and remove it
-            transitionLogP += this.lmGrammar.ngramLogProbability(currentNgram, this.ngramOrder);
+            transitionLogP += ngramLogP(currentNgram, this.ngramOrder, batch);
 
-            currentNgram.remove(0);
+            currentNgram.removeFirst();
           }
 
         }
 
         // ================ right context
-        int tSize = currentNgram.size();
-        for (int i = 0; i < rightContext.size(); i++) {
+        int tSize = currentNgram.size;
+        for (int i = 0; i < rightContext.length; i++) {
           // replace context
-          currentNgram.set(tSize - rightContext.size() + i, rightContext.get(i));
+          currentNgram.set(tSize - rightContext.length + i, rightContext[i]);
         }
 
       } else { // terminal words
         currentNgram.add(curID);
-        if (currentNgram.size() == this.ngramOrder) {
+        if (currentNgram.size == this.ngramOrder) {
           // compute the current word probablity, and remove it
-          transitionLogP += this.lmGrammar.ngramLogProbability(currentNgram, this.ngramOrder);
+          transitionLogP += ngramLogP(currentNgram, this.ngramOrder, batch);
 
-          currentNgram.remove(0);
+          currentNgram.removeFirst();
         }
       }
     }
@@ -214,17 +244,20 @@ public class LanguageModelFF extends DefaultStatefulFF {
     // leftLMStateWrds.size()), this.ngramOrder, lmLeftCost);
 
     // transitionCost += lmLeftCost[0];//add finalized cost for the left state words
+    if (batch != null) transitionLogP += batch.score();
     return transitionLogP;
   }
 
   private double computeFinalTransitionLogP(NgramDPState state) {
 
     double res = 0.0;
-    List<Integer> currentNgram = new ArrayList<Integer>();
-    List<Integer> leftContext = state.getLeftLMStateWords();
-    List<Integer> rightContext = state.getRightLMStateWords();
+    NgramWindow currentNgram = windows.get();
+    currentNgram.clear();
+    KenLM.Batch batch = (batches == null) ? null : batches.get();
+    int[] leftContext = state.getLeftLMStateWords();
+    int[] rightContext = state.getRightLMStateWords();
 
-    if (leftContext.size() != rightContext.size()) {
+    if (leftContext.length != rightContext.length) {
       throw new RuntimeException(
           "LMModel.compute_equiv_state_final_transition: left and right contexts have unequal lengths");
     }
@@ -232,26 +265,26 @@ public class LanguageModelFF extends DefaultStatefulFF {
     // ================ left context
     if (addStartAndEndSymbol) currentNgram.add(START_SYM_ID);
 
-    for (int i = 0; i < leftContext.size(); i++) {
-      int t = leftContext.get(i);
+    for (int i = 0; i < leftContext.length; i++) {
+      int t = leftContext[i];
       currentNgram.add(t);
 
       if (t == BACKOFF_LEFT_LM_STATE_SYM_ID) {// calculate logP for <bo>: additional backoff weight
-        int additionalBackoffWeight = currentNgram.size() - (i + 1);
+        int additionalBackoffWeight = currentNgram.size - (i + 1);
         // compute additional backoff weight
         // TOTO: may not work with the case that add_start_and_end_symbol=false
         res +=
-            this.lmGrammar.logProbOfBackoffState(currentNgram, currentNgram.size(),
-                additionalBackoffWeight);
+            this.lmGrammar.logProbabilityOfBackoffState(currentNgram.buffer, currentNgram.start,
+                currentNgram.size, additionalBackoffWeight);
 
       } else { // partial ngram
         // compute the current word probablity
-        if (currentNgram.size() >= 2) { // start from bigram
-          res += this.lmGrammar.ngramLogProbability(currentNgram, currentNgram.size());
+        if (currentNgram.size >= 2) { // start from bigram
+          res += ngramLogP(currentNgram, currentNgram.size, batch);
         }
       }
-      if (currentNgram.size() == this.ngramOrder) {
-        currentNgram.remove(0);
+      if (currentNgram.size == this.ngramOrder) {
+        currentNgram.removeFirst();
       }
     }
 
@@ -259,17 +292,30 @@ public class LanguageModelFF extends DefaultStatefulFF {
     // switch context, we will never score the right context probablity because they are either
     // duplicate or partional ngram
     if (addStartAndEndSymbol) {
-      int tSize = currentNgram.size();
-      for (int i = 0; i < rightContext.size(); i++) {// replace context
-        currentNgram.set(tSize - rightContext.size() + i, rightContext.get(i));
+      int tSize = currentNgram.size;
+      for (int i = 0; i < rightContext.length; i++) {// replace context
+        currentNgram.set(tSize - rightContext.length + i, rightContext[i]);
       }
 
       currentNgram.add(STOP_SYM_ID);
-      res += this.lmGrammar.ngramLogProbability(currentNgram, currentNgram.size());
+      res += ngramLogP(currentNgram, currentNgram.size, batch);
     }
+    if (batch != null) res += batch.score();
     return res;
   }
 
+  /**
+   * Scores the first <code>length</code> words of the window. If a batch is given, the n-gram is
+   * instead added to it and 0 is returned; its probability is counted when the batch is scored.
+   */
+  private double ngramLogP(NgramWindow window, int length, KenLM.Batch batch) {
+    if (batch != null) {
+      batch.add(window.buffer, window.start, length);
+      return 0.0;
+    }
+    return this.lmGrammar.ngramLogProbability(window.buffer, window.start, length);
+  }
+
 
   /*
    * in general: consider all the complete ngrams, and all the incomplete-ngrams that WILL have sth
@@ -311,12 +357,13 @@ public class LanguageModelFF extends DefaultStatefulFF {
   private double estimateStateLogProb(NgramDPState state, boolean addStart, boolean addEnd) {
 
     double res = 0.0;
-    List<Integer> leftContext = state.getLeftLMStateWords();
+    int[] leftContext = state.getLeftLMStateWords();
 
     if (null != leftContext) {
       List<Integer> words = new ArrayList<Integer>();;
       if (addStart == true) words.add(START_SYM_ID);
-      words.addAll(leftContext);
+      for (int word : leftContext)
+        words.add(word);
 
       boolean considerIncompleteNgrams = true;
       boolean skipStart = true;
@@ -331,8 +378,10 @@ public class LanguageModelFF extends DefaultStatefulFF {
      */
     if (addEnd == true) {// only when add_end is true, we get a complete ngram, otherwise, all
                          // ngrams in r_state are incomplete and we should do nothing
-      List<Integer> rightContext = state.getRightLMStateWords();
-      List<Integer> list = new ArrayList<Integer>(rightContext);
+      int[] rightContext = state.getRightLMStateWords();
+      List<Integer> list = new ArrayList<Integer>();
+      for (int word : rightContext)
+        list.add(word);
       list.add(STOP_SYM_ID);
       double tem = scoreChunkLogP(list, false, false);
       res += tem;
@@ -361,4 +410,45 @@ public class LanguageModelFF extends DefaultStatefulFF {
     }
   }
 
+
+
+  /**
+   * A ring buffer holding the most recent words of a hypothesis (at most one full n-gram). Every
+   * word is written twice, <code>capacity</code> positions apart, so that the words currently in
+   * the window always occupy the contiguous region <code>buffer[start .. start + size - 1]</code>
+   * and can be handed to the language model without copying.
+   */
+  private static final class NgramWindow {
+    final int[] buffer;
+    final int capacity;
+    int start = 0;
+    int size = 0;
+
+    NgramWindow(int capacity) {
+      this.capacity = capacity;
+      this.buffer = new int[2 * capacity];
+    }
+
+    void clear() {
+      start = 0;
+      size = 0;
+    }
+
+    void add(int word) {
+      if (size == capacity) throw new RuntimeException("n-gram window overflow");
+      set(size++, word);
+    }
+
+    /** Replaces the i-th word of the window. */
+    void set(int i, int word) {
+      int pos = (start + i) % capacity;
+      buffer[pos] = word;
+      buffer[pos + capacity] = word;
+    }
+
+    void removeFirst() {
+      start = (start + 1) % capacity;
+      size--;
+    }
+  }
 }
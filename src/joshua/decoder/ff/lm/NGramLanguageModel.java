@@ -75,6 +75,13 @@ public interface NGramLanguageModel {
 
   double ngramLogProbability(int[] ngram);
 
+  /**
+   * Scores the n-gram stored in <code>buffer[offset]</code> through
+   * <code>buffer[offset + length - 1]</code>, using an order equal to its length. This lets callers
+   * keep a reusable window over a hypothesis rather than copying each n-gram into a new array.
+   */
+  double ngramLogProbability(int[] buffer, int offset, int length);
+
 
   // ===============================================================
   // Equivalent LM State (use DefaultNGramLanguageModel if you don't care)
@@ -90,6 +97,9 @@ public interface NGramLanguageModel {
 
   double logProbabilityOfBackoffState(int[] ngram, int order, int qtyAdditionalBackoffWeight);
 
+  double logProbabilityOfBackoffState(int[] buffer, int offset, int length,
+      int qtyAdditionalBackoffWeight);
+
   int[] leftEquivalentState(int[] originalState, int order, double[] cost);
 
   int[] rightEquivalentState(int[] originalState, int order);
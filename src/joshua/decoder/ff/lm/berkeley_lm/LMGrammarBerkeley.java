@@ -45,6 +45,12 @@ public class LMGrammarBerkeley extends AbstractLM {
 
   private int mappingLength = 0;
 
+  private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+    protected int[] initialValue() {
+      return new int[ngramOrder];
+    }
+  };
+
   public LMGrammarBerkeley(int order, String lm_file) {
     super(order);
     vocabIdToMyIdMapping = new int[10];
@@ -98,14 +104,23 @@ public class LMGrammarBerkeley extends AbstractLM {
 
   @Override
   protected double ngramLogProbability_helper(int[] ngram, int order) {
-    // Adam Pauls: having to make a copy might be very inefficient
-    // if this shows up in the profiles, I might have to expose more
-    // of the lm interface to avoid the copy.
-    final int[] copyOf = Arrays.copyOf(ngram, ngram.length);
-    for (int i = 0; i < ngram.length; ++i) {
-      copyOf[i] = ngram[i] >= mappingLength ? -1 : vocabIdToMyIdMapping[ngram[i]];
+    return ngramLogProbability_helper(ngram, 0, ngram.length);
+  }
+
+  @Override
+  protected double ngramLogProbability_helper(int[] buffer, int offset, int length) {
+    // The n-gram has to be translated into Berkeley LM's own vocabulary; we do this in a per-thread
+    // scratch array rather than making a copy for every query.
+    int[] mapped = scratch.get();
+    if (mapped.length < length) {
+      mapped = new int[length];
+      scratch.set(mapped);
+    }
+    for (int i = 0; i < length; ++i) {
+      int id = buffer[offset + i];
+      mapped[i] = id >= mappingLength ? -1 : vocabIdToMyIdMapping[id];
     }
-    final float res = lm.getLogProb(copyOf, 0, copyOf.length);
+    final float res = lm.getLogProb(mapped, 0, length);
 
     return res;
   }
@@ -1,5 +1,10 @@
 package joshua.decoder.ff.lm.kenlm.jni;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 import joshua.decoder.JoshuaConfiguration;
@@ -33,6 +38,9 @@ public class KenLM implements NGramLanguageModel {
 
   private final static native float probString(long ptr, int words[], int start);
 
+  private final static native void probBatch(long ptr, IntBuffer ngrams, int count,
+      FloatBuffer probs);
+
   public KenLM(int order, String file_name) {
     ngramOrder = order;
 
@@ -62,6 +70,14 @@ public class KenLM implements NGramLanguageModel {
     return probString(pointer, words, start - 1);
   }
 
+  /**
+   * Returns a new, empty batch for scoring many n-grams with a single native call. A batch may only
+   * be used by one thread at a time.
+   */
+  public Batch newBatch() {
+    return new Batch();
+  }
+
   /* implement NGramLanguageModel */
   /**
    * @deprecated pass int arrays to prob instead.
@@ -81,6 +97,10 @@ public class KenLM implements NGramLanguageModel {
     return prob(ngram);
   }
 
+  public double ngramLogProbability(int[] buffer, int offset, int length) {
+    return prob(Arrays.copyOfRange(buffer, offset, offset + length));
+  }
+
   /**
    * @deprecated pass int arrays to prob instead.
    */
@@ -99,6 +119,11 @@ public class KenLM implements NGramLanguageModel {
     return 0;
   }
 
+  public double logProbabilityOfBackoffState(int[] buffer, int offset, int length,
+      int qtyAdditionalBackoffWeight) {
+    return 0;
+  }
+
   public int[] leftEquivalentState(int[] originalState, int order, double[] cost) {
     return originalState;
   }
@@ -106,4 +131,74 @@ public class KenLM implements NGramLanguageModel {
   public int[] rightEquivalentState(int[] originalState, int order) {
     return originalState;
   }
+
+
+  /**
+   * A list of n-grams to be scored together. Scoring n-grams one at a time costs a trip across JNI
+   * and a copy of the Java array for every n-gram; a batch instead accumulates the n-grams in a
+   * direct buffer shared with the native code, which scores them all in one call and writes the
+   * probabilities into a second direct buffer.
+   */
+  public class Batch {
+    /* Each n-gram is stored as its length followed by its words. */
+    private IntBuffer ngrams;
+    private FloatBuffer probs;
+    private int used = 0;
+    private int count = 0;
+
+    private Batch() {
+      ngrams = allocateInts(32 * (N + 1));
+      probs = allocateFloats(32);
+    }
+
+    /** The number of n-grams added since the batch was last scored. */
+    public int size() {
+      return count;
+    }
+
+    /** Adds the n-gram buffer[offset .. offset + length - 1] to the batch. */
+    public void add(int[] buffer, int offset, int length) {
+      if (used + length + 1 > ngrams.capacity()) {
+        IntBuffer bigger = allocateInts(2 * (used + length + 1));
+        for (int i = 0; i < used; i++)
+          bigger.put(i, ngrams.get(i));
+        ngrams = bigger;
+      }
+      if (count == probs.capacity()) probs = allocateFloats(2 * count);
+
+      ngrams.put(used++, length);
+      for (int i = 0; i < length; i++)
+        ngrams.put(used++, buffer[offset + i]);
+      count++;
+    }
+
+    /**
+     * Scores every n-gram in the batch, returning the sum of their log probabilities. The batch is
+     * emptied, but the individual probabilities remain available through prob() until it is
+     * scored again.
+     */
+    public double score() {
+      if (count > 0) probBatch(pointer, ngrams, count, probs);
+
+      double sum = 0.0;
+      for (int i = 0; i < count; i++)
+        sum += probs.get(i);
+      used = 0;
+      count = 0;
+      return sum;
+    }
+
+    /** The log probability of the i-th n-gram of the last batch scored. */
+    public float prob(int i) {
+      return probs.get(i);
+    }
+  }
+
+  private static IntBuffer allocateInts(int size) {
+    return ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+
+  private static FloatBuffer allocateFloats(int size) {
+    return ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
 }
@@ -248,4 +248,19 @@ JNIEXPORT jfloat JNICALL Java_joshua_decoder_ff_lm_kenlm_jni_KenLM_probString(
 			values + length, start);
 }
 
+JNIEXPORT void JNICALL Java_joshua_decoder_ff_lm_kenlm_jni_KenLM_probBatch(
+		JNIEnv *env, jclass, jlong pointer, jobject ngrams, jint count,
+		jobject probs) {
+	// Both buffers are direct, so we work on Java's memory without copying.
+	// Each n-gram is stored as its length followed by its words.
+	jint *words = static_cast<jint*>(env->GetDirectBufferAddress(ngrams));
+	jfloat *out = static_cast<jfloat*>(env->GetDirectBufferAddress(probs));
+	const VirtualBase *model = reinterpret_cast<const VirtualBase*>(pointer);
+	for (jint i = 0; i < count; ++i) {
+		jint length = *(words++);
+		out[i] = length > 0 ? model->Prob(words, words + length) : 0.0;
+		words += length;
+	}
+}
+
 } // extern
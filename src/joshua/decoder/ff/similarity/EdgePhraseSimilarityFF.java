@@ -78,7 +78,7 @@ public class EdgePhraseSimilarityFF extends DefaultStatefulFF implements SourceD
     int lm_state_size = 0;
     for (HGNode node : antNodes) {
       NgramDPState state = (NgramDPState) node.getDPState(getStateID());
-      lm_state_size += state.getLeftLMStateWords().size() + state.getRightLMStateWords().size();
+      lm_state_size += state.getLeftLMStateWords().length + state.getRightLMStateWords().length;
     }
 
     ArrayList<int[]> batch = new ArrayList<int[]>();
@@ -23,4 +23,11 @@ package joshua.decoder.ff.state_maintenance;
  */
 public interface DPState {
   String getSignature(boolean forceRecompute);
+
+  /**
+   * Returns the signature as an array of integers. Two states must have equal packed signatures
+   * exactly when they have equal string signatures; this is what the chart uses to recombine
+   * nodes, since it avoids building strings.
+   */
+  int[] getPackedSignature();
 }
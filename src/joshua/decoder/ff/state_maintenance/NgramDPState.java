@@ -16,9 +16,6 @@
 
 package joshua.decoder.ff.state_maintenance;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import joshua.corpus.Vocabulary;
 
 /**
@@ -28,13 +25,13 @@ import joshua.corpus.Vocabulary;
  */
 public class NgramDPState implements DPState {
 
-  private List<Integer> leftLMStateWords;
-  private List<Integer> rightLMStateWords;
+  private int[] leftLMStateWords;
+  private int[] rightLMStateWords;
   private String sig = null;
 
   private static String SIG_SEP = " -S- "; // seperator for state in signature
 
-  public NgramDPState(List<Integer> leftLMStateWords, List<Integer> rightLMStateWords) {
+  public NgramDPState(int[] leftLMStateWords, int[] rightLMStateWords) {
     this.leftLMStateWords = leftLMStateWords;
     this.rightLMStateWords = rightLMStateWords;
   }
@@ -45,25 +42,25 @@ public class NgramDPState implements DPState {
   public NgramDPState(String sig) {
     this.sig = sig;
     String[] states = sig.split(SIG_SEP); // TODO: use joshua.util.Regex
-    this.leftLMStateWords = intArrayToList(Vocabulary.addAll(states[0]));
-    this.rightLMStateWords = intArrayToList(Vocabulary.addAll(states[1]));
+    this.leftLMStateWords = Vocabulary.addAll(states[0]);
+    this.rightLMStateWords = Vocabulary.addAll(states[1]);
   }
 
 
 
-  public void setLeftLMStateWords(List<Integer> words_) {
+  public void setLeftLMStateWords(int[] words_) {
     this.leftLMStateWords = words_;
   }
 
-  public List<Integer> getLeftLMStateWords() {
+  public int[] getLeftLMStateWords() {
     return this.leftLMStateWords;
   }
 
-  public void setRightLMStateWords(List<Integer> words_) {
+  public void setRightLMStateWords(int[] words_) {
     this.rightLMStateWords = words_;
   }
 
-  public List<Integer> getRightLMStateWords() {
+  public int[] getRightLMStateWords() {
     return this.rightLMStateWords;
   }
 
@@ -94,10 +91,28 @@ public class NgramDPState implements DPState {
 
 
 
-  private void computeStateSig(List<Integer> state, StringBuffer sb) {
+  /*
+   * The packed signature is the length of the left state, followed by the left and then the right
+   * state words.
+   */
+  public int[] getPackedSignature() {
+    if (null == leftLMStateWords || null == rightLMStateWords)
+      throw new RuntimeException("state is null");
+
+    int[] packed = new int[1 + leftLMStateWords.length + rightLMStateWords.length];
+    packed[0] = leftLMStateWords.length;
+    System.arraycopy(leftLMStateWords, 0, packed, 1, leftLMStateWords.length);
+    System.arraycopy(rightLMStateWords, 0, packed, 1 + leftLMStateWords.length,
+        rightLMStateWords.length);
+    return packed;
+  }
+
+
+
+  private void computeStateSig(int[] state, StringBuffer sb) {
 
     if (null != state) {
-      for (int i = 0; i < state.size(); i++) {
+      for (int i = 0; i < state.length; i++) {
         if (true
         // TODO: equivalnce: number of <null> or <bo>?
         /*
@@ -105,8 +120,8 @@ public class NgramDPState implements DPState {
          * states[i]!=Symbol.NULL_LEFT_LM_STATE_SYM_ID && states[i]!=Symbol.LM_STATE_OVERLAP_SYM_ID
          */
         ) {
-          sb.append(Vocabulary.word(state.get(i)));
-          if (i < state.size() - 1) {
+          sb.append(Vocabulary.word(state[i]));
+          if (i < state.length - 1) {
             sb.append(' ');
           }
         }
@@ -116,11 +131,4 @@ public class NgramDPState implements DPState {
     }
   }
 
-  private List<Integer> intArrayToList(int[] words) {
-    List<Integer> res = new ArrayList<Integer>();
-    for (int wrd : words)
-      res.add(wrd);
-    return res;
-  }
-
 }
@@ -1,6 +1,6 @@
 package joshua.decoder.ff.state_maintenance;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,10 +18,10 @@ public class NgramStateComputer implements StateComputer<NgramDPState> {
 
   private static final Logger logger = Logger.getLogger(NgramStateComputer.class.getName());
 
-  // StateID should be any integer except -1.
+  // StateID should be a small non-negative integer.
   public NgramStateComputer(int nGramOrder, int stateID) {
     this.ngramOrder = nGramOrder;
-    this.stateID = stateID;
+    setStateID(stateID);
     logger.info("NgramStateComputer: stateID=" + stateID + "; ngramOrder=" + this.ngramOrder);
   }
 
@@ -31,6 +31,7 @@ public class NgramStateComputer implements StateComputer<NgramDPState> {
 
 
   public void setStateID(int stateID) {
+    if (stateID < 0) throw new IllegalArgumentException("invalid state ID: " + stateID);
     this.stateID = stateID;
   }
 
@@ -45,10 +46,13 @@ public class NgramStateComputer implements StateComputer<NgramDPState> {
   public NgramDPState computeState(Rule rule, List<HGNode> antNodes, int spanStart, int spanEnd,
       SourcePath srcPath) {
 
-    List<Integer> leftStateSequence = new ArrayList<Integer>();
-    List<Integer> currentNgram = new ArrayList<Integer>();
+    int[] leftStateSequence = new int[this.ngramOrder - 1];
+    int leftSize = 0;
+
+    // the most recent words of the hypothesis (never more than ngramOrder - 1 between words)
+    int[] currentNgram = new int[this.ngramOrder];
+    int ngramSize = 0;
 
-    int hypLen = 0;
     int[] enWords = rule.getEnglish();
 
     for (int c = 0; c < enWords.length; c++) {
@@ -60,38 +64,21 @@ public class NgramStateComputer implements StateComputer<NgramDPState> {
         if (logger.isLoggable(Level.FINEST)) logger.finest("Looking up state at: " + index);
 
         NgramDPState antState = (NgramDPState) antNodes.get(index).getDPState(this.getStateID());// TODO
-        List<Integer> leftContext = antState.getLeftLMStateWords();
-        List<Integer> rightContext = antState.getRightLMStateWords();
+        int[] leftContext = antState.getLeftLMStateWords();
+        int[] rightContext = antState.getRightLMStateWords();
 
-        if (leftContext.size() != rightContext.size()) {
+        if (leftContext.length != rightContext.length) {
           throw new RuntimeException(
               "NgramStateComputer.computeState: left and right contexts have unequal lengths");
         }
 
         // ================ left context
-        for (int i = 0; i < leftContext.size(); i++) {
-          int t = leftContext.get(i);
-          currentNgram.add(t);
-
-          // always calculate cost for <bo>: additional backoff weight
-          /*
-           * if (t == BACKOFF_LEFT_LM_STATE_SYM_ID) { int numAdditionalBackoffWeight =
-           * currentNgram.size() - (i+1);//number of non-state words
-           * 
-           * //compute additional backoff weight transitionCost -=
-           * this.lmGrammar.logProbOfBackoffState(currentNgram, currentNgram.size(),
-           * numAdditionalBackoffWeight);
-           * 
-           * if (currentNgram.size() == this.ngramOrder) { currentNgram.remove(0); } } else
-           */if (currentNgram.size() == this.ngramOrder) {
-            // compute the current word probablity, and remove it
-            // transitionCost -= this.lmGrammar.ngramLogProbability(currentNgram, this.ngramOrder);
-
-            currentNgram.remove(0);
-          }
+        for (int i = 0; i < leftContext.length; i++) {
+          int t = leftContext[i];
+          ngramSize = append(currentNgram, ngramSize, t);
 
-          if (leftStateSequence.size() < this.ngramOrder - 1) {
-            leftStateSequence.add(t);
+          if (leftSize < this.ngramOrder - 1) {
+            leftStateSequence[leftSize++] = t;
           }
         }
 
@@ -100,49 +87,39 @@ public class NgramStateComputer implements StateComputer<NgramDPState> {
         // duplicate or out of range
         // also, we will never score the right context probablity because they are either duplicate
         // or partional ngram
-        int tSize = currentNgram.size();
-        for (int i = 0; i < rightContext.size(); i++) {
-          // replace context
-          currentNgram.set(tSize - rightContext.size() + i, rightContext.get(i));
-        }
+        System.arraycopy(rightContext, 0, currentNgram, ngramSize - rightContext.length,
+            rightContext.length);
 
       } else {// terminal words
-        hypLen++;
-        currentNgram.add(curID);
-        if (currentNgram.size() == this.ngramOrder) {
-          // compute the current word probablity, and remove it
-          // transitionCost -= this.lmGrammar.ngramLogProbability(currentNgram, this.ngramOrder);
-
-
-          currentNgram.remove(0);
-        }
-        if (leftStateSequence.size() < this.ngramOrder - 1) {
-          leftStateSequence.add(curID);
+        ngramSize = append(currentNgram, ngramSize, curID);
+        if (leftSize < this.ngramOrder - 1) {
+          leftStateSequence[leftSize++] = curID;
         }
       }
     }
 
+    // left and right should always have the same size
+    if (leftSize > ngramSize) {
+      throw new RuntimeException("left has a bigger size right; " + "; left=" + leftSize
+          + "; right=" + ngramSize);
+    }
 
-    // ===== get left euquiv state
-    // double[] lmLeftCost = new double[2];
-    // int[] equivLeftState =
-    // this.lmGrammar.leftEquivalentState(Support.subIntArray(leftLMStateWrds, 0,
-    // leftLMStateWrds.size()), this.ngramOrder, lmLeftCost);
+    return new NgramDPState(Arrays.copyOf(leftStateSequence, leftSize), Arrays.copyOfRange(
+        currentNgram, ngramSize - leftSize, ngramSize));
+  }
 
 
-    // ===== trabsition and estimate cost
-    // transitionCost += lmLeftCost[0];//add finalized cost for the left state words
-    // left and right should always have the same size
-    List<Integer> rightStateSequence = currentNgram;
-    if (leftStateSequence.size() > rightStateSequence.size()) {
-      throw new RuntimeException("left has a bigger size right; " + "; left="
-          + leftStateSequence.size() + "; right=" + rightStateSequence.size());
-    }
-    while (rightStateSequence.size() > leftStateSequence.size()) {
-      rightStateSequence.remove(0);// TODO: speed up
+  /**
+   * Appends a word to the n-gram window, dropping the oldest word once the window holds a full
+   * n-gram. Returns the new size of the window.
+   */
+  private int append(int[] ngram, int size, int word) {
+    ngram[size++] = word;
+    if (size == this.ngramOrder) {
+      System.arraycopy(ngram, 1, ngram, 0, size - 1);
+      size--;
     }
-
-    return new NgramDPState(leftStateSequence, rightStateSequence);
+    return size;
   }
 
 }
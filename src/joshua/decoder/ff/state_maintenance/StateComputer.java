@@ -9,7 +9,8 @@ import joshua.decoder.hypergraph.HGNode;
 public interface StateComputer<D extends DPState> {
 
   /*
-   * a valid stateID can be any integer except -1
+   * a valid stateID is a small non-negative integer: nodes keep their states in an array indexed by
+   * it (see HGNode.getDPState())
    */
   void setStateID(int stateID);
 
@@ -66,6 +66,7 @@ public class BilingualRule extends MonolingualRule {
 
   public final void setEnglish(int[] eng) {
     this.english = eng;
+    invalidateStatelessLogP();
   }
 
   public final int[] getEnglish() {
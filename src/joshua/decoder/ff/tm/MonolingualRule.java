@@ -63,6 +63,14 @@ public class MonolingualRule implements Rule {
    */
   private float est_cost = 0;
 
+  /*
+   * The weighted sum of the features that depend only on this rule, cached by ComputeNodeResult,
+   * and the version of the stateless feature weights it was computed with (-1 if there is no cached
+   * value). The sum is written before the version, and read after it.
+   */
+  private double statelessLogP = 0.0;
+  private volatile int statelessVersion = -1;
+
   // ===============================================================
   // Static Fields
   // ===============================================================
@@ -122,6 +130,7 @@ public class MonolingualRule implements Rule {
 
   public final void setRuleID(int id) {
     this.ruleID = id;
+    invalidateStatelessLogP();
   }
 
   public final int getRuleID() {
@@ -131,6 +140,7 @@ public class MonolingualRule implements Rule {
 
   public final void setArity(int arity) {
     this.arity = arity;
+    invalidateStatelessLogP();
   }
 
   public final int getArity() {
@@ -140,6 +150,7 @@ public class MonolingualRule implements Rule {
 
   public final void setOwner(int owner) {
     this.owner = owner;
+    invalidateStatelessLogP();
   }
 
   public final int getOwner() {
@@ -177,6 +188,7 @@ public class MonolingualRule implements Rule {
 
   public final void setFeatureScores(float[] scores) {
     this.featScores = scores;
+    invalidateStatelessLogP();
   }
 
   public final float[] getFeatureScores() {
@@ -207,6 +219,22 @@ public class MonolingualRule implements Rule {
     est_cost = cost;
   }
 
+  public final double getStatelessLogP(int version) {
+    return (statelessVersion == version) ? statelessLogP : Double.NaN;
+  }
+
+  public final void setStatelessLogP(double logP, int version) {
+    statelessLogP = logP;
+    statelessVersion = version;
+  }
+
+  /**
+   * Discards the cached stateless score; called whenever something it may depend on changes.
+   */
+  protected final void invalidateStatelessLogP() {
+    statelessVersion = -1;
+  }
+
   /**
    * Set a lower-bound estimate inside the rule returns full estimate.
    */
@@ -232,6 +260,7 @@ public class MonolingualRule implements Rule {
   public float incrementFeatureScore(int column, double score) {
     synchronized (this) {
       featScores[column] += score;
+      invalidateStatelessLogP();
       return featScores[column];
     }
   }
@@ -240,6 +269,7 @@ public class MonolingualRule implements Rule {
   public void setFeatureCost(int column, float score) {
     synchronized (this) {
       featScores[column] = score;
+      invalidateStatelessLogP();
     }
   }
 
@@ -81,6 +81,15 @@ public interface Rule {
 
   float getEstCost();
 
+  /**
+   * Returns the cached weighted sum of the rule's stateless, rule-only feature scores, or NaN if it
+   * was not computed with the given version of the weights (see
+   * DefaultStatelessFF.getWeightVersion()).
+   */
+  double getStatelessLogP(int version);
+
+  void setStatelessLogP(double logP, int version);
+
 
   // ===============================================================
   // Methods
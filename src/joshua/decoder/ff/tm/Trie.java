@@ -44,6 +44,17 @@ public interface Trie {
   boolean hasExtensions();
 
 
+  /**
+   * Returns whether this node could be extended when parsing an input made up of the given
+   * terminals: that is, whether it has an extension by a nonterminal, or by one of the terminals.
+   * 
+   * @param terminals the ids of the input's terminals, in ascending order without repeats
+   * @return <code>true</code> if {@link #match(int)} could succeed for a nonterminal or one of the
+   *         terminals, <code>false</code> otherwise
+   */
+  boolean hasExtensionsIn(int[] terminals);
+
+
   /**
    * If the trie node has extensions, then return a list of extended trie nodes, otherwise return
    * null.
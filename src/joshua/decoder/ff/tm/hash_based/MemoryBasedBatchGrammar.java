@@ -16,7 +16,6 @@
 package joshua.decoder.ff.tm.hash_based;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -241,10 +240,7 @@ public class MemoryBasedBatchGrammar extends BatchGrammar {
       MemoryBasedTrie nextLayer = pos.match(curSymID);
       if (null == nextLayer) {
         nextLayer = new MemoryBasedTrie();
-        if (pos.hasExtensions() == false) {
-          pos.childrenTbl = new HashMap<Integer, MemoryBasedTrie>();
-        }
-        pos.childrenTbl.put(curSymID, nextLayer);
+        pos.addExtension(curSymID, nextLayer);
       }
       pos = nextLayer;
     }
@@ -15,9 +15,11 @@
  */
 package joshua.decoder.ff.tm.hash_based;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 
+import joshua.corpus.Vocabulary;
 import joshua.decoder.ff.tm.RuleCollection;
 import joshua.decoder.ff.tm.Trie;
 
@@ -28,6 +30,8 @@ import joshua.decoder.ff.tm.Trie;
 public class MemoryBasedTrie implements Trie {
   MemoryBasedRuleBin ruleBin = null;
   HashMap<Integer, MemoryBasedTrie> childrenTbl = null;
+  // whether any of the children is matched by a nonterminal
+  private boolean nonterminalExtensions = false;
 
 
   /* See Javadoc for Trie interface. */
@@ -44,12 +48,41 @@ public class MemoryBasedTrie implements Trie {
     return (null != this.childrenTbl);
   }
 
+  /* See Javadoc for Trie interface. */
+  public boolean hasExtensionsIn(int[] terminals) {
+    if (null == childrenTbl) return false;
+    if (nonterminalExtensions) return true;
+
+    // look up whichever of the two is smaller in the other
+    if (terminals.length <= childrenTbl.size()) {
+      for (int terminal : terminals)
+        if (childrenTbl.containsKey(terminal)) return true;
+    } else {
+      for (int symbol : childrenTbl.keySet())
+        if (Arrays.binarySearch(terminals, symbol) >= 0) return true;
+    }
+    return false;
+  }
+
   public HashMap<Integer, MemoryBasedTrie> getExtensionsTable() {
     return this.childrenTbl;
   }
 
   public void setExtensions(HashMap<Integer, MemoryBasedTrie> tbl_children_) {
     this.childrenTbl = tbl_children_;
+    this.nonterminalExtensions = false;
+    if (tbl_children_ != null)
+      for (int symbol : tbl_children_.keySet())
+        if (Vocabulary.nt(symbol)) this.nonterminalExtensions = true;
+  }
+
+  /**
+   * Adds a child, reached by the given symbol.
+   */
+  void addExtension(int symbol, MemoryBasedTrie child) {
+    if (null == childrenTbl) childrenTbl = new HashMap<Integer, MemoryBasedTrie>();
+    childrenTbl.put(symbol, child);
+    if (Vocabulary.nt(symbol)) nonterminalExtensions = true;
   }
 
   /* See Javadoc for Trie interface. */
@@ -0,0 +1,97 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.decoder.ff.tm.packed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only array of (big-endian) ints stored in a file. The file is either memory-mapped, so
+ * that the array takes no heap and its pages are shared by every process that maps it, or read
+ * onto the heap.
+ *
+ * A single mapping cannot exceed 2 GB, so larger files are mapped in segments of 2^28 ints. Since
+ * indices are ints, a file may hold up to 2^31 - 1 ints (8 GB).
+ *
+ * @author Matt Post <post@jhu.edu>
+ */
+final class MappedIntArray {
+
+  private static final int SEGMENT_BITS = 28;
+  private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+  /* The first segment, which for all but the largest files is the only one. */
+  private final IntBuffer first;
+  private final IntBuffer[] segments;
+  private final int length;
+
+  private MappedIntArray(IntBuffer[] segments, int length) {
+    this.segments = segments;
+    this.first = segments[0];
+    this.length = length;
+  }
+
+  /**
+   * Maps the ints in the file, starting with the int at the given (int) offset.
+   */
+  static MappedIntArray map(File file, int offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long ints = channel.size() / 4 - offset;
+      if (ints > Integer.MAX_VALUE)
+        throw new IOException(file + " holds more than " + Integer.MAX_VALUE + " ints");
+
+      int num_segments = Math.max(1, (int) ((ints + SEGMENT_MASK) >>> SEGMENT_BITS));
+      IntBuffer[] segments = new IntBuffer[num_segments];
+      for (int i = 0; i < num_segments; i++) {
+        long start = (long) i << SEGMENT_BITS;
+        long size = Math.min(ints - start, 1L << SEGMENT_BITS);
+        segments[i] =
+            channel.map(MapMode.READ_ONLY, 4 * (offset + start), 4 * size).asIntBuffer();
+      }
+      // the mappings stay valid after the file is closed
+      return new MappedIntArray(segments, (int) ints);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Reads the ints in the file, starting with the int at the given offset, onto the heap.
+   */
+  static MappedIntArray load(File file, int offset) throws IOException {
+    MappedIntArray mapped = map(file, offset);
+    if (mapped.segments.length > 1)
+      throw new IOException(file + " is too large to load onto the heap; map it instead");
+    int[] ints = new int[mapped.length];
+    mapped.first.get(ints);
+    return new MappedIntArray(new IntBuffer[] {IntBuffer.wrap(ints)}, ints.length);
+  }
+
+  int get(int index) {
+    if (index <= SEGMENT_MASK) return first.get(index);
+    return segments[index >>> SEGMENT_BITS].get(index & SEGMENT_MASK);
+  }
+
+  int length() {
+    return length;
+  }
+}
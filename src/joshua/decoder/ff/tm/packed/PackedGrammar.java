@@ -1,22 +1,20 @@
 package joshua.decoder.ff.tm.packed;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
 import joshua.corpus.Vocabulary;
@@ -118,6 +116,18 @@ public class PackedGrammar extends BatchGrammar {
     return root;
   }
 
+  /**
+   * Rather than sorting every trie node up front, which for a large grammar takes a long time, this
+   * only records the models to sort by. Each node's rules are then sorted the first time they are
+   * asked for, by whichever decoder thread gets there first.
+   */
+  @Override
+  public void sortGrammar(List<FeatureFunction> models) {
+    for (PackedSlice ps : slices)
+      ps.resetSorting(models);
+    setSorted(true);
+  }
+
   @Override
   public boolean hasRuleForSpan(int startIndex, int endIndex, int pathLength) {
     return (spanLimit == -1 || endIndex - startIndex <= spanLimit);
@@ -148,46 +158,58 @@ public class PackedGrammar extends BatchGrammar {
     return null;
   }
 
+  /**
+   * A node in the source trie of a slice. A node keeps only its position in the slice, a link to
+   * the node it extends and the symbol it extends it by, so matching a symbol does not copy the
+   * source side; the source side is built from the links the first time it is asked for. Since
+   * each position in a slice is reached by exactly one path, nodes can be (and are) shared through
+   * the slice's node cache.
+   */
   public class PackedTrie implements Trie, RuleCollection {
 
     private final PackedSlice grammar;
     private final int position;
 
-    private int[] src;
-    private int arity;
+    // the node this one extends (null for the root of a slice), and the symbol it extends it by
+    private final PackedTrie parent;
+    private final int symbol;
+    private final int depth;
+    private final int arity;
+
+    private volatile int[] src;
 
     private PackedTrie(PackedSlice grammar, int position) {
       this.grammar = grammar;
       this.position = position;
-      src = new int[0];
-      arity = 0;
+      this.parent = null;
+      this.symbol = 0;
+      this.depth = 0;
+      this.arity = 0;
+      this.src = new int[0];
     }
 
-    public PackedTrie(PackedSlice grammar, int position, int[] parent_src, int parent_arity,
-        int symbol) {
+    private PackedTrie(PackedSlice grammar, int position, PackedTrie parent, int symbol) {
       this.grammar = grammar;
       this.position = position;
-      src = new int[parent_src.length + 1];
-      System.arraycopy(parent_src, 0, src, 0, parent_src.length);
-      src[src.length - 1] = symbol;
-      arity = parent_arity;
-      if (Vocabulary.nt(symbol)) arity++;
+      this.parent = parent;
+      this.symbol = symbol;
+      this.depth = parent.depth + 1;
+      this.arity = Vocabulary.nt(symbol) ? parent.arity + 1 : parent.arity;
     }
 
     public final Trie match(int token_id) {
-      int num_children = grammar.source[position];
+      int num_children = grammar.source.get(position);
       if (num_children == 0) return null;
-      if (num_children == 1 && token_id == grammar.source[position + 1])
-        return new PackedTrie(grammar, grammar.source[position + 2], src, arity, token_id);
+      if (num_children == 1 && token_id == grammar.source.get(position + 1))
+        return grammar.node(this, grammar.source.get(position + 2), token_id);
       int top = 0;
       int bottom = num_children - 1;
       while (true) {
         int candidate = (top + bottom) / 2;
         int candidate_position = position + 1 + 2 * candidate;
-        int read_token = grammar.source[candidate_position];
+        int read_token = grammar.source.get(candidate_position);
         if (read_token == token_id) {
-          return new PackedTrie(grammar, grammar.source[candidate_position + 1], src, arity,
-              token_id);
+          return grammar.node(this, grammar.source.get(candidate_position + 1), token_id);
         } else if (top == bottom) {
           return null;
         } else if (read_token > token_id) {
@@ -241,93 +263,124 @@ public class PackedGrammar extends BatchGrammar {
     // }
 
     public boolean hasExtensions() {
-      return (grammar.source[position] != 0);
+      return (grammar.source.get(position) != 0);
+    }
+
+    /*
+     * Children are stored in descending order of their symbols, so the nonterminals (whose ids are
+     * negative) come last.
+     */
+    public boolean hasExtensionsIn(int[] terminals) {
+      int num_children = grammar.source.get(position);
+      if (num_children == 0) return false;
+      if (Vocabulary.nt(grammar.source.get(position + 1 + 2 * (num_children - 1)))) return true;
+
+      // look up whichever of the two is smaller in the other
+      if (terminals.length <= num_children) {
+        for (int terminal : terminals)
+          if (hasChild(terminal, num_children)) return true;
+      } else {
+        for (int i = 0; i < num_children; i++)
+          if (Arrays.binarySearch(terminals, grammar.source.get(position + 1 + 2 * i)) >= 0)
+            return true;
+      }
+      return false;
+    }
+
+    private boolean hasChild(int token_id, int num_children) {
+      int top = 0;
+      int bottom = num_children - 1;
+      while (top <= bottom) {
+        int candidate = (top + bottom) >>> 1;
+        int read_token = grammar.source.get(position + 1 + 2 * candidate);
+        if (read_token == token_id) return true;
+        if (read_token > token_id)
+          top = candidate + 1;
+        else
+          bottom = candidate - 1;
+      }
+      return false;
     }
 
     public Collection<? extends Trie> getExtensions() {
-      int num_children = grammar.source[position];
+      int num_children = grammar.source.get(position);
       ArrayList<PackedTrie> tries = new ArrayList<PackedTrie>(num_children);
 
       for (int i = 0; i < num_children; i++) {
-        int symbol = grammar.source[position + 1 + 2 * i];
-        int address = grammar.source[position + 2 + 2 * i];
-        tries.add(new PackedTrie(grammar, address, src, arity, symbol));
+        int symbol = grammar.source.get(position + 1 + 2 * i);
+        int address = grammar.source.get(position + 2 + 2 * i);
+        tries.add(grammar.node(this, address, symbol));
       }
 
       return tries;
     }
 
     public boolean hasRules() {
-      int num_children = grammar.source[position];
-      return (grammar.source[position + 1 + 2 * num_children] != 0);
+      int num_children = grammar.source.get(position);
+      return (grammar.source.get(position + 1 + 2 * num_children) != 0);
     }
 
     public RuleCollection getRuleCollection() {
       return this;
     }
 
+    /**
+     * Returns the rules in the order they are stored in the grammar, which is not sorted.
+     */
     public List<Rule> getRules() {
-      int num_children = grammar.source[position];
+      int num_children = grammar.source.get(position);
       int rule_position = position + 2 * (num_children + 1);
-      int num_rules = grammar.source[rule_position - 1];
+      int num_rules = grammar.source.get(rule_position - 1);
 
       ArrayList<Rule> rules = new ArrayList<Rule>(num_rules);
       for (int i = 0; i < num_rules; i++)
-        rules.add(grammar.assembleRule(rule_position + 3 * i, src, arity));
+        rules.add(grammar.assembleRule(rule_position + 3 * i, getSourceSide(), arity));
       return rules;
     }
 
     @Override
     public void sortRules(List<FeatureFunction> models) {
-      int num_children = grammar.source[position];
+      int num_children = grammar.source.get(position);
       int rule_position = position + 2 * (num_children + 1);
-      int num_rules = grammar.source[rule_position - 1];
-
-      Integer[] rules = new Integer[num_rules];
+      int num_rules = grammar.source.get(rule_position - 1);
 
-      int target_address;
-      int block_id;
-      for (int i = 0; i < num_rules; i++) {
-        target_address = grammar.source[rule_position + 1 + 3 * i];
-        rules[i] = rule_position + 2 + 3 * i;
-        block_id = grammar.source[rules[i]];
-
-        BilingualRule rule =
-            new BilingualRule(grammar.source[rule_position + 3 * i], src,
-                grammar.getTarget(target_address), grammar.getFeatures(block_id), arity, owner, 0,
-                rule_position + 3 * i);
-        grammar.cache[block_id] = rule.estimateRuleCost(models);
-      }
-
-      Arrays.sort(rules, new Comparator<Integer>() {
-        public int compare(Integer a, Integer b) {
-          float a_cost = grammar.cache[grammar.source[a]];
-          float b_cost = grammar.cache[grammar.source[b]];
-          if (a_cost == b_cost) return 0;
-          return (a_cost > b_cost ? 1 : -1);
-        }
-      });
-
-      int[] sorted = new int[3 * num_rules];
-      int j = 0;
-      for (int i = 0; i < rules.length; i++) {
-        int address = rules[i];
-        sorted[j++] = grammar.source[address - 2];
-        sorted[j++] = grammar.source[address - 1];
-        sorted[j++] = grammar.source[address];
-      }
-      for (int i = 0; i < sorted.length; i++)
-        grammar.source[rule_position + i] = sorted[i];
+      if (num_rules > 0) grammar.sortRules(rule_position, num_rules, getSourceSide(), arity, models);
     }
 
+    /**
+     * Returns the rules sorted by estimated cost. The rules are assembled lazily, as they are
+     * accessed, so a caller that only looks at the best few pays only for those.
+     */
     @Override
     public List<Rule> getSortedRules() {
-      return getRules();
+      int num_children = grammar.source.get(position);
+      int rule_position = position + 2 * (num_children + 1);
+      int num_rules = grammar.source.get(rule_position - 1);
+
+      if (num_rules == 0) return new ArrayList<Rule>(0);
+
+      int[] src = getSourceSide();
+      SortedRules sorted = grammar.getSortedRules(rule_position, num_rules, src, arity);
+      return new SortedRuleList(grammar, rule_position, src, arity, sorted);
     }
 
+    /**
+     * Returns the source side, building it from the parent links on first use. Two threads may both
+     * build it, but they build equal arrays.
+     */
     @Override
     public int[] getSourceSide() {
-      return src;
+      int[] side = src;
+      if (side == null) {
+        side = new int[depth];
+        PackedTrie node = this;
+        for (int i = depth - 1; i >= 0; i--) {
+          side[i] = node.symbol;
+          node = node.parent;
+        }
+        src = side;
+      }
+      return side;
     }
 
     @Override
@@ -339,14 +392,18 @@ public class PackedGrammar extends BatchGrammar {
   public final class PackedRoot implements Trie {
 
     private HashMap<Integer, PackedSlice> lookup;
+    private boolean nonterminalExtensions = false;
 
     public PackedRoot(PackedGrammar grammar) {
       lookup = new HashMap<Integer, PackedSlice>();
 
       for (PackedSlice ps : grammar.slices) {
-        int num_children = ps.source[0];
-        for (int i = 0; i < num_children; i++)
-          lookup.put(ps.source[2 * i + 1], ps);
+        int num_children = ps.source.get(0);
+        for (int i = 0; i < num_children; i++) {
+          int symbol = ps.source.get(2 * i + 1);
+          lookup.put(symbol, ps);
+          if (Vocabulary.nt(symbol)) nonterminalExtensions = true;
+        }
       }
     }
 
@@ -354,8 +411,7 @@ public class PackedGrammar extends BatchGrammar {
     public Trie match(int word_id) {
       PackedSlice ps = lookup.get(word_id);
       if (ps != null) {
-        PackedTrie trie = new PackedTrie(ps, 0);
-        return trie.match(word_id);
+        return ps.root.match(word_id);
       }
       return null;
     }
@@ -365,6 +421,14 @@ public class PackedGrammar extends BatchGrammar {
       return !lookup.isEmpty();
     }
 
+    @Override
+    public boolean hasExtensionsIn(int[] terminals) {
+      if (nonterminalExtensions) return true;
+      for (int terminal : terminals)
+        if (lookup.containsKey(terminal)) return true;
+      return false;
+    }
+
     @Override
     public Collection<? extends Trie> getExtensions() {
       ArrayList<Trie> tries = new ArrayList<Trie>();
@@ -387,16 +451,27 @@ public class PackedGrammar extends BatchGrammar {
   public final class PackedSlice {
     private final String name;
 
-    private final int[] source;
+    private final MappedIntArray source;
 
-    private final int[] target;
+    private final MappedIntArray target;
     private final int[] targetLookup;
 
     private MappedByteBuffer features;
     int featureSize;
     private int[] featureLookup;
 
-    private float[] cache;
+    /*
+     * The models the rules are sorted by, and the sorted rules of each trie node that has been
+     * sorted so far. Both are replaced together (with a new Sorting) when the models change.
+     */
+    private volatile Sorting sorting;
+
+    // the root of the source trie, and the nodes below it matched recently
+    private final PackedTrie root;
+    private final AtomicReferenceArray<PackedTrie> nodes;
+
+    // target sides decoded recently, by address
+    private final AtomicReferenceArray<TargetSide> targets;
 
     public PackedSlice(String prefix) throws IOException {
       name = prefix;
@@ -406,52 +481,109 @@ public class PackedGrammar extends BatchGrammar {
       File target_lookup_file = new File(prefix + ".target.lookup");
       File feature_file = new File(prefix + ".features");
 
-      // Get the channels etc.
-      FileChannel source_channel = new FileInputStream(source_file).getChannel();
-      int source_size = (int) source_channel.size();
-
-      FileChannel target_channel = new FileInputStream(target_file).getChannel();
-      int target_size = (int) target_channel.size();
+      // Unless asked to load them onto the heap, the source and target tries are read straight
+      // from the mapped files.
+      if (JoshuaConfiguration.packed_grammar_in_heap) {
+        source = MappedIntArray.load(source_file, 0);
+        target = MappedIntArray.load(target_file, 0);
+      } else {
+        source = MappedIntArray.map(source_file, 0);
+        target = MappedIntArray.map(target_file, 0);
+      }
 
       FileChannel feature_channel = new RandomAccessFile(feature_file, "r").getChannel();
       int feature_size = (int) feature_channel.size();
 
-      IntBuffer source_buffer = source_channel.map(MapMode.READ_ONLY, 0, source_size).asIntBuffer();
-      source = new int[source_size / 4];
-      source_buffer.get(source);
-
-      IntBuffer target_buffer = target_channel.map(MapMode.READ_ONLY, 0, target_size).asIntBuffer();
-      target = new int[target_size / 4];
-      target_buffer.get(target);
-
       features = feature_channel.map(MapMode.READ_ONLY, 0, feature_size);
       features.load();
 
       int num_blocks = features.getInt(0);
       featureLookup = new int[num_blocks];
-      cache = new float[num_blocks];
+      sorting = new Sorting(null, num_blocks);
       featureSize = features.getInt(4);
       for (int i = 0; i < num_blocks; i++)
         featureLookup[i] = features.getInt(8 + 4 * i);
 
-      DataInputStream target_lookup_stream =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(target_lookup_file)));
-      targetLookup = new int[target_lookup_stream.readInt()];
+      // The lookup (a count followed by one offset per target length) is tiny, so it is copied.
+      MappedIntArray target_lookup = MappedIntArray.map(target_lookup_file, 0);
+      targetLookup = new int[target_lookup.get(0)];
       for (int i = 0; i < targetLookup.length; i++)
-        targetLookup[i] = target_lookup_stream.readInt();
+        targetLookup[i] = target_lookup.get(i + 1);
+
+      root = new PackedTrie(this, 0);
+      nodes = createCache(JoshuaConfiguration.packed_trie_cache);
+      targets = createCache(JoshuaConfiguration.packed_target_cache);
+    }
+
+    /*
+     * Creates a cache with at least the given number of slots (rounded up to a power of two), or
+     * returns null if the size is 0.
+     */
+    private <T> AtomicReferenceArray<T> createCache(int size) {
+      if (size <= 0) return null;
+      int capacity = 1;
+      while (capacity < size)
+        capacity <<= 1;
+      return new AtomicReferenceArray<T>(capacity);
+    }
+
+    private int cacheSlot(AtomicReferenceArray<?> cache, int address) {
+      int hash = address * 0x9e3779b9;
+      return (hash ^ (hash >>> 16)) & (cache.length() - 1);
+    }
+
+    /**
+     * Returns the node at the given position, which extends the parent by the symbol. The node is
+     * taken from the cache if it is there, and otherwise created and cached, replacing whichever
+     * node held its slot.
+     */
+    final PackedTrie node(PackedTrie parent, int position, int symbol) {
+      if (nodes == null) return new PackedTrie(this, position, parent, symbol);
+
+      int slot = cacheSlot(nodes, position);
+      PackedTrie node = nodes.get(slot);
+      if (node == null || node.position != position) {
+        node = new PackedTrie(this, position, parent, symbol);
+        nodes.set(slot, node);
+      }
+      return node;
     }
 
+    /**
+     * Returns the target side at the given address. Target sides are shared between the rules
+     * that have them, so the array must not be modified.
+     */
     final int[] getTarget(int pointer) {
-      // Figure out level.
-      int tgt_length = 1;
-      while (tgt_length < (targetLookup.length + 1) && targetLookup[tgt_length] <= pointer)
-        tgt_length++;
+      if (targets == null) return readTarget(pointer);
+
+      int slot = cacheSlot(targets, pointer);
+      TargetSide cached = targets.get(slot);
+      if (cached != null && cached.address == pointer) return cached.words;
+
+      int[] tgt = readTarget(pointer);
+      targets.set(slot, new TargetSide(pointer, tgt));
+      return tgt;
+    }
+
+    private int[] readTarget(int pointer) {
+      // The level of the node, which is its length, is the number of levels that end at or
+      // before it. (The root, the only node on level 0, is not a word.)
+      int bottom = 1;
+      int top = targetLookup.length;
+      while (bottom < top) {
+        int candidate = (bottom + top) >>> 1;
+        if (targetLookup[candidate] <= pointer)
+          bottom = candidate + 1;
+        else
+          top = candidate;
+      }
+      int tgt_length = bottom;
       int[] tgt = new int[tgt_length];
       int index = 0;
       int parent;
       do {
-        parent = target[pointer];
-        if (parent != -1) tgt[index++] = target[pointer + 1];
+        parent = target.get(pointer);
+        if (parent != -1) tgt[index++] = target.get(pointer + 1);
         pointer = parent;
       } while (pointer != -1);
       return tgt;
@@ -476,18 +608,159 @@ public class PackedGrammar extends BatchGrammar {
     }
 
     final Rule assembleRule(int address, int[] src, int arity) {
-      int lhs = source[address];
-      int tgt_address = source[address + 1];
-      int data_block = source[address + 2];
-      BilingualRule rule =
-          new BilingualRule(lhs, src, getTarget(tgt_address), getFeatures(data_block), arity,
-              owner, 0, address);
-      if (cache[data_block] != Float.NEGATIVE_INFINITY) rule.setEstCost(cache[data_block]);
-      return rule;
+      int lhs = source.get(address);
+      int tgt_address = source.get(address + 1);
+      int data_block = source.get(address + 2);
+      return new BilingualRule(lhs, src, getTarget(tgt_address), getFeatures(data_block), arity,
+          owner, 0, address);
+    }
+
+    final void resetSorting(List<FeatureFunction> models) {
+      sorting = new Sorting(models, featureLookup.length);
+    }
+
+    /**
+     * Returns the sorted order of the num_rules rules stored at rule_position, sorting them if no
+     * thread has done so yet.
+     */
+    final SortedRules getSortedRules(int rule_position, int num_rules, int[] src, int arity) {
+      Sorting current = sorting;
+      // A node is identified by the data block of its first rule, which is unique to it.
+      SortedRules sorted = current.nodes.get(source.get(rule_position + 2));
+      if (sorted == null) sorted = sort(current, rule_position, num_rules, src, arity);
+      return sorted;
+    }
+
+    final void sortRules(int rule_position, int num_rules, int[] src, int arity,
+        List<FeatureFunction> models) {
+      Sorting current = sorting;
+      if (current.models != models) {
+        current = new Sorting(models, featureLookup.length);
+        sorting = current;
+      }
+      sort(current, rule_position, num_rules, src, arity);
+    }
+
+    /*
+     * Sorts the rules by their estimated cost (ties keep their stored order) and publishes the
+     * result. Threads that race to sort the same node compute the same order, so it does not matter
+     * whose result is kept.
+     */
+    private SortedRules sort(Sorting current, int rule_position, int num_rules, int[] src,
+        int arity) {
+      float[] costs = new float[num_rules];
+      // the cost (as an order-preserving int) in the high bits, the rule's index in the low bits
+      long[] keys = new long[num_rules];
+      for (int i = 0; i < num_rules; i++) {
+        int address = rule_position + 3 * i;
+        BilingualRule rule =
+            new BilingualRule(source.get(address), src, getTarget(source.get(address + 1)),
+                getFeatures(source.get(address + 2)), arity, owner, 0, address);
+        costs[i] = rule.estimateRuleCost(current.models);
+        keys[i] = ((long) sortableBits(costs[i]) << 32) | i;
+      }
+      Arrays.sort(keys);
+
+      SortedRules sorted = new SortedRules(num_rules);
+      for (int i = 0; i < num_rules; i++) {
+        sorted.order[i] = (int) keys[i];
+        sorted.costs[i] = costs[sorted.order[i]];
+      }
+      current.nodes.set(source.get(rule_position + 2), sorted);
+      return sorted;
     }
 
     public String toString() {
       return name;
     }
   }
+
+  /*
+   * Maps a float to an int with the same ordering. Negative zero is first turned into zero, so
+   * that the two compare equal, as they do as floats.
+   */
+  private static int sortableBits(float value) {
+    int bits = Float.floatToIntBits(value + 0.0f);
+    return bits ^ ((bits >> 31) & 0x7fffffff);
+  }
+
+  /**
+   * A read-only view of a trie node's rules in sorted order, which assembles each rule the first
+   * time it is asked for and keeps it. A list is not shared between threads.
+   */
+  private static final class SortedRuleList extends AbstractList<Rule> implements RandomAccess {
+    private final PackedSlice grammar;
+    private final int rule_position;
+    private final int[] src;
+    private final int arity;
+    private final SortedRules sorted;
+    private final Rule[] rules;
+
+    SortedRuleList(PackedSlice grammar, int rule_position, int[] src, int arity,
+        SortedRules sorted) {
+      this.grammar = grammar;
+      this.rule_position = rule_position;
+      this.src = src;
+      this.arity = arity;
+      this.sorted = sorted;
+      this.rules = new Rule[sorted.order.length];
+    }
+
+    @Override
+    public Rule get(int i) {
+      Rule rule = rules[i];
+      if (rule == null) {
+        rule = grammar.assembleRule(rule_position + 3 * sorted.order[i], src, arity);
+        rule.setEstCost(sorted.costs[i]);
+        rules[i] = rule;
+      }
+      return rule;
+    }
+
+    @Override
+    public int size() {
+      return rules.length;
+    }
+  }
+
+  /**
+   * The rules of one trie node in sorted order: the i-th best rule is the order[i]-th one stored at
+   * the node, and its estimated cost is costs[i]. Fully built before it is published.
+   */
+  private static final class SortedRules {
+    final int[] order;
+    final float[] costs;
+
+    SortedRules(int num_rules) {
+      order = new int[num_rules];
+      costs = new float[num_rules];
+    }
+  }
+
+  /**
+   * The sorted rules of a slice's trie nodes, indexed by the data block of each node's first rule,
+   * along with the models they were sorted by.
+   */
+  private static final class Sorting {
+    final List<FeatureFunction> models;
+    final AtomicReferenceArray<SortedRules> nodes;
+
+    Sorting(List<FeatureFunction> models, int num_blocks) {
+      this.models = models;
+      this.nodes = new AtomicReferenceArray<SortedRules>(num_blocks);
+    }
+  }
+
+  /**
+   * A decoded target side and the address it was read from.
+   */
+  private static final class TargetSide {
+    final int address;
+    final int[] words;
+
+    TargetSide(int address, int[] words) {
+      this.address = address;
+      this.words = words;
+    }
+  }
 }
@@ -25,7 +25,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -295,8 +294,8 @@ public class DiskHyperGraph {
         .append(ITEM_STATE_TAG)
         .append(
         // Assume LM is the only stateful feature
-            null != item.getDPStates() ? item.getDPStates().get(this.LMFeatureID)
-                .getSignature(true) : NULL_ITEM_STATE).append("\n").toString());
+            null != item.getDPStates() ? item.getDPState(this.LMFeatureID).getSignature(true)
+                : NULL_ITEM_STATE).append("\n").toString());
 
     if (null != item.hyperedges) {
       for (HyperEdge hyperEdge : item.hyperedges) {
@@ -445,12 +444,12 @@ public class DiskHyperGraph {
     int qtyDeductions = Integer.parseInt(words[5]);
 
     // item state: signature (created from HashMap tbl_states)
-    TreeMap<Integer, DPState> dpStates = null;
+    DPState[] dpStates = null;
 
     if (fds[1].compareTo(NULL_ITEM_STATE) != 0) {
       // Assume the only stateful feature is lm feature
-      dpStates = new TreeMap<Integer, DPState>();
-      dpStates.put(this.LMFeatureID, new NgramDPState(fds[1]));
+      dpStates = new DPState[this.LMFeatureID + 1];
+      dpStates[this.LMFeatureID] = new NgramDPState(fds[1]);
     }
 
     List<HyperEdge> edges = null;
@@ -16,11 +16,9 @@
 package joshua.decoder.hypergraph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.logging.Level;
 
 import joshua.decoder.chart_parser.Prunable;
@@ -48,9 +46,9 @@ public class HGNode implements Prunable<HGNode> {
   public HyperEdge bestHyperedge = null;
 
 
-  // the key is the state id; remember the state required by each model, for example, edge-ngrams
-  // for LM model
-  TreeMap<Integer, DPState> dpStates;
+  // indexed by state id (null where there is no state with that id); remember the state required
+  // by each model, for example, edge-ngrams for LM model
+  DPState[] dpStates;
 
 
   // ============== auxiluary variables, no need to store on disk
@@ -58,6 +56,9 @@ public class HGNode implements Prunable<HGNode> {
   private String signature = null;
   // seperator for the signature for each state
   private static final String STATE_SIG_SEP = " -f- ";
+  // packed signature of this item (see getPackedSignature()) and its hash
+  private int[] packedSignature = null;
+  private long signatureHash = 0;
 
   // ============== for pruning purpose
   public boolean isDead = false;
@@ -68,7 +69,7 @@ public class HGNode implements Prunable<HGNode> {
   // Constructors
   // ===============================================================
 
-  public HGNode(int i, int j, int lhs, TreeMap<Integer, DPState> dpStates, HyperEdge initHyperedge,
+  public HGNode(int i, int j, int lhs, DPState[] dpStates, HyperEdge initHyperedge,
       double estTotalLogP) {
     this.i = i;
     this.j = j;
@@ -81,7 +82,7 @@ public class HGNode implements Prunable<HGNode> {
 
   // used by disk hg
   public HGNode(int i, int j, int lhs, List<HyperEdge> hyperedges, HyperEdge bestHyperedge,
-      TreeMap<Integer, DPState> states) {
+      DPState[] states) {
     this.i = i;
     this.j = j;
     this.lhs = lhs;
@@ -119,16 +120,16 @@ public class HGNode implements Prunable<HGNode> {
   }
 
 
-  public TreeMap<Integer, DPState> getDPStates() {
+  public DPState[] getDPStates() {
     return dpStates;
   }
 
 
   public DPState getDPState(int stateID) {
-    if (null == this.dpStates) {
+    if (null == this.dpStates || stateID < 0 || stateID >= this.dpStates.length) {
       return null;
     } else {
-      return this.dpStates.get(stateID);
+      return this.dpStates[stateID];
     }
   }
 
@@ -147,12 +148,13 @@ public class HGNode implements Prunable<HGNode> {
       s.append(lhs);
       s.append(" ");
 
-      if (null != this.dpStates && this.dpStates.size() > 0) {
-        Iterator<Map.Entry<Integer, DPState>> it = this.dpStates.entrySet().iterator();
-        while (it.hasNext()) {
-          Map.Entry<Integer, DPState> entry = it.next();
-          s.append(entry.getValue().getSignature(false));
-          if (it.hasNext()) s.append(STATE_SIG_SEP);
+      if (null != this.dpStates) {
+        boolean first = true;
+        for (DPState state : this.dpStates) {
+          if (state == null) continue;
+          if (!first) s.append(STATE_SIG_SEP);
+          s.append(state.getSignature(false));
+          first = false;
         }
       }
 
@@ -162,6 +164,68 @@ public class HGNode implements Prunable<HGNode> {
     return this.signature;
   }
 
+  /**
+   * Returns the signature of this item as an array of integers: the lhs, followed by the length and
+   * contents of the packed signature of each state. Two items have the same packed signature
+   * exactly when they have the same string signature.
+   */
+  public int[] getPackedSignature() {
+    if (null == this.packedSignature) {
+      int[][] stateSigs = null;
+      int length = 1;
+
+      if (null != this.dpStates) {
+        stateSigs = new int[this.dpStates.length][];
+        for (int k = 0; k < this.dpStates.length; k++) {
+          if (this.dpStates[k] == null) continue;
+          stateSigs[k] = this.dpStates[k].getPackedSignature();
+          length += 1 + stateSigs[k].length;
+        }
+      }
+
+      int[] packed = new int[length];
+      int pos = 0;
+      packed[pos++] = lhs;
+      if (null != stateSigs) {
+        for (int[] stateSig : stateSigs) {
+          if (stateSig == null) continue;
+          packed[pos++] = stateSig.length;
+          System.arraycopy(stateSig, 0, packed, pos, stateSig.length);
+          pos += stateSig.length;
+        }
+      }
+
+      long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a over the ints
+      for (int value : packed)
+        hash = (hash ^ value) * 0x100000001b3L;
+
+      this.signatureHash = hash;
+      this.packedSignature = packed;
+    }
+
+    return this.packedSignature;
+  }
+
+
+  /**
+   * Returns a 64-bit hash of the packed signature.
+   */
+  public long getSignatureHash() {
+    getPackedSignature();
+    return this.signatureHash;
+  }
+
+
+  /**
+   * Whether this item and the other one have the same signature (and so should be recombined).
+   */
+  public boolean hasSameSignature(HGNode other) {
+    return this == other
+        || (getSignatureHash() == other.getSignatureHash() && Arrays.equals(
+            getPackedSignature(), other.getPackedSignature()));
+  }
+
+
   public void releaseDPStatesMemory() {
     dpStates = null;
   }
@@ -17,7 +17,6 @@ package joshua.decoder.hypergraph;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import joshua.decoder.ff.state_maintenance.DPState;
@@ -74,7 +73,7 @@ public class HyperGraph {
     int goalI = hg1.goalNode.i;
     int goalJ = hg1.goalNode.j;
     int goalLHS = hg1.goalNode.lhs;
-    TreeMap<Integer, DPState> goalDPStates = null;
+    DPState[] goalDPStates = null;
     double goalEstTotalLogP = -1;
     HGNode newGoalNode = new HGNode(goalI, goalJ, goalLHS, goalDPStates, null, goalEstTotalLogP);;
 
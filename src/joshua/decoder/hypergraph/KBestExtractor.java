@@ -20,7 +20,11 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Formatter;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
@@ -31,9 +35,7 @@ import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.chart_parser.ComputeNodeResult;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.tm.Rule;
-import joshua.util.CoIterator;
 import joshua.util.Regex;
-import joshua.util.io.UncheckedIOException;
 
 /**
  * This class implements lazy k-best extraction on a hyper-graph. To seed the kbest extraction, it
@@ -70,6 +72,21 @@ public class KBestExtractor {
 
   private int sentID;
 
+  /*
+   * The hypothesis being formatted (and a formatter writing to it), the numeric tree it is built
+   * from in tree format, and its model costs. All are reused from one hypothesis to the next.
+   */
+  private final StringBuilder hyp = new StringBuilder();
+  private final Formatter formatter = new Formatter(hyp);
+  private final StringBuilder numericHyp = new StringBuilder();
+  private double[] modelCost = null;
+
+  /*
+   * The model costs of each hyperedge, which are the same for every hypothesis that uses it.
+   */
+  private final IdentityHashMap<HyperEdge, double[]> edgeCostsTbl =
+      new IdentityHashMap<HyperEdge, double[]>();
+
   public KBestExtractor(boolean extractUniqueNbest, boolean extractNbestTree, boolean includeAlign,
       boolean addCombinedScore, boolean isMonolingual, boolean performSanityCheck) {
     rootID = Vocabulary.id(rootSym);
@@ -89,24 +106,67 @@ public class KBestExtractor {
   // time
   public String getKthHyp(HGNode it, int k, int sentID, List<FeatureFunction> models,
       int[] numNodesAndEdges) {
+    if (formatKthHyp(it, k, sentID, models, numNodesAndEdges))
+      return hyp.toString();
+    else
+      return null;
+  }
+
+  /*
+   * Formats the k-th hypothesis into hyp, replacing what was there. Returns false if there is no
+   * k-th hypothesis.
+   */
+  private boolean formatKthHyp(HGNode it, int k, int sentID, List<FeatureFunction> models,
+      int[] numNodesAndEdges) {
 
     this.sentID = sentID;
+    hyp.setLength(0);
+    if (sentID >= 0) { // valid sent id must be >=0
+      hyp.append(sentID);
+      hyp.append(" ||| ");
+    }
+
+    DerivationState cur = appendKthWords(it, k, models, numNodesAndEdges);
+    if (cur == null) return false;
+
+    appendCosts(cur, models, models == null ? null : modelCost);
+    return true;
+  }
+
+  /*
+   * Appends the words (or the tree) of the k-th hypothesis to hyp and, unless models is null, puts
+   * its cost under each model in modelCost. Returns the hypothesis, or null if there is no k-th
+   * hypothesis.
+   */
+  private DerivationState appendKthWords(HGNode it, int k, List<FeatureFunction> models,
+      int[] numNodesAndEdges) {
+
     VirtualNode virtualNode = addVirtualNode(it);
 
     // ==== setup the kbest at each hgnode
     DerivationState cur = virtualNode.lazyKBestExtractOnNode(this, k);
-    if (cur == null)
-      return null;
-    else {
-      // ==== read the kbest from each hgnode and convert to output format
-      double[] modelCost = null;
-      if (models != null) modelCost = new double[models.size()];
-      String strHypNumeric =
-          cur.getHypothesis(this, extractNbestTree, modelCost, models, numNodesAndEdges);
-      // for(int k=0; k<model_cost.length; k++) System.out.println(model_cost[k]);
-      String strHypStr = convertHyp2String(sentID, cur, models, strHypNumeric, modelCost);
-      return strHypStr;
+    if (cur == null) return null;
+
+    // ==== read the kbest from each hgnode and convert to output format
+    double[] modelCost = null;
+    if (models != null) {
+      if (this.modelCost == null || this.modelCost.length != models.size())
+        this.modelCost = new double[models.size()];
+      modelCost = this.modelCost;
+      Arrays.fill(modelCost, 0.0);
+    }
+
+    if (extractNbestTree) {
+      numericHyp.setLength(0);
+      cur.appendHypothesis(this, numericHyp, true, false, modelCost, models, numNodesAndEdges);
+      appendTreeWords(numericHyp, hyp);
+    } else {
+      // the words are written directly, each followed by a space
+      int start = hyp.length();
+      cur.appendHypothesis(this, hyp, false, true, modelCost, models, numNodesAndEdges);
+      if (hyp.length() > start) hyp.setLength(hyp.length() - 1);
     }
+    return cur;
   }
 
   // ================= extract kbest into trivial kbest hypergraphs
@@ -194,19 +254,24 @@ public class KBestExtractor {
   public void lazyKBestExtractOnHG(HyperGraph hg, List<FeatureFunction> models, int topN,
       int sentID, final List<String> out) {
 
-    CoIterator<String> coIt = new CoIterator<String>() {
-
-      public void coNext(String hypStr) {
-        out.add(hypStr);
-      }
+    this.sentID = sentID;
+    resetState();
 
-      public void finish() {}
-    };
+    if (null == hg.goalNode) return;
 
-    this.lazyKBestExtractOnHG(hg, models, topN, sentID, coIt);
+    for (int nextN = 1;; nextN++) {
+      if (!formatKthHyp(hg.goalNode, nextN, sentID, models, null)) break;
+      out.add(hyp.toString());
+      if (nextN >= topN) break;
+    }
   }
 
 
+  /**
+   * Writes the hypotheses to the writer (or standard output, if it is null) as they are extracted.
+   * Each one is formatted in a buffer that is reused for the whole list, and the writer is only
+   * flushed at the end.
+   */
   public void lazyKBestExtractOnHG(HyperGraph hg, List<FeatureFunction> models, int topN,
       int sentID, BufferedWriter out) throws IOException {
 
@@ -217,79 +282,70 @@ public class KBestExtractor {
       writer = out;
     }
 
-    try {
-
-      CoIterator<String> coIt = new CoIterator<String>() {
-        public void coNext(String hypStr) {
-          try {
-            writer.write(hypStr);
-            writer.write("\n");
-            writer.flush();
-          } catch (IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        }
-
-        public void finish() {}
-      };
+    this.sentID = sentID;
+    resetState();
 
-      this.lazyKBestExtractOnHG(hg, models, topN, sentID, coIt);
-    } catch (UncheckedIOException e) {
-      e.throwCheckedException();
+    if (null != hg.goalNode) {
+      char[] chars = new char[256];
+      for (int nextN = 1;; nextN++) {
+        if (!formatKthHyp(hg.goalNode, nextN, sentID, models, null)) break;
+
+        // copy out the characters rather than building a String for each hypothesis
+        if (chars.length < hyp.length()) chars = new char[2 * hyp.length()];
+        hyp.getChars(0, hyp.length(), chars, 0);
+        writer.write(chars, 0, hyp.length());
+        writer.write('\n');
+        if (nextN >= topN) break;
+      }
     }
+    writer.flush();
   }
 
 
-  private void lazyKBestExtractOnHG(HyperGraph hg, List<FeatureFunction> featureFunctions,
-      int topN, int sentID, CoIterator<String> coit) {
+  /**
+   * Extracts the top n hypotheses into the list as objects, each with its words and its value under
+   * each of the (non-null) models: the negated model cost, as in the n-best list but not rounded.
+   * This is for callers, such as MERT, that would otherwise parse them back out of the n-best list.
+   */
+  public void lazyKBestExtractOnHG(HyperGraph hg, List<FeatureFunction> models, int topN,
+      List<Hypothesis> out) {
 
-    this.sentID = sentID;
+    this.sentID = -1;
     resetState();
 
     if (null == hg.goalNode) return;
 
-    // VirtualItem virtual_goal_item = add_virtual_item(hg.goal_item);
-    try {
-      int nextN = 0;
-      while (true) {
-        String hypStr = getKthHyp(hg.goalNode, ++nextN, sentID, featureFunctions, null);
-        if (hypStr != null) coit.coNext(hypStr);
+    for (int nextN = 1; nextN <= topN; nextN++) {
+      hyp.setLength(0);
+      DerivationState cur = appendKthWords(hg.goalNode, nextN, models, null);
+      if (cur == null) break;
+      checkCost(cur, models, modelCost);
 
-        if (null == hypStr || nextN >= topN) break;
-      }
-      // g_time_kbest_extract += System.currentTimeMillis()-start;
-    } finally {
-      coit.finish();
+      double[] features = new double[modelCost.length];
+      for (int k = 0; k < features.length; k++)
+        features[k] = -modelCost[k];
+      out.add(new Hypothesis(hyp.toString(), features));
     }
   }
 
 
   public void resetState() {
     virtualNodesTbl.clear();
+    edgeCostsTbl.clear();
   }
 
 
   /*
-   * non-recursive function format: sent_id ||| hyp ||| individual model cost ||| combined cost
-   * sent_id<0: do not add sent_id l_models==null: do not add model cost add_combined_score==f: do
-   * not add combined model cost
+   * Converts the numeric tree (from appendHypothesis()) to words, and appends it to the builder.
    */
-  private String convertHyp2String(int sentID, DerivationState cur, List<FeatureFunction> models,
-      String strHypNumeric, double[] modelCost) {
-    String[] tem = Regex.spaces.split(strHypNumeric);
-    StringBuffer strHyp = new StringBuffer();
-
-    // ####sent id
-    if (sentID >= 0) { // valid sent id must be >=0
-      strHyp.append(sentID);
-      strHyp.append(" ||| ");
-    }
+  private void appendTreeWords(CharSequence strHypNumeric, StringBuilder strHyp) {
+    String[] tem = Regex.spaces.split(strHypNumeric.toString());
 
     // TODO: consider_start_sym
     // ####hyp words
     for (int t = 0; t < tem.length; t++) {
       tem[t] = tem[t].trim();
-      if (extractNbestTree && (tem[t].startsWith("(") || tem[t].endsWith(")"))) { // tree tag
+      if (tem[t].startsWith("(") || tem[t].endsWith(")")) { // tree tag
         if (tem[t].startsWith("(")) {
           if (includeAlign) {
             // we must account for the {i-j} substring
@@ -322,49 +378,63 @@ public class KBestExtractor {
       }
     }
 
+  }
+
+
+  /*
+   * non-recursive function format: ||| individual model cost ||| combined cost, appended to hyp;
+   * l_models==null: do not add model cost; add_combined_score==f: do not add combined model cost
+   */
+  private void appendCosts(DerivationState cur, List<FeatureFunction> models, double[] modelCost) {
     // ####individual model cost, and final transition cost
     if (null != modelCost) {
-      strHyp.append(" |||");
-      double temSum = 0.0;
+      hyp.append(" |||");
       for (int k = 0; k < modelCost.length; k++) {
-        strHyp.append(String.format(" %.3f", -modelCost[k]));
-        temSum += modelCost[k] * models.get(k).getWeight();
-
-        // System.err.println("tem_sum: " + tem_sum + " += " + model_cost[k] + " * " +
-        // l_models.get(k).getWeight());
-      }
-
-      int x = 0;
-      x++;
-
-      // sanity check
-      // if (false) {
-      if (performSanityCheck) {
-        if (Math.abs(cur.cost - temSum) > 1e-2) {
-          StringBuilder error = new StringBuilder();
-          error.append("\nIn nbest extraction, Cost does not match; cur.cost: " + cur.cost
-              + "; temsum: " + temSum + "\n");
-          // System.out.println("In nbest extraction, Cost does not match; cur.cost: " + cur.cost +
-          // "; temsum: " +tem_sum);
-          for (int k = 0; k < modelCost.length; k++) {
-            error.append("model weight: " + models.get(k).getWeight() + "; cost: " + modelCost[k]
-                + "\n");
-            // System.out.println("model weight: " + l_models.get(k).getWeight() + "; cost: "
-            // +model_cost[k]);
-          }
-          throw new RuntimeException(error.toString());
-        }
+        formatter.format(" %.3f", -modelCost[k]);
       }
+      checkCost(cur, models, modelCost);
     }
 
     // ####combined model cost
     if (addCombinedScore) {
-      strHyp.append(String.format(" ||| %.3f", -cur.cost));
+      formatter.format(" ||| %.3f", -cur.cost);
     }
 
     // System.err.println("Writing hyp");
+  }
+
+
+  /*
+   * Checks (if performSanityCheck is set) that the model costs, weighted, add up to the cost of the
+   * hypothesis.
+   */
+  private void checkCost(DerivationState cur, List<FeatureFunction> models, double[] modelCost) {
+    double temSum = 0.0;
+    for (int k = 0; k < modelCost.length; k++) {
+      temSum += modelCost[k] * models.get(k).getWeight();
+
+      // System.err.println("tem_sum: " + tem_sum + " += " + model_cost[k] + " * " +
+      // l_models.get(k).getWeight());
+    }
 
-    return strHyp.toString();
+    // sanity check
+    // if (false) {
+    if (performSanityCheck) {
+      if (Math.abs(cur.cost - temSum) > 1e-2) {
+        StringBuilder error = new StringBuilder();
+        error.append("\nIn nbest extraction, Cost does not match; cur.cost: " + cur.cost
+            + "; temsum: " + temSum + "\n");
+        // System.out.println("In nbest extraction, Cost does not match; cur.cost: " + cur.cost +
+        // "; temsum: " +tem_sum);
+        for (int k = 0; k < modelCost.length; k++) {
+          error.append("model weight: " + models.get(k).getWeight() + "; cost: " + modelCost[k]
+              + "\n");
+          // System.out.println("model weight: " + l_models.get(k).getWeight() + "; cost: "
+          // +model_cost[k]);
+        }
+        throw new RuntimeException(error.toString());
+      }
+    }
   }
 
 
@@ -402,11 +472,11 @@ public class KBestExtractor {
                                                                            // the paper is: D(^) [v]
     private PriorityQueue<DerivationState> candHeap = null; // remember frontier states, best-first;
                                                             // in the paper, it is called cand[v]
-    private HashMap<String, Integer> derivationTbl = null; // rememeber which DerivationState has
+    private HashSet<DerivationState> derivationTbl = null; // rememeber which DerivationState has
                                                            // been explored; why duplicate, e.g., 1
                                                            // 2 + 1 0 == 2 1 + 0 1
-    private HashMap<String, Integer> nbestStrTbl = null; // reember unique *string* at each item,
-                                                         // used for unique-nbest-string extraction
+    private HashSet<Long> nbestYieldTbl = null; // remember the yield hash of each unique *string*
+                                                // at each item, used for unique-nbest extraction
     HGNode pNode = null;
 
     public VirtualNode(HGNode it) {
@@ -431,16 +501,14 @@ public class KBestExtractor {
           // derivation_tbl.remove(res.get_signature());//TODO: should remove? note that two state
           // may be tied because the cost is the same
           if (extractUniqueNbest) {
-            boolean useTreeFormat = false;
-            String res_str = res.getHypothesis(kbestExtator, useTreeFormat, null, null, null);
-            // We pass false for extract_nbest_tree because we want;
+            // We compare the hashes of the yields because we want
             // to check that the hypothesis *strings* are unique,
             // not the trees.
             // @todo zhifei: this causes trouble to monolingual grammar as there is only one
             // *string*, need to fix it
-            if (!nbestStrTbl.containsKey(res_str)) {
+            res.computeYieldHash(kbestExtator);
+            if (nbestYieldTbl.add(res.yieldHash)) {
               nbests.add(res);
-              nbestStrTbl.put(res_str, 1);
             }
           } else {
             nbests.add(res);
@@ -484,22 +552,22 @@ public class KBestExtractor {
         }
 
         newRanks[i] = last.ranks[i] + 1;
-        String newSig = getDerivationStateSignature(last.edge, newRanks, last.edgePos);
+        // the cost is filled in once we know the derivation exists
+        DerivationState t =
+            new DerivationState(last.parentNode, last.edge, newRanks, 0, last.edgePos);
 
         // why duplicate, e.g., 1 2 + 1 0 == 2 1 + 0 1
-        if (derivationTbl.containsKey(newSig)) {
+        if (derivationTbl.contains(t)) {
           continue;
         }
         virtualIT.lazyKBestExtractOnNode(kbestExtator, newRanks[i]);
         if (newRanks[i] <= virtualIT.nbests.size() // exist the new_ranks[i] derivation
         /* && "t" is not in heap_cands */) { // already checked before, check this condition
-          double cost =
+          t.cost =
               last.cost - virtualIT.nbests.get(last.ranks[i] - 1).cost
                   + virtualIT.nbests.get(newRanks[i] - 1).cost;
-          DerivationState t =
-              new DerivationState(last.parentNode, last.edge, newRanks, cost, last.edgePos);
           candHeap.add(t);
-          derivationTbl.put(newSig, 1);
+          derivationTbl.add(t);
         }
       }
     }
@@ -509,9 +577,9 @@ public class KBestExtractor {
     // get a 1best from each hyperedge, and add them into the heap_cands
     private void getCandidates(KBestExtractor kbestExtator) {
       candHeap = new PriorityQueue<DerivationState>();
-      derivationTbl = new HashMap<String, Integer>();
+      derivationTbl = new HashSet<DerivationState>();
       if (extractUniqueNbest) {
-        nbestStrTbl = new HashMap<String, Integer>();
+        nbestYieldTbl = new HashSet<Long>();
       }
       // sanity check
       if (null == pNode.hyperedges) {
@@ -521,14 +589,13 @@ public class KBestExtractor {
       for (HyperEdge edge : pNode.hyperedges) {
         DerivationState t = getBestDerivation(kbestExtator, pNode, edge, pos);
         // why duplicate, e.g., 1 2 + 1 0 == 2 1 + 0 1 , but here we should not get duplicate
-        if (!derivationTbl.containsKey(t.getSignature())) {
+        if (derivationTbl.add(t)) {
           candHeap.add(t);
-          derivationTbl.put(t.getSignature(), 1);
         } else { // sanity check
           throw new RuntimeException(
               "get duplicate derivation in get_candidates, this should not happen"
-                  + "\nsignature is " + t.getSignature() + "\nl_hyperedge size is "
-                  + pNode.hyperedges.size());
+                  + "\nsignature is " + t.edgePos + " " + Arrays.toString(t.ranks)
+                  + "\nl_hyperedge size is " + pNode.hyperedges.size());
         }
         pos++;
       }
@@ -577,6 +644,8 @@ public class KBestExtractor {
    */
 
   // each DerivationState roughly correponds to a hypothesis
+  // two states are equal if they have the same edge position and ranks, which identifies them
+  // among the states of one node (and only there)
   private class DerivationState implements Comparable<DerivationState> {
     HGNode parentNode;// the parentNode of the edge
     HyperEdge edge;// in the paper, it is "e"
@@ -586,6 +655,11 @@ public class KBestExtractor {
     int[] ranks;// in the paper, it is "j", which is a ArrayList of size |e|
     double cost;// the cost of this hypthesis
 
+    // a hash of the words of the hypothesis, and YIELD_BASE to the power of their number; set by
+    // computeYieldHash()
+    long yieldHash;
+    long yieldPower = 0;
+
     public DerivationState(HGNode pa, HyperEdge e, int[] r, double c, int pos) {
       parentNode = pa;
       edge = e;
@@ -594,33 +668,76 @@ public class KBestExtractor {
       edgePos = pos;
     }
 
-    private String getSignature() {
-      StringBuffer res = new StringBuffer();
-      // res.apend(p_edge2.toString());//Wrong: this may not be unique to identify a hyperedge (as
-      // it represent the class name and hashcode which my be equal for different objects)
-      res.append(edgePos);
-      if (null != ranks) {
-        for (int i = 0; i < ranks.length; i++) {
-          res.append(' ');
-          res.append(ranks[i]);
+    // the edge itself may not be unique to identify a hyperedge, so its position is used
+    @Override
+    public int hashCode() {
+      return 31 * edgePos + Arrays.hashCode(ranks);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof DerivationState)) return false;
+      DerivationState that = (DerivationState) other;
+      return edgePos == that.edgePos && Arrays.equals(ranks, that.ranks);
+    }
+
+    /*
+     * Computes the hash of the yield (the string getHypothesis() returns without the tree) from the
+     * rule's words and the yield hashes of the children, which were computed when the children
+     * were extracted. The hash of a concatenation is a function of the hashes of its parts, so
+     * this takes time in the length of the rule, not of the hypothesis.
+     */
+    private void computeYieldHash(KBestExtractor kbestExtator) {
+      if (yieldPower != 0) return;
+      long hash = 0;
+      long power = 1;
+      Rule rl = edge.getRule();
+
+      if (null == rl) { // hyperedges under "goal item" does not have rule
+        for (int id = 0; id < edge.getAntNodes().size(); id++) {
+          DerivationState child = getChildDerivationState(kbestExtator, edge, id);
+          child.computeYieldHash(kbestExtator);
+          hash = hash * child.yieldPower + child.yieldHash;
+          power *= child.yieldPower;
+        }
+      } else {
+        int[] words = isMonolingual ? rl.getFrench() : rl.getEnglish();
+        int nonTerminalID = 0;// the position of the non-terminal in the rule
+        for (int c = 0; c < words.length; c++) {
+          DerivationState child = null;
+          if (!isMonolingual && Vocabulary.idx(words[c])) {
+            child = getChildDerivationState(kbestExtator, edge, -(words[c] + 1));
+          } else if (isMonolingual && Vocabulary.nt(words[c])) {
+            child = getChildDerivationState(kbestExtator, edge, nonTerminalID++);
+          }
+          if (null != child) {
+            child.computeYieldHash(kbestExtator);
+            hash = hash * child.yieldPower + child.yieldHash;
+            power *= child.yieldPower;
+          } else {
+            hash = hash * YIELD_BASE + wordHash(words[c]);
+            power *= YIELD_BASE;
+          }
         }
       }
-      return res.toString();
+      yieldHash = hash;
+      yieldPower = power;
     }
 
 
 
-    // get the numeric sequence of the particular hypothesis
+    // append the numeric sequence of the particular hypothesis (or, if asWords is set, its words,
+    // each followed by a space; this is only for the plain format)
     // if want to get model cost, then have to set model_cost and l_models
-    private String getHypothesis(KBestExtractor kbestExtator, boolean useTreeFormat,
-        double[] modelCost, List<FeatureFunction> models, int[] numNodesAndEdges) {
+    private void appendHypothesis(KBestExtractor kbestExtator, StringBuilder res,
+        boolean useTreeFormat, boolean asWords, double[] modelCost, List<FeatureFunction> models,
+        int[] numNodesAndEdges) {
       // ### accumulate cost of p_edge into model_cost if necessary
       if (null != modelCost) {
         computeCost(parentNode, edge, modelCost, models);
       }
 
       // ### get hyp string recursively
-      StringBuffer res = new StringBuffer();
       Rule rl = edge.getRule();
 
       if (null == rl) { // hyperedges under "goal item" does not have rule
@@ -639,9 +756,9 @@ public class KBestExtractor {
           res.append(' ');
         }
         for (int id = 0; id < edge.getAntNodes().size(); id++) {
-          res.append(getChildDerivationState(kbestExtator, edge, id).getHypothesis(kbestExtator,
-              useTreeFormat, modelCost, models, numNodesAndEdges));
-          if (id < edge.getAntNodes().size() - 1) res.append(' ');
+          getChildDerivationState(kbestExtator, edge, id).appendHypothesis(kbestExtator, res,
+              useTreeFormat, asWords, modelCost, models, numNodesAndEdges);
+          if (!asWords && id < edge.getAntNodes().size() - 1) res.append(' ');
         }
         if (useTreeFormat) res.append(')');
       } else {
@@ -672,25 +789,26 @@ public class KBestExtractor {
           for (int c = 0; c < english.length; c++) {
             if (Vocabulary.idx(english[c])) {
               int index = -(english[c] + 1);
-              res.append(getChildDerivationState(kbestExtator, edge, index).getHypothesis(
-                  kbestExtator, useTreeFormat, modelCost, models, numNodesAndEdges));
+              getChildDerivationState(kbestExtator, edge, index).appendHypothesis(kbestExtator,
+                  res, useTreeFormat, asWords, modelCost, models, numNodesAndEdges);
             } else {
-              res.append(english[c]);
+              appendTerminal(res, english[c], asWords);
             }
-            if (c < english.length - 1) res.append(' ');
+            if (!asWords && c < english.length - 1) res.append(' ');
           }
         } else { // monolingual
           int[] french = rl.getFrench();
           int nonTerminalID = 0;// the position of the non-terminal in the rule
           for (int c = 0; c < french.length; c++) {
             if (Vocabulary.nt(french[c])) {
-              res.append(getChildDerivationState(kbestExtator, edge, nonTerminalID).getHypothesis(
-                  kbestExtator, useTreeFormat, modelCost, models, numNodesAndEdges));
+              getChildDerivationState(kbestExtator, edge, nonTerminalID).appendHypothesis(
+                  kbestExtator, res, useTreeFormat, asWords, modelCost, models,
+                  numNodesAndEdges);
               nonTerminalID++;
             } else {
-              res.append(french[c]);
+              appendTerminal(res, french[c], asWords);
             }
-            if (c < french.length - 1) res.append(' ');
+            if (!asWords && c < french.length - 1) res.append(' ');
           }
         }
         if (useTreeFormat) res.append(')');
@@ -699,7 +817,15 @@ public class KBestExtractor {
         numNodesAndEdges[0]++;
         numNodesAndEdges[1]++;
       }
-      return res.toString();
+    }
+
+    private void appendTerminal(StringBuilder res, int id, boolean asWords) {
+      if (asWords) {
+        res.append(escapeTerminalForTree(Vocabulary.word(id)));
+        res.append(' ');
+      } else {
+        res.append(id);
+      }
     }
 
     private HGNode getHypothesis(KBestExtractor kbestExtator, int[] numNodesAndEdges) {
@@ -762,16 +888,21 @@ public class KBestExtractor {
      */
 
 
-    // accumulate cost into modelCost
+    // accumulate cost into modelCost; each hyperedge's costs are computed once, until
+    // resetState()
     private void computeCost(HGNode parentNode, HyperEdge dt, double[] modelCost,
         List<FeatureFunction> models) {
       if (null == modelCost) return;
       // System.out.println("Rule is: " + dt.rule.toString());
       // double[] transitionCosts = ComputeNodeResult.computeModelTransitionCost(models,
       // dt.getRule(), dt.getAntNodes(), parentNode.i, parentNode.j, dt.getSourcePath(), sentID);
-      double[] transitionCosts =
-          ComputeNodeResult.computeModelTransitionLogPs(models, dt, parentNode.i, parentNode.j,
-              sentID);
+      double[] transitionCosts = edgeCostsTbl.get(dt);
+      if (null == transitionCosts) {
+        transitionCosts =
+            ComputeNodeResult.computeModelTransitionLogPs(models, dt, parentNode.i, parentNode.j,
+                sentID);
+        edgeCostsTbl.put(dt, transitionCosts);
+      }
 
       for (int i = 0; i < transitionCosts.length; i++) {
         modelCost[i] -= transitionCosts[i];
@@ -792,17 +923,38 @@ public class KBestExtractor {
 
   }// end of Class DerivationState
 
-  private String getDerivationStateSignature(HyperEdge edge2, int[] ranks2, int pos) {
-    StringBuffer sb = new StringBuffer();
-    // sb.apend(p_edge2.toString());//Wrong: this may not be unique to identify a hyperedge (as it
-    // represent the class name and hashcode which my be equal for different objects)
-    sb.append(pos);
-    if (null != ranks2) {
-      for (int i = 0; i < ranks2.length; i++) {
-        sb.append(' ');
-        sb.append(ranks2[i]);
-      }
+  /*
+   * Yield hashes are polynomials in YIELD_BASE (modulo 2^64) whose coefficients are the hashed word
+   * ids. The base is odd, so its powers are never 0, which marks an unset hash.
+   */
+  private static final long YIELD_BASE = 0x100000001b3L;
+
+  private static long wordHash(int word) {
+    long h = word * 0x9e3779b97f4a7c15L;
+    return h ^ (h >>> 29);
+  }
+
+
+  /**
+   * A hypothesis from a k-best list: its words (or tree, in tree format) and its value under each
+   * feature function.
+   */
+  public static class Hypothesis {
+    private final String words;
+    private final double[] features;
+
+    public Hypothesis(String words, double[] features) {
+      this.words = words;
+      this.features = features;
+    }
+
+    public String words() {
+      return words;
+    }
+
+    /** The feature values, in the order of the feature functions. */
+    public double[] features() {
+      return features;
     }
-    return sb.toString();
   }
 }
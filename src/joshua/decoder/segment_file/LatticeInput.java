@@ -38,6 +38,10 @@ public class LatticeInput extends Sentence {
     return Lattice.createIntLatticeFromString(sentence());
   }
 
+  public int length() {
+    return stringLattice().size() - 1;
+  }
+
   public Lattice<String> stringLattice() {
     return Lattice.createStringLatticeFromString(sentence());
   }
@@ -16,6 +16,10 @@ public class ParsedSentence extends Sentence {
     return syntaxTree.getTerminals();
   }
 
+  public int length() {
+    return syntaxTree.getTerminals().length;
+  }
+
   public SyntaxTree syntaxTree() {
     return syntaxTree;
   }
@@ -89,6 +89,14 @@ public class Sentence {
     return id;
   }
 
+  /**
+   * Returns the position of this sentence in the input, which (unlike its id) is guaranteed to be
+   * sequential.
+   */
+  public int sequenceId() {
+    return sequenceId;
+  }
+
   public String sentence() {
     return sentence;
   }
@@ -97,6 +105,18 @@ public class Sentence {
     return Vocabulary.addAll(sentence());
   }
 
+  /**
+   * Returns the length of the input in words (for lattices, in nodes), a rough measure of how long
+   * it will take to translate.
+   */
+  public int length() {
+    if (sentence.length() == 0) return 0;
+    int words = 1;
+    for (int i = 0; i < sentence.length(); i++)
+      if (sentence.charAt(i) == ' ') words++;
+    return words;
+  }
+
   public List<ConstraintSpan> constraints() {
     return this.constraints;
   }
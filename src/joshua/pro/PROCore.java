@@ -44,8 +44,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.JoshuaDecoder;
+import joshua.decoder.Translation;
+import joshua.decoder.TranslationHandler;
+import joshua.decoder.hypergraph.KBestExtractor.Hypothesis;
 import joshua.metrics.EvaluationMetric;
+import joshua.zmert.CandidateStore;
 
 public class PROCore {
   private TreeSet<Integer>[] indicesOfInterest_all;
@@ -530,7 +535,7 @@ public class PROCore {
     // BY DEFAULT, LOAD JOSHUA DECODER
     if (decoderCommand == null && fakeFileNameTemplate == null) {
       println("Loading Joshua decoder...", 1);
-      myDecoder = new JoshuaDecoder(decoderConfigFileName + ".PRO.orig");
+      myDecoder = loadDecoder(decoderConfigFileName + ".PRO.orig");
       println("...finished loading @ " + (new Date()), 1);
       println("");
     } else {
@@ -634,6 +639,7 @@ public class PROCore {
 
     // delete intermediate .temp.*.it* decoder output files
     for (int iteration = 1; iteration <= maxIts; ++iteration) {
+      deleteFile(tmpDirPrefix + "temp.cands.it" + iteration);
       if (compressFiles == 1) {
         deleteFile(tmpDirPrefix + "temp.sents.it" + iteration + ".gz");
         deleteFile(tmpDirPrefix + "temp.feats.it" + iteration + ".gz");
@@ -730,13 +736,15 @@ public class PROCore {
       }
       // N-BEST WRITTEN TO DISK
 
-      checkFile(decRunResult[0]);
-
       // --------------- END OF DECODING -----------------
 
-      println("Producing temp files for iteration " + iteration, 3);
+      if (!decRunResult[1].equals("3")) { // THE INTERNAL DECODER HAS PRODUCED THE TEMP FILES
+        checkFile(decRunResult[0]);
+
+        println("Producing temp files for iteration " + iteration, 3);
 
-      produceTempFiles(decRunResult[0], iteration);
+        produceTempFiles(decRunResult[0], iteration);
+      }
 
       // SAVE INTERMEDIDATE OUTPUT FILES
       // SAVE joshua.config.PRO.it?
@@ -757,7 +765,7 @@ public class PROCore {
       if (saveInterFiles == 2 || saveInterFiles == 3) { // make copy of intermediate decoder output
                                                         // file...
 
-        if (!decRunResult[1].equals("2")) { // ...but only if no fake decoder
+        if (decRunResult[1].equals("1")) { // ...but only if an external decoder wrote one
           if (!decRunResult[0].endsWith(".gz")) {
             if (!copyFile(decRunResult[0], decRunResult[0] + ".PRO.it" + iteration)) {
               println("Warning: attempt to make copy of decoder output file (to create"
@@ -862,42 +870,27 @@ public class PROCore {
 
       try {
 
-        // READ IN TEMP FILES FROM ALL PAST ITERATIONS
-        // 3 TYPES OF TEMP FILES:
-        // 1. OUTPUT HYPO AT ITER i
-        // 2. FEATURE VALUE OF EACH HYPO AT ITER i
-        // 3. SUFF STATS OF EACH HYPO AT ITER i
+        // READ IN THE CANDIDATE STORES OF ALL PAST ITERATIONS
+        // EACH CANDIDATE AT ITER i HAS:
+        // 1. ITS OUTPUT HYPO
+        // 2. ITS FEATURE VALUES
+        // 3. ITS SUFF STATS
 
-        // each inFile corresponds to the output of an iteration
+        // each store holds the distinct candidates of an earlier iteration
         // (index 0 is not used; no corresponding index for the current iteration)
-        BufferedReader[] inFile_sents = new BufferedReader[iteration];
-        BufferedReader[] inFile_feats = new BufferedReader[iteration];
-        BufferedReader[] inFile_stats = new BufferedReader[iteration];
+        CandidateStore[] prevCands = new CandidateStore[iteration];
 
-        // TEMP FILE(ARRAY) FOR PREVIOUS ITERATIONS
+        // STORES FOR PREVIOUS ITERATIONS
         for (int it = firstIt; it < iteration; ++it) {
-          InputStream inStream_sents, inStream_feats, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_feats = new FileInputStream(tmpDirPrefix + "temp.feats.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.sents.it" + it + ".gz"));
-            inStream_feats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.feats.it" + it + ".gz"));
-            inStream_stats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.stats.it" + it + ".gz"));
-          }
-
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+          prevCands[it] = CandidateStore.open(tmpDirPrefix + "temp.cands.it" + it);
         }
 
+        // the distinct candidates of the current iteration, written as they are processed
+        // (along with their text, which the optimizer works on)
+        CandidateStore.Writer currCands =
+            new CandidateStore.Writer(tmpDirPrefix + "temp.cands.it" + iteration, numSentences,
+                numParams, suffStatsCount, true);
+
 
         InputStream inStream_sentsCurrIt, inStream_featsCurrIt, inStream_statsCurrIt;
         // TEMP FILE FOR CURRENT ITERATION!
@@ -972,15 +965,15 @@ public class PROCore {
         // (It's not actually a bug, but only because existingCandStats gets
         // cleared before moving to the next source sentence.)
         // FIX: should be made an array, indexed by i
-        HashMap<String, String> existingCandStats = new HashMap<String, String>();
+        HashMap<Long, int[]> existingCandStats = new HashMap<Long, int[]>();
         // VERY IMPORTANT:
         // A CANDIDATE X MAY APPEARED IN ITER 1, ITER 3
         // BUT IF THE USER SPECIFIED TO CONSIDER ITERATIONS FROM ONLY ITER 2, THEN
         // X IS NOT A "REPEATED" CANDIDATE IN ITER 3. THEREFORE WE WANT TO KEEP THE
         // SUFF STATS FOR EACH CANDIDATE(TO SAVE COMPUTATION IN THE FUTURE)
 
-        // Stores precalculated sufficient statistics for candidates, in case
-        // the same candidate is seen again. (SS stored as a String.)
+        // Stores precalculated sufficient statistics for candidates (keyed by
+        // candidate id), in case the same candidate is seen again.
         // Q: Why do we care? If we see the same candidate again, aren't we going
         // to ignore it? So, why do we care about the SS of this repeat candidate?
         // A: A "repeat" candidate may not be a repeat candidate in later
@@ -988,7 +981,10 @@ public class PROCore {
         // that causes MERT to skip candidates from early iterations.
 
         double[] currFeatVal = new double[1 + numParams];
-        String[] featVal_str;
+        long cand_id;
+
+        // marks the candidates of the current iteration whose SS are not known yet
+        final int[] unknownStats = new int[0];
 
         int totalCandidateCount = 0;
 
@@ -1016,83 +1012,26 @@ public class PROCore {
             // the SS must be claculated (and the corresponding file created),
             // which is not true for previous iterations.
 
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-              // NOTE THAT IN ALL temp FILES, "||||||" IS A SEPARATOR BETWEEN 2 N-BEST LISTS
-
-              // Why up to and *including* sizeOfNBest?
-              // So that it would read the "||||||" separator even if there is
-              // a complete list of sizeOfNBest candidates.
-
-              // for the nth candidate for the ith sentence, read the sentence, feature values,
-              // and sufficient statistics from the various temp files
+            for (int n = 0; n < prevCands[it].count(i); ++n) {
+              // for the nth candidate for the ith sentence, read the feature values
+              // and sufficient statistics from the iteration's candidate store
 
+              cand_id = prevCands[it].id(i, n);
 
-              // READ IN ONE LINE OF temp.sent, temp.feat, temp.stats FROM ITERATION it
-              sents_str = inFile_sents[it].readLine();
-              feats_str = inFile_feats[it].readLine();
-              stats_str = inFile_stats[it].readLine();
-
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1; // MOVE ON TO THE NEXT N-BEST LIST
-              } else if (!existingCandStats.containsKey(sents_str)) // IF THIS CANDIDATE DOES NOT
-                                                                    // EXIST
+              if (!existingCandStats.containsKey(cand_id)) // IF THIS CANDIDATE DOES NOT EXIST
               {
+                int[] stats = new int[suffStatsCount];
+                prevCands[it].suffStats(i, n, stats);
+                stats_str = suffStatsToString(stats);
                 outFile_statsMergedKnown.println(stats_str);
 
                 // SAVE FEATS & STATS
-                feat_hash[i].put(sents_str, feats_str);
+                // (FOR MODE 4, THE STORED FEATURES ALREADY HAVE THE SPARSE FEATURES SUMMED)
+                sents_str = prevCands[it].candidate(i, n);
+                feat_hash[i].put(sents_str, prevCands[it].featureString(i, n));
                 stats_hash[i].put(sents_str, stats_str);
 
-                // EXTRACT FEATURE VALUE
-                featVal_str = feats_str.split("\\s+");
-
-                if (nbestFormat.equals("dense")) // FOR MODE 1
-                {
-                  for (int c = 1; c <= numParams; ++c) {
-                    currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
-                    // print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
-                  }
-                } else {
-                  for (int c = 1; c <= numParams; c++)
-                    currFeatVal[c] = 0.0;
-
-                  String[] feat_info;
-
-                  if (!trainingMode.equals("4")) {
-                    for (int c = 0; c < featVal_str.length; c++) {
-                      feat_info = featVal_str[c].split(":");
-                      currFeatVal[Integer.parseInt(feat_info[0])] =
-                          Double.parseDouble(feat_info[1]); // INDEX STARTS FROM 1
-                    }
-                  } else // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
-                  {
-                    double sumFeatVal = 0.0;
-                    int featId = 0;
-                    String updated_feat_str = "";
-
-                    for (int c = 0; c < featVal_str.length; c++) {
-                      feat_info = featVal_str[c].split(":");
-                      featId = Integer.parseInt(feat_info[0]);
-
-                      if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
-                      {
-                        currFeatVal[featId] = Double.parseDouble(feat_info[1]);
-                        updated_feat_str += (featId + ":" + feat_info[1] + " "); // FEATURE ID ORDER
-                                                                                 // DOESN'T MATTER
-                      } else
-                        sumFeatVal +=
-                            Double.parseDouble(feat_info[1])
-                                * sparseFeatWeights[featId - numParamsInFile];
-                    }
-
-                    currFeatVal[numParamsInFile] = sumFeatVal;
-                    updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
-
-                    feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW
-                                                                   // THE SPARSE FEATURES ARE
-                                                                   // TREATED AS ONE REGULAR FEATURE
-                  }
-                }
+                prevCands[it].features(i, n, currFeatVal);
 
                 for (int j = 1; j <= initsPerIt; ++j) {
                   double score = 0; // i.e. score assigned by decoder
@@ -1103,21 +1042,13 @@ public class PROCore {
                   if (score > best1Score[j][i]) {
                     best1Score[j][i] = score; // COMOPUTE 1-BEST MODEL SCORE USING j^th WEIGHT VEC
                                               // CANDIDATE
-                    String[] tempStats = stats_str.split("\\s+");
                     for (int s = 0; s < suffStatsCount; ++s)
-                      best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]); // SUFF STAT s
-                                                                                     // OF SENT i,
-                                                                                     // WEIGHT VEC j
+                      best1Cand_suffStats[j][i][s] = stats[s]; // SUFF STAT s OF SENT i,
+                                                               // WEIGHT VEC j
                   }
                 } // for (j)
 
-                // WRONG!!!
-                // SAVE SUFF STAT FOR ALL CANDIDATES
-                // String[] tempStats = stats_str.split("\\s+");
-                // for (int s = 0; s < suffStatsCount; ++s)
-                // allCand_suffStats[i][n][s] = Integer.parseInt(tempStats[s]);
-
-                existingCandStats.put(sents_str, stats_str);
+                existingCandStats.put(cand_id, stats);
 
                 setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
                 candCount[i] += 1;
@@ -1161,12 +1092,12 @@ public class PROCore {
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
+            } else if (!existingCandStats.containsKey(CandidateStore.id(sents_str))) {
               unknownCands_V.add(sents_str); // NEW CANDIDATE FROM THIS ITERATION
               writeLine(sents_str, outFile_unknownCands);
               outFile_unknownIndices.println(i); // INDEX OF THE NEW CANDIDATES
               newCandidatesAdded[iteration] += 1;
-              existingCandStats.put(sents_str, "U"); // i.e. unknown
+              existingCandStats.put(CandidateStore.id(sents_str), unknownStats); // i.e. unknown
               // we add sents_str to avoid duplicate entries in unknownCands_V
             }
           } // for (n)
@@ -1204,29 +1135,6 @@ public class PROCore {
         outFile_unknownIndices.close();
 
 
-        // WANT TO RE-OPEN ALL TEMP FILES TO GO FROM START AGAIN?
-        for (int it = firstIt; it < iteration; ++it) // PREVIOUS ITERATIONS TEMP FILES
-        {
-          inFile_sents[it].close();
-          inFile_stats[it].close();
-
-          InputStream inStream_sents, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.sents.it" + it + ".gz"));
-            inStream_stats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.stats.it" + it + ".gz"));
-          }
-
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
-        }
-
         inFile_sentsCurrIt.close();
         // CURRENT ITERATION TEMP FILES
         if (compressFiles == 0) {
@@ -1265,14 +1173,13 @@ public class PROCore {
         for (int i = 0; i < numSentences; ++i) {
           // reprocess candidates from previous iterations
           for (int it = firstIt; it < iteration; ++it) {
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-              sents_str = inFile_sents[it].readLine();
-              stats_str = inFile_stats[it].readLine();
-
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
-                existingCandStats.put(sents_str, stats_str);
+            for (int n = 0; n < prevCands[it].count(i); ++n) {
+              cand_id = prevCands[it].id(i, n);
+
+              if (!existingCandStats.containsKey(cand_id)) {
+                int[] prevStats = new int[suffStatsCount];
+                prevCands[it].suffStats(i, n, prevStats);
+                existingCandStats.put(cand_id, prevStats);
               } // if unseen candidate
             } // for (n)
           } // for (it)
@@ -1288,13 +1195,16 @@ public class PROCore {
 
           int[] stats = new int[suffStatsCount];
 
+          // the candidates of this iteration already added to its store
+          HashSet<Long> currCandIds = new HashSet<Long>();
+
           for (int n = 0; n <= sizeOfNBest; ++n) {
             sents_str = inFile_sentsCurrIt.readLine();
             feats_str = inFile_featsCurrIt.readLine();
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
+            } else if (!existingCandStats.containsKey(cand_id = CandidateStore.id(sents_str))) {
               ++d;
 
               if (!statsCurrIt_exists) {
@@ -1320,65 +1230,11 @@ public class PROCore {
               // SAVE FEATS & STATS
               // System.out.println(sents_str+" "+feats_str);
 
+              // (FOR MODE 4, THE SPARSE FEATURES ARE TREATED AS ONE REGULAR FEATURE)
+              feats_str = parseFeats(feats_str, currFeatVal);
               feat_hash[i].put(sents_str, feats_str);
               stats_hash[i].put(sents_str, stats_str);
 
-              featVal_str = feats_str.split("\\s+");
-
-              /*
-               * for (int c = 1; c <= numParams; ++c) { currFeatVal[c] =
-               * Double.parseDouble(featVal_str[c-1]); // print("fV[" + c + "]=" + currFeatVal[c] +
-               * " ",4); } // println("",4);
-               */
-
-              if (nbestFormat.equals("dense")) {
-                for (int c = 1; c <= numParams; ++c) {
-                  currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
-                  // print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
-                }
-              } else {
-                for (int c = 1; c <= numParams; c++)
-                  currFeatVal[c] = 0.0;
-
-                String[] feat_info;
-
-                if (!trainingMode.equals("4")) {
-                  for (int c = 0; c < featVal_str.length; c++) {
-                    feat_info = featVal_str[c].split(":");
-                    currFeatVal[Integer.parseInt(feat_info[0])] = Double.parseDouble(feat_info[1]); // INDEX
-                                                                                                    // STARTS
-                                                                                                    // FROM
-                                                                                                    // 1
-                  }
-                } else // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
-                {
-                  double sumFeatVal = 0.0;
-                  int featId = 0;
-                  String updated_feat_str = "";
-
-                  for (int c = 0; c < featVal_str.length; c++) {
-                    feat_info = featVal_str[c].split(":");
-                    featId = Integer.parseInt(feat_info[0]);
-
-                    if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
-                    {
-                      currFeatVal[featId] = Double.parseDouble(feat_info[1]);
-                      updated_feat_str += (featId + ":" + feat_info[1] + " "); // FEATURE ID ORDER
-                                                                               // DOESN'T MATTER
-                    } else
-                      sumFeatVal +=
-                          Double.parseDouble(feat_info[1])
-                              * sparseFeatWeights[featId - numParamsInFile];
-                  }
-
-                  currFeatVal[numParamsInFile] = sumFeatVal;
-                  updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
-                  feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW THE
-                                                                 // SPARSE FEATURES ARE TREATED AS
-                                                                 // ONE REGULAR FEATURE
-                }
-              }
-
               for (int j = 1; j <= initsPerIt; ++j) {
                 double score = 0; // i.e. score assigned by decoder
                 for (int c = 1; c <= numParams; ++c) {
@@ -1396,7 +1252,9 @@ public class PROCore {
               // for (int s = 0; s < suffStatsCount; ++s)
               // allCand_suffStats[i][n][s] = stats[s];
 
-              existingCandStats.put(sents_str, stats_str);
+              existingCandStats.put(cand_id, stats.clone());
+              currCands.add(cand_id, currFeatVal, stats, sents_str, feats_str);
+              currCandIds.add(cand_id);
 
               setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
               candCount[i] += 1;
@@ -1404,17 +1262,26 @@ public class PROCore {
               // newCandidatesAdded[iteration] += 1;
               // moved to code above detecting new candidates
             } else {
+              int[] knownStats = existingCandStats.get(cand_id);
               if (statsCurrIt_exists)
                 inFile_statsCurrIt.readLine();
               else {
                 // write SS to outFile_statsCurrIt
-                stats_str = existingCandStats.get(sents_str);
-                outFile_statsCurrIt.println(stats_str);
+                outFile_statsCurrIt.println(suffStatsToString(knownStats));
+              }
+
+              // a candidate seen in an earlier iteration is still a candidate of
+              // this one, for the iterations that will look back only this far
+              if (currCandIds.add(cand_id)) {
+                feats_str = parseFeats(feats_str, currFeatVal);
+                currCands.add(cand_id, currFeatVal, knownStats, sents_str, feats_str);
               }
             }
 
           } // for (n)
 
+          currCands.endSentence();
+
           // now d = sizeUnknown_currIt[i] - 1
 
           if (statsCurrIt_exists)
@@ -1453,11 +1320,7 @@ public class PROCore {
         // FINALIZING ACTIVITIES
         println("", 1); // finish progress line
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_feats[it].close();
-          inFile_stats[it].close();
-        }
+        currCands.close();
 
         inFile_sentsCurrIt.close();
         inFile_featsCurrIt.close();
@@ -1694,6 +1557,21 @@ public class PROCore {
     return retStr;
   }
 
+  /*
+   * Loads the decoder in this JVM. As when the decoder is run on its own, the configuration is read
+   * before the models are loaded.
+   */
+  private JoshuaDecoder loadDecoder(String configFileName) {
+    try {
+      JoshuaConfiguration.readConfigFile(configFileName);
+    } catch (IOException e) {
+      System.err.println("IOException in PROCore.loadDecoder(String): " + e.getMessage());
+      System.exit(99902);
+    }
+    JoshuaConfiguration.sanityCheck();
+    return new JoshuaDecoder(configFileName);
+  }
+
   private String[] run_decoder(int iteration) {
     String[] retSA = new String[2];
 
@@ -1701,6 +1579,7 @@ public class PROCore {
     // AND THE DECODER TYPE
 
     // [0] name of file to be processed
+    // (null for the internal decoder, which produces the temp files itself)
     // [1] indicates how the output file was obtained:
     // 1: external decoder
     // 2: fake decoder
@@ -1725,7 +1604,7 @@ public class PROCore {
 
       if (myDecoder == null) {
         println("Loading Joshua decoder...", 1);
-        myDecoder = new JoshuaDecoder(decoderConfigFileName + ".PRO.orig");
+        myDecoder = loadDecoder(decoderConfigFileName + ".PRO.orig");
         println("...finished loading @ " + (new Date()), 1);
         println("");
       }
@@ -1735,9 +1614,19 @@ public class PROCore {
       double[] zeroBased_lambda = new double[numParams];
       System.arraycopy(lambda, 1, zeroBased_lambda, 0, numParams);
       myDecoder.changeBaselineFeatureWeights(zeroBased_lambda);
-      myDecoder.decodeTestSet(sourceFileName, decoderOutFileName);
 
-      retSA[0] = decoderOutFileName;
+      // the candidates go straight from the decoder into this iteration's temp files, instead of
+      // through an n-best file that produceTempFiles() would have to parse
+      try {
+        TempFileWriter tempFiles = new TempFileWriter(iteration);
+        myDecoder.decodeTestSet(sourceFileName, tempFiles);
+        tempFiles.close();
+      } catch (IOException e) {
+        System.err.println("IOException in PROCore.run_decoder(int): " + e.getMessage());
+        System.exit(99902);
+      }
+
+      retSA[0] = null;
       retSA[1] = "3";
 
     }
@@ -1883,6 +1772,69 @@ public class PROCore {
 
   }
 
+  /*
+   * Writes the candidates of an iteration, as the internal decoder hands them over, to the same temp
+   * files that produceTempFiles() makes from an n-best file. The feature values are written in full
+   * rather than rounded, as they would be in the n-best file.
+   */
+  private class TempFileWriter implements TranslationHandler {
+    private final String sentsFileName;
+    private final String featsFileName;
+    private final BufferedWriter outFile_sents;
+    private final PrintWriter outFile_feats;
+
+    TempFileWriter(int iteration) throws IOException {
+      sentsFileName = tmpDirPrefix + "temp.sents.it" + iteration;
+      featsFileName = tmpDirPrefix + "temp.feats.it" + iteration;
+
+      outFile_sents =
+          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sentsFileName, false),
+              "utf8"));
+      outFile_feats = new PrintWriter(featsFileName);
+    }
+
+    public void handle(Translation translation) {
+      try {
+        StringBuilder feats = new StringBuilder();
+        for (Hypothesis hyp : translation.kBest(sizeOfNBest)) {
+          String candidate_str = normalize(hyp.words(), textNormMethod);
+          outFile_sents.write(candidate_str, 0, candidate_str.length());
+          outFile_sents.newLine();
+
+          // in the n-best format parseFeats() expects: in the sparse format, each value is preceded
+          // by the number of its feature, counting from 1
+          feats.setLength(0);
+          double[] values = hyp.features();
+          boolean sparse = nbestFormat.equals("sparse");
+          for (int c = 0; c < values.length; ++c) {
+            if (c > 0) feats.append(' ');
+            if (sparse) feats.append(c + 1).append(':');
+            feats.append(values[c]);
+          }
+          outFile_feats.println(feats);
+        }
+
+        outFile_sents.write("||||||");
+        outFile_sents.newLine();
+        outFile_feats.println("||||||");
+      } catch (IOException e) {
+        System.err.println("IOException in PROCore.TempFileWriter.handle(Translation): "
+            + e.getMessage());
+        System.exit(99902);
+      }
+    }
+
+    void close() throws IOException {
+      outFile_sents.close();
+      outFile_feats.close();
+
+      if (compressFiles == 1) {
+        gzipFile(sentsFileName);
+        gzipFile(featsFileName);
+      }
+    }
+  }
+
   private void createConfigFile(double[] params, String cfgFileName, String templateFileName) {
     try {
       // i.e. create cfgFileName, which is similar to templateFileName, but with
@@ -2416,6 +2368,65 @@ public class PROCore {
     }
   }
 
+  /*
+   * Reads the feature values of a candidate, given in the n-best format, into
+   * featVal[1..numParams], and returns the features as the optimizer should see them: for mode 4,
+   * the sparse features are summed (with their fixed weights) into one regular feature.
+   */
+  private String parseFeats(String feats_str, double[] featVal) {
+    String[] featVal_str = feats_str.split("\\s+");
+
+    if (nbestFormat.equals("dense")) {
+      for (int c = 1; c <= numParams; ++c)
+        featVal[c] = Double.parseDouble(featVal_str[c - 1]);
+      return feats_str;
+    }
+
+    for (int c = 1; c <= numParams; c++)
+      featVal[c] = 0.0;
+
+    String[] feat_info;
+
+    if (!trainingMode.equals("4")) {
+      for (int c = 0; c < featVal_str.length; c++) {
+        feat_info = featVal_str[c].split(":");
+        featVal[Integer.parseInt(feat_info[0])] = Double.parseDouble(feat_info[1]); // INDEX STARTS
+                                                                                    // FROM 1
+      }
+      return feats_str;
+    }
+
+    // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
+    double sumFeatVal = 0.0;
+    int featId = 0;
+    String updated_feat_str = "";
+
+    for (int c = 0; c < featVal_str.length; c++) {
+      feat_info = featVal_str[c].split(":");
+      featId = Integer.parseInt(feat_info[0]);
+
+      if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
+      {
+        featVal[featId] = Double.parseDouble(feat_info[1]);
+        updated_feat_str += (featId + ":" + feat_info[1] + " "); // FEATURE ID ORDER DOESN'T MATTER
+      } else
+        sumFeatVal += Double.parseDouble(feat_info[1]) * sparseFeatWeights[featId - numParamsInFile];
+    }
+
+    featVal[numParamsInFile] = sumFeatVal;
+    updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
+    return updated_feat_str;
+  }
+
+  private String suffStatsToString(int[] stats) {
+    StringBuilder sb = new StringBuilder();
+    for (int s = 0; s < suffStatsCount; ++s) {
+      if (s > 0) sb.append(' ');
+      sb.append(stats[s]);
+    }
+    return sb.toString();
+  }
+
   private void writeLine(String line, BufferedWriter writer) throws IOException {
     writer.write(line, 0, line.length());
     writer.newLine();
@@ -3799,6 +3810,7 @@ public class PROCore {
 
       // delete intermediate .temp.*.it* decoder output files
       for (int iteration = 1; iteration <= DMC.maxMERTIterations; ++iteration) {
+        DMC.deleteFile(DMC.tmpDirPrefix + "temp.cands.it" + iteration);
         if (DMC.compressFiles == 1) {
           DMC.deleteFile(DMC.tmpDirPrefix + "temp.sents.it" + iteration + ".gz");
           DMC.deleteFile(DMC.tmpDirPrefix + "temp.feats.it" + iteration + ".gz");
@@ -0,0 +1,274 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.zmert;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+/**
+ * The distinct candidate translations of one tuning iteration, with their feature values and
+ * sufficient statistics, in a binary file that is memory-mapped for reading. Once an iteration is
+ * done, its candidates are written here, so that later iterations can look back at them without
+ * re-reading and re-parsing the text files of every earlier iteration.
+ *
+ * Candidates are identified by a 64-bit hash of their text (see id()), which is all that is needed
+ * to tell whether a candidate has been seen before. MertCore and PROCore compare ids only, so two
+ * different candidates of a sentence whose ids collide are taken to be the same one: the second is
+ * dropped and the statistics of the first are used for it. With 64 bits this is very unlikely for
+ * the few thousand candidates a sentence gathers over a tuning run, and it is not checked for. The
+ * file holds a header (magic, version, and
+ * the number of sentences, features and sufficient statistics), then one fixed-size record per
+ * candidate (the id, the feature values and the statistics), grouped by sentence, and finally the
+ * index of each sentence's first record.
+ *
+ * Feature values are stored as doubles, so that they are exactly the values parsed from the
+ * decoder output.
+ *
+ * A store can also keep the text of each candidate and of its features (PRO's optimizer works on
+ * these strings). If so, each record also holds the position and lengths of the two strings, which
+ * are kept, UTF-8 encoded, in a pool between the records and the index.
+ */
+public class CandidateStore {
+
+  /* "JCND" */
+  private static final int MAGIC = 0x4a434e44;
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 6 * 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+  private final int numSentences;
+  private final int numParams;
+  private final int suffStatsCount;
+  private final boolean hasText;
+  private final int recordSize;
+  private final int indexPosition;
+  private final int poolPosition;
+
+  private CandidateStore(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+      throw new IOException("not a candidate store (version " + VERSION + ")");
+    this.buffer = buffer;
+    numSentences = buffer.getInt(8);
+    numParams = buffer.getInt(12);
+    suffStatsCount = buffer.getInt(16);
+    hasText = buffer.getInt(20) != 0;
+    recordSize = recordSize(numParams, suffStatsCount, hasText);
+    indexPosition = buffer.capacity() - 4 * (numSentences + 1);
+    poolPosition = HEADER_SIZE + first(numSentences) * recordSize;
+  }
+
+  /**
+   * Maps the store in the given file, which must have been written by a Writer.
+   */
+  public static CandidateStore open(String fileName) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(fileName, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException(fileName + " is too large to map");
+      return new CandidateStore(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      // the mapping stays valid after the file is closed
+      file.close();
+    }
+  }
+
+  /**
+   * Returns the id of a candidate: a hash of its text, so that equal candidates get equal ids.
+   * Different candidates may (very rarely) get equal ids too; see the class comment.
+   */
+  public static long id(String candidate) {
+    long h = 0xcbf29ce484222325L;
+    for (int k = 0; k < candidate.length(); k++) {
+      h ^= candidate.charAt(k);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** The number of candidates stored for sentence i. */
+  public int count(int i) {
+    return first(i + 1) - first(i);
+  }
+
+  /** The id of the n'th candidate of sentence i. */
+  public long id(int i, int n) {
+    return buffer.getLong(position(i, n));
+  }
+
+  /**
+   * Reads the feature values of the n'th candidate of sentence i into featVal[1..numParams].
+   */
+  public void features(int i, int n, double[] featVal) {
+    int position = position(i, n) + 8;
+    for (int c = 1; c <= numParams; ++c) {
+      featVal[c] = buffer.getDouble(position);
+      position += 8;
+    }
+  }
+
+  /**
+   * Reads the sufficient statistics of the n'th candidate of sentence i into stats[0..count-1].
+   */
+  public void suffStats(int i, int n, int[] stats) {
+    int position = position(i, n) + 8 + 8 * numParams;
+    for (int s = 0; s < suffStatsCount; ++s) {
+      stats[s] = buffer.getInt(position);
+      position += 4;
+    }
+  }
+
+  /** The text of the n'th candidate of sentence i, if the store keeps it (null otherwise). */
+  public String candidate(int i, int n) {
+    return text(i, n, 0);
+  }
+
+  /**
+   * The feature values of the n'th candidate of sentence i as text, if the store keeps it (null
+   * otherwise).
+   */
+  public String featureString(int i, int n) {
+    return text(i, n, 1);
+  }
+
+  private String text(int i, int n, int which) {
+    if (!hasText) return null;
+    int position = position(i, n) + 8 + 8 * numParams + 4 * suffStatsCount;
+    int start = poolPosition + buffer.getInt(position);
+    int candLength = buffer.getInt(position + 4);
+    int length = buffer.getInt(position + 8);
+    if (which == 0)
+      length = candLength;
+    else
+      start += candLength;
+    byte[] bytes = new byte[length];
+    for (int k = 0; k < length; k++)
+      bytes[k] = buffer.get(start + k);
+    return new String(bytes, UTF8);
+  }
+
+  private int first(int i) {
+    return buffer.getInt(indexPosition + 4 * i);
+  }
+
+  private int position(int i, int n) {
+    return HEADER_SIZE + (first(i) + n) * recordSize;
+  }
+
+  private static int recordSize(int numParams, int suffStatsCount, boolean hasText) {
+    return 8 + 8 * numParams + 4 * suffStatsCount + (hasText ? 3 * 4 : 0);
+  }
+
+
+  /**
+   * Writes a store, one sentence at a time: the candidates of sentence i are added, in order, and
+   * then endSentence() is called, for every sentence from 0 on.
+   */
+  public static class Writer {
+    private final DataOutputStream out;
+    private final int numParams;
+    private final int suffStatsCount;
+    // the text pool, if the store keeps the text of its candidates (null otherwise)
+    private final ByteArrayOutputStream pool;
+
+    private final int[] index;
+    private int sentence = 0;
+    private int count = 0;
+
+    public Writer(String fileName, int numSentences, int numParams, int suffStatsCount)
+        throws IOException {
+      this(fileName, numSentences, numParams, suffStatsCount, false);
+    }
+
+    /**
+     * Creates a writer for a store that also keeps the text of each candidate and of its features
+     * if withText is true.
+     */
+    public Writer(String fileName, int numSentences, int numParams, int suffStatsCount,
+        boolean withText) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+      this.numParams = numParams;
+      this.suffStatsCount = suffStatsCount;
+      this.pool = withText ? new ByteArrayOutputStream() : null;
+      this.index = new int[numSentences + 1];
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numSentences);
+      out.writeInt(numParams);
+      out.writeInt(suffStatsCount);
+      out.writeInt(withText ? 1 : 0);
+    }
+
+    /**
+     * Adds a candidate of the current sentence, with feature values featVal[1..numParams].
+     */
+    public void add(long id, double[] featVal, int[] stats) throws IOException {
+      add(id, featVal, stats, null, null);
+    }
+
+    /**
+     * Adds a candidate of the current sentence, along with its text and the text of its features,
+     * which are kept if the store was created to keep them.
+     */
+    public void add(long id, double[] featVal, int[] stats, String candidate, String feats)
+        throws IOException {
+      out.writeLong(id);
+      for (int c = 1; c <= numParams; ++c)
+        out.writeDouble(featVal[c]);
+      for (int s = 0; s < suffStatsCount; ++s)
+        out.writeInt(stats[s]);
+      if (pool != null) {
+        byte[] candBytes = candidate.getBytes(UTF8);
+        byte[] featBytes = feats.getBytes(UTF8);
+        out.writeInt(pool.size());
+        out.writeInt(candBytes.length);
+        out.writeInt(featBytes.length);
+        pool.write(candBytes);
+        pool.write(featBytes);
+      }
+      ++count;
+    }
+
+    public void endSentence() {
+      index[++sentence] = count;
+    }
+
+    public void close() throws IOException {
+      if (sentence != index.length - 1)
+        throw new IllegalStateException("wrote " + sentence + " of " + (index.length - 1)
+            + " sentences");
+      if (pool != null) pool.writeTo(out);
+      for (int first : index)
+        out.writeInt(first);
+      out.close();
+    }
+  }
+}
@@ -21,12 +21,17 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 import joshua.metrics.EvaluationMetric;
@@ -35,8 +40,7 @@ public class IntermediateOptimizer implements Runnable {
   /* non-static data members */
   private int j;
   private Semaphore blocker;
-  private Vector<String> threadOutput;
-  private String strToPrint;
+  private Output output;
 
   private double[] initialLambda;
   private double[] finalLambda;
@@ -70,6 +74,10 @@ public class IntermediateOptimizer implements Runnable {
   private static String tmpDirPrefix;
   private static int verbosity;
 
+  // the threads that look at the parameters of a step in parallel, shared by all optimizers;
+  // created on first use
+  private static ForkJoinPool paramPool = null;
+
   public static void set_MERTparams(int in_numSentences, int in_numDocuments,
       int[] in_docOfSentence, int[] in_docSubsetInfo, int in_numParams,
       double[] in_normalizationOptions, boolean[] in_isOptimizable, double[] in_minThValue,
@@ -107,8 +115,7 @@ public class IntermediateOptimizer implements Runnable {
       ConcurrentHashMap<Integer, int[]>[] in_suffStats_array) {
     j = in_j;
     blocker = in_blocker;
-    threadOutput = in_threadOutput;
-    strToPrint = "";
+    output = new Output(in_threadOutput);
 
     initialLambda = in_initialLambda;
     finalLambda = in_finalLambda;
@@ -121,8 +128,8 @@ public class IntermediateOptimizer implements Runnable {
 
   // private TreeMap<Double,TreeMap> thresholdsForParam(int c, int[] candCount, double[][][]
   // featVal_array, double[] currLambda, TreeSet<Integer>[] indicesOfInterest)
-  private void set_thresholdsForParam(TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll,
-      int c, double[] currLambda, TreeSet<Integer>[] indicesOfInterest) {
+  private void set_thresholdsForParam(Thresholds thresholdsAll, int c, double[] currLambda,
+      Output out) {
     /*
      * TreeMap[] thresholds = new TreeMap[numSentences]; // thresholds[i] stores thresholds for the
      * cth parameter obtained by // processing the candidates of sentence i. It not only stores the
@@ -138,6 +145,18 @@ public class IntermediateOptimizer implements Runnable {
     // TreeMap<Double,TreeMap> thresholdsAll = new TreeMap<Double,TreeMap>();
     thresholdsAll.clear();
 
+    int maxCandCount = 0;
+    for (int i = 0; i < numSentences; ++i) {
+      maxCandCount = Math.max(maxCandCount, candCount[i]);
+    }
+
+    double[] slope = new double[maxCandCount];
+    // will be h_c from candidatesInfo
+    // repeated here for easy access
+    double[] offset = new double[maxCandCount];
+    // SUM_j!=c currLambda_j*h_j(x)
+    // (both are reused from one sentence to the next)
+
     int ipCount = 0;
     for (int i = 0; i < numSentences; ++i) {
       // find threshold points contributed by ith sentence
@@ -147,12 +166,6 @@ public class IntermediateOptimizer implements Runnable {
       int numCandidates = candCount[i];
       // aka simply K
 
-      double[] slope = new double[numCandidates];
-      // will be h_c from candidatesInfo
-      // repeated here for easy access
-      double[] offset = new double[numCandidates];
-      // SUM_j!=c currLambda_j*h_j(x)
-
       int minSlopeIndex = -1; // index of line with steepest descent...
       double minSlope = PosInf; // ...and its slope...
       double offset_minSlope = NegInf; // ...and its offset (needed to break ties)
@@ -250,8 +263,6 @@ public class IntermediateOptimizer implements Runnable {
       // being discarded anyway due to range constraints, thus saving us a little
       // bit of time.
 
-      int last_new_k = -1;
-
       while (currIndex != maxSlopeIndex) {
 
         if (currIndex < 0) break;
@@ -289,27 +300,10 @@ public class IntermediateOptimizer implements Runnable {
 
         if (nearestIntersectionPoint > minThValue[c] && nearestIntersectionPoint < maxThValue[c]) {
 
-          int[] th_info = {currIndex, nearestIntersectingLineIndex};
-          last_new_k = nearestIntersectingLineIndex;
-
-          indicesOfInterest[i].add(currIndex); // old_k
-          // indicesOfInterest_all[i].add(currIndex); // old_k ***/
-
-          if (!thresholdsAll.containsKey(nearestIntersectionPoint)) {
-            TreeMap<Integer, int[]> A = new TreeMap<Integer, int[]>();
-            A.put(i, th_info);
-            thresholdsAll.put(nearestIntersectionPoint, A);
-          } else {
-            TreeMap<Integer, int[]> A = thresholdsAll.get(nearestIntersectionPoint);
-            if (!A.containsKey(i)) {
-              A.put(i, th_info);
-            } else {
-              int[] old_th_info = A.get(i);
-              old_th_info[1] = th_info[1]; // replace the existing new_k
-              A.put(i, th_info);
-            }
-            thresholdsAll.put(nearestIntersectionPoint, A);
-          }
+          // i.e., at lambda_c = nIP, the (index of the) 1-best changes from currIndex to
+          // nearestIntersectingLineIndex; the old_k's (and the last new_k) are the
+          // candidates whose stats need to be read from the merged stats file
+          thresholdsAll.add(nearestIntersectionPoint, i, currIndex, nearestIntersectingLineIndex);
           /*
            * if (!thresholds.containsKey(nearestIntersectionPoint)) {
            * thresholds.put(nearestIntersectionPoint,th_info); // i.e., at lambda_c = nIP, the
@@ -334,11 +328,6 @@ public class IntermediateOptimizer implements Runnable {
 
       } // end while (currIndex != maxSlopeIndex)
 
-      if (last_new_k != -1) {
-        indicesOfInterest[i].add(last_new_k); // last new_k
-        // indicesOfInterest_all[i].add(last_new_k); // last new_k ***/
-      }
-
       // println("cI=" + currIndex + "(=? " + maxSlopeIndex + " = mxSI)",4);
 
       // now thresholds has the values for lambda_c at which score changes
@@ -373,26 +362,25 @@ public class IntermediateOptimizer implements Runnable {
 
     } // for (i)
 
+    thresholdsAll.sort();
+
     // now thresholdsAll has the values for lambda_c at which score changes
     // based on the candidates for *all* the sentences (that satisfy
     // range constraints).
-    // Each lambda_c value maps to a Vector of th_info. An overwhelming majority
-    // of these Vectors are of size 1.
-
-    // indicesOfInterest[i] tells us which candidates for the ith sentence need
-    // to be read from the merged decoder output file.
+    // Each lambda_c value has a list of switches. An overwhelming majority
+    // of these lists are of size 1.
 
     if (thresholdsAll.size() != 0) {
-      double smallest_th = thresholdsAll.firstKey();
-      double largest_th = thresholdsAll.lastKey();
-      println("# extracted thresholds: " + thresholdsAll.size(), 2);
-      println("Smallest extracted threshold: " + smallest_th, 2);
-      println("Largest extracted threshold: " + largest_th, 2);
+      double smallest_th = thresholdsAll.point(0);
+      double largest_th = thresholdsAll.point(thresholdsAll.size() - 1);
+      out.println("# extracted thresholds: " + thresholdsAll.size(), 2);
+      out.println("Smallest extracted threshold: " + smallest_th, 2);
+      out.println("Largest extracted threshold: " + largest_th, 2);
 
       if (maxThValue[c] != PosInf) {
-        thresholdsAll.put(maxThValue[c], null);
+        thresholdsAll.setEnd(maxThValue[c]);
       } else {
-        thresholdsAll.put((thresholdsAll.lastKey() + 0.1), null);
+        thresholdsAll.setEnd(largest_th + 0.1);
       }
     }
 
@@ -400,9 +388,9 @@ public class IntermediateOptimizer implements Runnable {
 
   } // TreeMap<Double,TreeMap> thresholdsForParam (int c)
 
-  private double[] line_opt(TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll,
-      int[] indexOfCurrBest, int c, double[] lambda) {
-    println("Line-optimizing lambda[" + c + "]...", 3);
+  private double[] line_opt(Thresholds thresholdsAll, int[] indexOfCurrBest, int c,
+      double[] lambda, Output out) {
+    out.println("Line-optimizing lambda[" + c + "]...", 3);
 
     double[] bestScoreInfo = new double[2];
     // to be returned: [0] will store the best lambda, and [1] will store its score
@@ -410,7 +398,7 @@ public class IntermediateOptimizer implements Runnable {
     if (thresholdsAll.size() == 0) {
       // no thresholds extracted! Possible in theory...
       // simply return current value for this parameter
-      println("No thresholds extracted!  Returning this parameter's current value...", 2);
+      out.println("No thresholds extracted!  Returning this parameter's current value...", 2);
 
       bestScoreInfo[0] = lambda[c];
       bestScoreInfo[1] = evalMetric.worstPossibleScore();
@@ -418,10 +406,10 @@ public class IntermediateOptimizer implements Runnable {
       return bestScoreInfo;
     }
 
-    double smallest_th = thresholdsAll.firstKey();
-    double largest_th = thresholdsAll.lastKey();
-    println("Minimum threshold: " + smallest_th, 3);
-    println("Maximum threshold: " + largest_th, 3);
+    double smallest_th = thresholdsAll.point(0);
+    double largest_th = thresholdsAll.point(thresholdsAll.size());
+    out.println("Minimum threshold: " + smallest_th, 3);
+    out.println("Maximum threshold: " + largest_th, 3);
 
     double[] temp_lambda = new double[1 + numParams];
     System.arraycopy(lambda, 1, temp_lambda, 1, numParams);
@@ -438,7 +426,7 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
-    int[][] suffStats = new int[numSentences][suffStatsCount];
+    int[][] suffStats = new int[numSentences][];
     // suffStats[i][s] stores the contribution to the sth sufficient
     // statistic from the candidate for the ith sentence (the candidate
     // indicated by indexOfCurrBest[i]).
@@ -474,30 +462,22 @@ public class IntermediateOptimizer implements Runnable {
       bestScore = evalMetric.score(suffStats_doc);
     double bestLambdaVal = temp_lambda[c];
     double nextLambdaVal = bestLambdaVal;
-    println("At lambda[" + c + "] = " + bestLambdaVal + "," + "\t" + metricName_display + " = "
-        + bestScore + " (*)", 3);
+    out.println("At lambda[" + c + "] = " + bestLambdaVal + "," + "\t" + metricName_display
+        + " = " + bestScore + " (*)", 3);
 
-    Iterator<Double> It = (thresholdsAll.keySet()).iterator();
-    if (It.hasNext()) {
-      ip_curr = It.next();
-    }
+    ip_curr = thresholdsAll.point(0);
 
-    while (It.hasNext()) {
+    for (int t = 0; t < thresholdsAll.size(); ++t) {
       ip_prev = ip_curr;
-      ip_curr = It.next();
+      ip_curr = thresholdsAll.point(t + 1);
       nextLambdaVal = (ip_prev + ip_curr) / 2.0;
 
-      TreeMap<Integer, int[]> th_info_M = thresholdsAll.get(ip_prev);
-      Iterator<Integer> It2 = (th_info_M.keySet()).iterator();
-      while (It2.hasNext()) {
-        int i = It2.next();
+      for (int sw = thresholdsAll.firstSwitch(t); sw < thresholdsAll.firstSwitch(t + 1); ++sw) {
+        int i = thresholdsAll.sentence(sw);
         // i.e. the 1-best for the i'th sentence changes at this threshold value
         int docOf_i = docOfSentence[i];
 
-        int[] th_info = th_info_M.get(i);
-        @SuppressWarnings("unused")
-        int old_k = th_info[0]; // should be equal to indexOfCurrBest[i]
-        int new_k = th_info[1];
+        int new_k = thresholdsAll.candidate(sw);
 
         for (int s = 0; s < suffStatsCount; ++s) {
           suffStats_doc[docOf_i][s] -= suffStats[i][s]; // subtract stats for candidate old_k
@@ -519,20 +499,20 @@ public class IntermediateOptimizer implements Runnable {
       else
         nextTestScore = evalMetric.score(suffStats_doc);
 
-      print("At lambda[" + c + "] = " + nextLambdaVal + "," + "\t" + metricName_display + " = "
-          + nextTestScore, 3);
+      out.print("At lambda[" + c + "] = " + nextLambdaVal + "," + "\t" + metricName_display
+          + " = " + nextTestScore, 3);
 
       if (evalMetric.isBetter(nextTestScore, bestScore)) {
         bestScore = nextTestScore;
         bestLambdaVal = nextLambdaVal;
-        print(" (*)", 3);
+        out.print(" (*)", 3);
       }
 
-      println("", 3);
+      out.println("", 3);
 
-    } // while (It.hasNext())
+    } // for (t)
 
-    println("", 3);
+    out.println("", 3);
 
     // what is the purpose of this block of code ?????????????????????
     /*
@@ -635,7 +615,7 @@ public class IntermediateOptimizer implements Runnable {
     return Math.pow(sum, 1 / pow);
   }
 
-  private int[] initial_indexOfCurrBest(double[] temp_lambda, TreeSet<Integer>[] indicesOfInterest) {
+  private int[] initial_indexOfCurrBest(double[] temp_lambda) {
     int[] indexOfCurrBest = new int[numSentences];
     // As we traverse lambda_c, indexOfCurrBest indicates which is the
     // current best candidate.
@@ -661,20 +641,14 @@ public class IntermediateOptimizer implements Runnable {
 
       indexOfCurrBest[i] = indexOfMax;
 
-      // if (useDisk == 2) {
-      // add indexOfCurrBest[i] to indicesOfInterest
-      indicesOfInterest[i].add(indexOfMax);
-      // indicesOfInterest_all[i].add(indexOfMax);
-      // }
-
     }
 
     return indexOfCurrBest;
 
   } // int[] initial_indexOfCurrBest (int c)
 
-  private double[] bestParamToChange(TreeMap<Double, TreeMap<Integer, int[]>>[] thresholdsAll,
-      int lastChanged_c, double[] currLambda) {
+  private double[] bestParamToChange(final Thresholds[] thresholdsAll, final int lastChanged_c,
+      final double[] currLambda) {
     int c_best = 0; // which parameter to change?
     double bestLambdaVal = 0.0;
     double bestScore;
@@ -686,8 +660,36 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
+    // The parameters are looked at in parallel: first their thresholds are
+    // extracted, and then, once the stats of the candidates of interest have
+    // been read, each is line-optimized. Each parameter writes its output to
+    // its own buffer, and the buffers are copied in order of c, so that the
+    // output is the same as if the parameters were looked at one by one.
+
+    final Output[] paramOutput = new Output[1 + numParams];
+    for (int c = 1; c <= numParams; ++c) {
+      paramOutput[c] = new Output(new Vector<String>());
+    }
+
     // prep for line_opt
 
+    final int[][] indexOfCurrBest = new int[1 + numParams][];
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int c = 1; c <= numParams; ++c) {
+      if (isOptimizable[c]) {
+        final int param = c;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            prepareParam(thresholdsAll[param], param, lastChanged_c, currLambda,
+                indexOfCurrBest, paramOutput[param]);
+            return null;
+          }
+        });
+      }
+    }
+    invokeAll(tasks);
+
     TreeSet<Integer>[] indicesOfInterest = null;
     // indicesOfInterest[i] tells us which candidates for the ith sentence need
     // to be read from the merged decoder output file.
@@ -701,45 +703,22 @@ public class IntermediateOptimizer implements Runnable {
     }
     // }
 
-    int[][] indexOfCurrBest = new int[1 + numParams][numSentences];
-
     for (int c = 1; c <= numParams; ++c) {
       if (!isOptimizable[c]) {
         println("Not investigating lambda[j=" + j + "][" + c + "].", 2);
+        println("", 2);
       } else {
+        output.append(paramOutput[c]);
+
         if (c != lastChanged_c) {
-          println("Investigating lambda[j=" + j + "][" + c + "]...", 2);
-          // thresholdsAll[c] =
-          // thresholdsForParam(c,candCount,featVal_array,currLambda,indicesOfInterest);
-          set_thresholdsForParam(thresholdsAll[c], c, currLambda, indicesOfInterest);
-        } else {
-          println("Keeping thresholds for lambda[j=" + j + "][" + c + "] from previous step.", 2);
+          thresholdsAll[c].addCandidatesOfInterest(indicesOfInterest);
         }
-        // now thresholdsAll has the values for lambda_c at which score changes
-        // based on the candidates for *all* the sentences (that satisfy
-        // range constraints).
-        // Each lambda_c value maps to a Vector of th_info. An overwhelming majority
-        // of these Vectors are of size 1.
-
         if (thresholdsAll[c].size() != 0) {
-
-          double[] temp_lambda = new double[1 + numParams];
-          System.arraycopy(currLambda, 1, temp_lambda, 1, numParams);
-
-          double smallest_th = thresholdsAll[c].firstKey();
-
-          if (minThValue[c] != NegInf) {
-            temp_lambda[c] = (minThValue[c] + smallest_th) / 2.0;
-          } else {
-            temp_lambda[c] = smallest_th - 0.05;
+          for (int i = 0; i < numSentences; ++i) {
+            indicesOfInterest[i].add(indexOfCurrBest[c][i]);
           }
-
-          indexOfCurrBest[c] = initial_indexOfCurrBest(temp_lambda, indicesOfInterest);
         }
       }
-
-      println("", 2);
-
     }
 
 
@@ -752,15 +731,33 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
+    final double[][] bestScoreInfo = new double[1 + numParams][];
+
+    tasks.clear();
+    for (int c = 1; c <= numParams; ++c) {
+      if (isOptimizable[c]) {
+        final int param = c;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            bestScoreInfo[param] =
+                line_opt(thresholdsAll[param], indexOfCurrBest[param], param, currLambda,
+                    paramOutput[param]);
+            return null;
+          }
+        });
+      }
+    }
+    invokeAll(tasks);
+
     for (int c = 1; c <= numParams; ++c) {
       // investigate currLambda[j][c]
 
       if (isOptimizable[c]) {
-        double[] bestScoreInfo_c = line_opt(thresholdsAll[c], indexOfCurrBest[c], c, currLambda);
-        // get best score and its lambda value
+        output.append(paramOutput[c]);
 
-        double bestLambdaVal_c = bestScoreInfo_c[0];
-        double bestScore_c = bestScoreInfo_c[1];
+        // get best score and its lambda value
+        double bestLambdaVal_c = bestScoreInfo[c][0];
+        double bestScore_c = bestScoreInfo[c][1];
 
         if (evalMetric.isBetter(bestScore_c, bestScore)) {
           c_best = c;
@@ -774,30 +771,65 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
-    // delete according to indicesOfInterest
+    double[] c_best_info = {c_best, bestLambdaVal, bestScore};
+    return c_best_info;
 
-    // printMemoryUsage();
+  } // double[] bestParamToChange(int j, double[] currLambda)
 
-    // if (useDisk == 2) {
+  /*
+   * Extracts the thresholds of parameter c (unless it was the one changed last, in which case its
+   * thresholds are still valid), and finds the 1-best candidates at the left end of its line.
+   */
+  private void prepareParam(Thresholds thresholds, int c, int lastChanged_c, double[] currLambda,
+      int[][] indexOfCurrBest, Output out) {
+    if (c != lastChanged_c) {
+      out.println("Investigating lambda[j=" + j + "][" + c + "]...", 2);
+      set_thresholdsForParam(thresholds, c, currLambda, out);
+    } else {
+      out.println("Keeping thresholds for lambda[j=" + j + "][" + c + "] from previous step.", 2);
+    }
 
-    for (int i = 0; i < numSentences; ++i) {
+    if (thresholds.size() != 0) {
 
-      indicesOfInterest[i].clear();
+      double[] temp_lambda = new double[1 + numParams];
+      System.arraycopy(currLambda, 1, temp_lambda, 1, numParams);
 
-    }
+      double smallest_th = thresholds.point(0);
 
-    // }
-
-    // cleanupMemory();
-    // printMemoryUsage();
-    // println("",2);
+      if (minThValue[c] != NegInf) {
+        temp_lambda[c] = (minThValue[c] + smallest_th) / 2.0;
+      } else {
+        temp_lambda[c] = smallest_th - 0.05;
+      }
 
+      indexOfCurrBest[c] = initial_indexOfCurrBest(temp_lambda);
+    }
 
+    out.println("", 2);
+  }
 
-    double[] c_best_info = {c_best, bestLambdaVal, bestScore};
-    return c_best_info;
+  /*
+   * Runs the given tasks on the shared parameter pool, returning when they are all done.
+   */
+  private static void invokeAll(List<Callable<Void>> tasks) {
+    try {
+      for (Future<Void> task : getParamPool().invokeAll(tasks))
+        task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while optimizing parameters");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
 
-  } // double[] bestParamToChange(int j, double[] currLambda)
+  private static synchronized ForkJoinPool getParamPool() {
+    if (paramPool == null) paramPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    return paramPool;
+  }
 
   private void normalizeLambda(double[] origLambda) {
     // private String[] normalizationOptions;
@@ -858,12 +890,11 @@ public class IntermediateOptimizer implements Runnable {
   }
 
   private void real_run() {
-    @SuppressWarnings("unchecked")
-    TreeMap<Double, TreeMap<Integer, int[]>>[] thresholdsAll = new TreeMap[1 + numParams];
+    Thresholds[] thresholdsAll = new Thresholds[1 + numParams];
     thresholdsAll[0] = null;
     for (int c = 1; c <= numParams; ++c) {
       if (isOptimizable[c]) {
-        thresholdsAll[c] = new TreeMap<Double, TreeMap<Integer, int[]>>();
+        thresholdsAll[c] = new Thresholds();
       } else {
         thresholdsAll[c] = null;
       }
@@ -968,26 +999,23 @@ public class IntermediateOptimizer implements Runnable {
       System.err.println("Exception in IntermediateOptimizer.run(): " + e.getMessage());
       System.exit(99905);
     }
-    if (!strToPrint.equals("")) {
-      threadOutput.add(strToPrint);
-    }
+    output.flush();
   }
 
   private void println(String str, int priority) {
-    if (priority <= verbosity) println(str);
+    output.println(str, priority);
   }
 
   private void print(String str, int priority) {
-    if (priority <= verbosity) print(str);
+    output.print(str, priority);
   }
 
   private void println(String str) {
-    threadOutput.add(strToPrint + str);
-    strToPrint = "";
+    output.println(str);
   }
 
   private void print(String str) {
-    strToPrint += str;
+    output.print(str);
   }
 
   private String lambdaToString(double[] lambdaA) {
@@ -999,4 +1027,52 @@ public class IntermediateOptimizer implements Runnable {
 
     return retStr;
   }
+
+  /*
+   * Lines of output, along with the start of the next line, which has been printed but not
+   * finished yet.
+   */
+  private static class Output {
+    private final Vector<String> lines;
+    private String strToPrint = "";
+
+    Output(Vector<String> lines) {
+      this.lines = lines;
+    }
+
+    void println(String str, int priority) {
+      if (priority <= verbosity) println(str);
+    }
+
+    void print(String str, int priority) {
+      if (priority <= verbosity) print(str);
+    }
+
+    void println(String str) {
+      lines.add(strToPrint + str);
+      strToPrint = "";
+    }
+
+    void print(String str) {
+      strToPrint += str;
+    }
+
+    /* Moves everything written to other to the end of this output. */
+    void append(Output other) {
+      for (String line : other.lines) {
+        println(line);
+      }
+      print(other.strToPrint);
+      other.lines.clear();
+      other.strToPrint = "";
+    }
+
+    /* Finishes the last line, if one was started. */
+    void flush() {
+      if (!strToPrint.equals("")) {
+        lines.add(strToPrint);
+        strToPrint = "";
+      }
+    }
+  }
 }
@@ -46,7 +46,11 @@ import java.util.concurrent.Semaphore;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.JoshuaDecoder;
+import joshua.decoder.Translation;
+import joshua.decoder.TranslationHandler;
+import joshua.decoder.hypergraph.KBestExtractor.Hypothesis;
 import joshua.metrics.EvaluationMetric;
 import joshua.util.StreamGobbler;
 
@@ -458,7 +462,7 @@ public class MertCore {
 
     if (decoderCommand == null && fakeFileNameTemplate == null) {
       println("Loading Joshua decoder...", 1);
-      myDecoder = new JoshuaDecoder(decoderConfigFileName + ".ZMERT.orig");
+      myDecoder = loadDecoder(decoderConfigFileName + ".ZMERT.orig");
       println("...finished loading @ " + (new Date()), 1);
       println("");
     } else {
@@ -557,6 +561,7 @@ public class MertCore {
 
     // delete intermediate .temp.*.it* decoder output files
     for (int iteration = 1; iteration <= maxIts; ++iteration) {
+      deleteFile(tmpDirPrefix + "temp.cands.it" + iteration);
       if (compressFiles == 1) {
         deleteFile(tmpDirPrefix + "temp.sents.it" + iteration + ".gz");
         deleteFile(tmpDirPrefix + "temp.feats.it" + iteration + ".gz");
@@ -642,11 +647,13 @@ public class MertCore {
         println("...finished decoding @ " + (new Date()), 1);
       }
 
-      checkFile(decRunResult[0]);
+      if (!decRunResult[1].equals("3")) { // the internal decoder has produced the temp files
+        checkFile(decRunResult[0]);
 
-      println("Producing temp files for iteration " + iteration, 3);
+        println("Producing temp files for iteration " + iteration, 3);
 
-      produceTempFiles(decRunResult[0], iteration);
+        produceTempFiles(decRunResult[0], iteration);
+      }
 
       if (saveInterFiles == 1 || saveInterFiles == 3) { // make copy of intermediate config file
         if (!copyFile(decoderConfigFileName, decoderConfigFileName + ".ZMERT.it" + iteration)) {
@@ -657,7 +664,7 @@ public class MertCore {
       if (saveInterFiles == 2 || saveInterFiles == 3) { // make copy of intermediate decoder output
                                                         // file...
 
-        if (!decRunResult[1].equals("2")) { // ...but only if no fake decoder
+        if (decRunResult[1].equals("1")) { // ...but only if an external decoder wrote one
           if (!decRunResult[0].endsWith(".gz")) {
             if (!copyFile(decRunResult[0], decRunResult[0] + ".ZMERT.it" + iteration)) {
               println("Warning: attempt to make copy of decoder output file (to create"
@@ -734,35 +741,19 @@ public class MertCore {
 
       try {
 
-        // each inFile corresponds to the output of an iteration
+        // each store holds the distinct candidates of an earlier iteration
         // (index 0 is not used; no corresponding index for the current iteration)
-        BufferedReader[] inFile_sents = new BufferedReader[iteration];
-        BufferedReader[] inFile_feats = new BufferedReader[iteration];
-        BufferedReader[] inFile_stats = new BufferedReader[iteration];
+        CandidateStore[] prevCands = new CandidateStore[iteration];
 
         for (int it = firstIt; it < iteration; ++it) {
-          InputStream inStream_sents, inStream_feats, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_feats = new FileInputStream(tmpDirPrefix + "temp.feats.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.sents.it" + it + ".gz"));
-            inStream_feats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.feats.it" + it + ".gz"));
-            inStream_stats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.stats.it" + it + ".gz"));
-          }
-
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+          prevCands[it] = CandidateStore.open(tmpDirPrefix + "temp.cands.it" + it);
         }
 
+        // the distinct candidates of the current iteration, written as they are processed
+        CandidateStore.Writer currCands =
+            new CandidateStore.Writer(tmpDirPrefix + "temp.cands.it" + iteration, numSentences,
+                numParams, suffStatsCount);
+
 
         InputStream inStream_sentsCurrIt, inStream_featsCurrIt, inStream_statsCurrIt;
         if (compressFiles == 0) {
@@ -832,9 +823,9 @@ public class MertCore {
         // (It's not actually a bug, but only because existingCandStats gets
         // cleared before moving to the next source sentence.)
         // FIX: should be made an array, indexed by i
-        HashMap<String, String> existingCandStats = new HashMap<String, String>();
-        // Stores precalculated sufficient statistics for candidates, in case
-        // the same candidate is seen again. (SS stored as a String.)
+        HashMap<Long, int[]> existingCandStats = new HashMap<Long, int[]>();
+        // Stores precalculated sufficient statistics for candidates (keyed by
+        // candidate id), in case the same candidate is seen again.
         // Q: Why do we care? If we see the same candidate again, aren't we going
         // to ignore it? So, why do we care about the SS of this repeat candidate?
         // A: A "repeat" candidate may not be a repeat candidate in later
@@ -842,6 +833,10 @@ public class MertCore {
         // that causes MERT to skip candidates from early iterations.
         double[] currFeatVal = new double[1 + numParams];
         String[] featVal_str;
+        long cand_id;
+
+        // marks the candidates of the current iteration whose SS are not known yet
+        final int[] unknownStats = new int[0];
 
         int totalCandidateCount = 0;
 
@@ -863,31 +858,19 @@ public class MertCore {
             // the SS must be claculated (and the corresponding file created),
             // which is not true for previous iterations.
 
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-              // Why up to and *including* sizeOfNBest?
-              // So that it would read the "||||||" separator even if there is
-              // a complete list of sizeOfNBest candidates.
-
-              // for the nth candidate for the ith sentence, read the sentence, feature values,
-              // and sufficient statistics from the various temp files
+            for (int n = 0; n < prevCands[it].count(i); ++n) {
+              // for the nth candidate for the ith sentence, read the feature values
+              // and sufficient statistics from the iteration's candidate store
 
-              sents_str = inFile_sents[it].readLine();
-              feats_str = inFile_feats[it].readLine();
-              stats_str = inFile_stats[it].readLine();
+              cand_id = prevCands[it].id(i, n);
 
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
+              if (!existingCandStats.containsKey(cand_id)) {
 
-                outFile_statsMergedKnown.println(stats_str);
-
-                featVal_str = feats_str.split("\\s+");
+                int[] stats = new int[suffStatsCount];
+                prevCands[it].suffStats(i, n, stats);
+                outFile_statsMergedKnown.println(suffStatsToString(stats));
 
-                for (int c = 1; c <= numParams; ++c) {
-                  currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
-                  // print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
-                }
-                // println("",4);
+                prevCands[it].features(i, n, currFeatVal);
 
 
                 for (int j = 1; j <= initsPerIt; ++j) {
@@ -897,13 +880,12 @@ public class MertCore {
                   }
                   if (score > best1Score[j][i]) {
                     best1Score[j][i] = score;
-                    String[] tempStats = stats_str.split("\\s+");
                     for (int s = 0; s < suffStatsCount; ++s)
-                      best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]);
+                      best1Cand_suffStats[j][i][s] = stats[s];
                   }
                 } // for (j)
 
-                existingCandStats.put(sents_str, stats_str);
+                existingCandStats.put(cand_id, stats);
 
                 setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
                 candCount[i] += 1;
@@ -946,12 +928,12 @@ public class MertCore {
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
+            } else if (!existingCandStats.containsKey(CandidateStore.id(sents_str))) {
               unknownCands_V.add(sents_str);
               writeLine(sents_str, outFile_unknownCands);
               outFile_unknownIndices.println(i);
               newCandidatesAdded[iteration] += 1;
-              existingCandStats.put(sents_str, "U"); // i.e. unknown
+              existingCandStats.put(CandidateStore.id(sents_str), unknownStats); // i.e. unknown
               // we add sents_str to avoid duplicate entries in unknownCands_V
             }
 
@@ -988,27 +970,6 @@ public class MertCore {
         outFile_unknownIndices.close();
 
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_stats[it].close();
-
-          InputStream inStream_sents, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.sents.it" + it + ".gz"));
-            inStream_stats =
-                new GZIPInputStream(
-                    new FileInputStream(tmpDirPrefix + "temp.stats.it" + it + ".gz"));
-          }
-
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
-        }
-
         inFile_sentsCurrIt.close();
         if (compressFiles == 0) {
           inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix + "temp.sents.it" + iteration);
@@ -1048,15 +1009,14 @@ public class MertCore {
 
           // reprocess candidates from previous iterations
           for (int it = firstIt; it < iteration; ++it) {
-            for (int n = 0; n <= sizeOfNBest; ++n) {
+            for (int n = 0; n < prevCands[it].count(i); ++n) {
 
-              sents_str = inFile_sents[it].readLine();
-              stats_str = inFile_stats[it].readLine();
+              cand_id = prevCands[it].id(i, n);
 
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
-                existingCandStats.put(sents_str, stats_str);
+              if (!existingCandStats.containsKey(cand_id)) {
+                int[] prevStats = new int[suffStatsCount];
+                prevCands[it].suffStats(i, n, prevStats);
+                existingCandStats.put(cand_id, prevStats);
               } // if unseen candidate
 
             } // for (n)
@@ -1075,6 +1035,9 @@ public class MertCore {
 
           int[] stats = new int[suffStatsCount];
 
+          // the candidates of this iteration already added to its store
+          HashSet<Long> currCandIds = new HashSet<Long>();
+
           for (int n = 0; n <= sizeOfNBest; ++n) {
             // Why up to and *including* sizeOfNBest?
             // So that it would read the "||||||" separator even if there is
@@ -1088,7 +1051,7 @@ public class MertCore {
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
+            } else if (!existingCandStats.containsKey(cand_id = CandidateStore.id(sents_str))) {
 
               ++d;
 
@@ -1138,7 +1101,9 @@ public class MertCore {
                 }
               } // for (j)
 
-              existingCandStats.put(sents_str, stats_str);
+              existingCandStats.put(cand_id, stats.clone());
+              currCands.add(cand_id, currFeatVal, stats);
+              currCandIds.add(cand_id);
 
               setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
               candCount[i] += 1;
@@ -1147,17 +1112,29 @@ public class MertCore {
               // moved to code above detecting new candidates
 
             } else {
+              int[] knownStats = existingCandStats.get(cand_id);
               if (statsCurrIt_exists)
                 inFile_statsCurrIt.readLine();
               else {
                 // write SS to outFile_statsCurrIt
-                stats_str = existingCandStats.get(sents_str);
-                outFile_statsCurrIt.println(stats_str);
+                outFile_statsCurrIt.println(suffStatsToString(knownStats));
+              }
+
+              // a candidate seen in an earlier iteration is still a candidate of
+              // this one, for the iterations that will look back only this far
+              if (currCandIds.add(cand_id)) {
+                featVal_str = feats_str.split("\\s+");
+                for (int c = 1; c <= numParams; ++c) {
+                  currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
+                }
+                currCands.add(cand_id, currFeatVal, knownStats);
               }
             }
 
           } // for (n)
 
+          currCands.endSentence();
+
           // now d = sizeUnknown_currIt[i] - 1
 
           if (statsCurrIt_exists)
@@ -1184,11 +1161,7 @@ public class MertCore {
 
         println("", 1); // finish progress line
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_feats[it].close();
-          inFile_stats[it].close();
-        }
+        currCands.close();
 
         inFile_sentsCurrIt.close();
         inFile_featsCurrIt.close();
@@ -1382,9 +1355,25 @@ public class MertCore {
     return retStr;
   }
 
+  /*
+   * Loads the decoder in this JVM. As when the decoder is run on its own, the configuration is read
+   * before the models are loaded.
+   */
+  private JoshuaDecoder loadDecoder(String configFileName) {
+    try {
+      JoshuaConfiguration.readConfigFile(configFileName);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.loadDecoder(String): " + e.getMessage());
+      System.exit(99902);
+    }
+    JoshuaConfiguration.sanityCheck();
+    return new JoshuaDecoder(configFileName);
+  }
+
   private String[] run_decoder(int iteration) {
     String[] retSA = new String[2];
     // [0] name of file to be processed
+    // (null for the internal decoder, which produces the temp files itself)
     // [1] indicates how the output file was obtained:
     // 1: external decoder
     // 2: fake decoder
@@ -1405,7 +1394,7 @@ public class MertCore {
 
       if (myDecoder == null) {
         println("Loading Joshua decoder...", 1);
-        myDecoder = new JoshuaDecoder(decoderConfigFileName + ".ZMERT.orig");
+        myDecoder = loadDecoder(decoderConfigFileName + ".ZMERT.orig");
         println("...finished loading @ " + (new Date()), 1);
         println("");
       }
@@ -1415,9 +1404,19 @@ public class MertCore {
       double[] zeroBased_lambda = new double[numParams];
       System.arraycopy(lambda, 1, zeroBased_lambda, 0, numParams);
       myDecoder.changeBaselineFeatureWeights(zeroBased_lambda);
-      myDecoder.decodeTestSet(sourceFileName, decoderOutFileName);
 
-      retSA[0] = decoderOutFileName;
+      // the candidates go straight from the decoder into this iteration's temp files, instead of
+      // through an n-best file that produceTempFiles() would have to parse
+      try {
+        TempFileWriter tempFiles = new TempFileWriter(iteration);
+        myDecoder.decodeTestSet(sourceFileName, tempFiles);
+        tempFiles.close();
+      } catch (IOException e) {
+        System.err.println("IOException in MertCore.run_decoder(int): " + e.getMessage());
+        System.exit(99902);
+      }
+
+      retSA[0] = null;
       retSA[1] = "3";
 
     } else {
@@ -1560,6 +1559,64 @@ public class MertCore {
 
   }
 
+  /*
+   * Writes the candidates of an iteration, as the internal decoder hands them over, to the same temp
+   * files that produceTempFiles() makes from an n-best file. The feature values are written in full
+   * rather than rounded, as they would be in the n-best file.
+   */
+  private class TempFileWriter implements TranslationHandler {
+    private final String sentsFileName;
+    private final String featsFileName;
+    private final BufferedWriter outFile_sents;
+    private final PrintWriter outFile_feats;
+
+    TempFileWriter(int iteration) throws IOException {
+      sentsFileName = tmpDirPrefix + "temp.sents.it" + iteration;
+      featsFileName = tmpDirPrefix + "temp.feats.it" + iteration;
+
+      outFile_sents =
+          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sentsFileName, false),
+              "utf8"));
+      outFile_feats = new PrintWriter(featsFileName);
+    }
+
+    public void handle(Translation translation) {
+      try {
+        StringBuilder feats = new StringBuilder();
+        for (Hypothesis hyp : translation.kBest(sizeOfNBest)) {
+          String candidate_str = normalize(hyp.words(), textNormMethod);
+          outFile_sents.write(candidate_str, 0, candidate_str.length());
+          outFile_sents.newLine();
+
+          feats.setLength(0);
+          for (double value : hyp.features()) {
+            if (feats.length() > 0) feats.append(' ');
+            feats.append(value);
+          }
+          outFile_feats.println(feats);
+        }
+
+        outFile_sents.write("||||||");
+        outFile_sents.newLine();
+        outFile_feats.println("||||||");
+      } catch (IOException e) {
+        System.err.println("IOException in MertCore.TempFileWriter.handle(Translation): "
+            + e.getMessage());
+        System.exit(99902);
+      }
+    }
+
+    void close() throws IOException {
+      outFile_sents.close();
+      outFile_feats.close();
+
+      if (compressFiles == 1) {
+        gzipFile(sentsFileName);
+        gzipFile(featsFileName);
+      }
+    }
+  }
+
   private void createConfigFile(double[] params, String cfgFileName, String templateFileName) {
     try {
       // i.e. create cfgFileName, which is similar to templateFileName, but with
@@ -1971,6 +2028,15 @@ public class MertCore {
     }
   }
 
+  private String suffStatsToString(int[] stats) {
+    StringBuilder sb = new StringBuilder();
+    for (int s = 0; s < suffStatsCount; ++s) {
+      if (s > 0) sb.append(' ');
+      sb.append(stats[s]);
+    }
+    return sb.toString();
+  }
+
   private void writeLine(String line, BufferedWriter writer) throws IOException {
     writer.write(line, 0, line.length());
     writer.newLine();
@@ -3263,6 +3329,7 @@ public class MertCore {
 
       // delete intermediate .temp.*.it* decoder output files
       for (int iteration = 1; iteration <= DMC.maxMERTIterations; ++iteration) {
+        DMC.deleteFile(DMC.tmpDirPrefix + "temp.cands.it" + iteration);
         if (DMC.compressFiles == 1) {
           DMC.deleteFile(DMC.tmpDirPrefix + "temp.sents.it" + iteration + ".gz");
           DMC.deleteFile(DMC.tmpDirPrefix + "temp.feats.it" + iteration + ".gz");
@@ -0,0 +1,191 @@
+/*
+ * This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package joshua.zmert;
+
+import java.util.TreeSet;
+
+/**
+ * The thresholds of one parameter: the values of lambda[c] at which the 1-best candidate of some
+ * sentence changes, while the other parameters stay fixed.
+ *
+ * The switches are added sentence by sentence, in the order in which they are found, and then
+ * sorted. After that, the thresholds can be swept from left to right. Threshold t (0 <= t < size())
+ * is at point(t), and point(size()) is the end of the sweep. The sentences whose 1-best changes at
+ * threshold t are sentence(s), for firstSwitch(t) <= s < firstSwitch(t + 1), and their new 1-best
+ * candidates are candidate(s).
+ *
+ * Everything is kept in primitive arrays, which are reused from one step of the line search to the
+ * next, and only grow when they need to.
+ */
+class Thresholds {
+
+  // the switches, in the order they were added
+  private double[] points = new double[16];
+  private int[] sentences = new int[16];
+  private int[] oldCandidates = new int[16];
+  private int[] newCandidates = new int[16];
+  private int count = 0;
+
+  // the distinct points, in increasing order, followed by the end of the sweep
+  private double[] distinct = new double[16];
+  // where the switches at each distinct point begin in switchSentence[] and switchCandidate[]
+  private int[] firstSwitch = new int[17];
+  private int[] switchSentence = new int[16];
+  private int[] switchCandidate = new int[16];
+  private int size = 0;
+
+  // scratch space for sorting
+  private int[] order = new int[16];
+  private int[] buffer = new int[16];
+
+  /** Removes all thresholds. */
+  void clear() {
+    count = 0;
+    size = 0;
+  }
+
+  /**
+   * Adds a switch of the 1-best candidate of sentence i, from oldK to newK, at the given point.
+   * The switches of each sentence are added one after the other, before those of the next.
+   */
+  void add(double point, int i, int oldK, int newK) {
+    if (count == points.length) {
+      int capacity = 2 * count;
+      points = grow(points, capacity);
+      sentences = grow(sentences, capacity);
+      oldCandidates = grow(oldCandidates, capacity);
+      newCandidates = grow(newCandidates, capacity);
+    }
+    points[count] = point;
+    sentences[count] = i;
+    oldCandidates[count] = oldK;
+    newCandidates[count] = newK;
+    ++count;
+  }
+
+  /**
+   * Sorts the switches added so far by their point, and groups the ones at the same point. If a
+   * sentence has more than one switch at the same point (two intersection points so close to each
+   * other that they got the same value), the last one added wins. That is, we pretend that the
+   * candidates in between never won.
+   */
+  void sort() {
+    if (order.length < count) {
+      order = new int[points.length];
+      buffer = new int[points.length];
+    }
+    for (int e = 0; e < count; ++e)
+      order[e] = e;
+    // stable, so switches at the same point stay in the order they were added: by sentence, and
+    // within a sentence, in the order they were found
+    sortOrder(0, count);
+
+    if (distinct.length < count + 1) {
+      distinct = new double[points.length + 1];
+      firstSwitch = new int[points.length + 2];
+      switchSentence = new int[points.length];
+      switchCandidate = new int[points.length];
+    }
+
+    size = 0;
+    int n = 0;
+    for (int o = 0; o < count; ++o) {
+      int e = order[o];
+      if (size == 0 || Double.compare(points[e], distinct[size - 1]) != 0) {
+        distinct[size] = points[e];
+        firstSwitch[size] = n;
+        ++size;
+      } else if (n > firstSwitch[size - 1] && switchSentence[n - 1] == sentences[e]) {
+        switchCandidate[n - 1] = newCandidates[e];
+        continue;
+      }
+      switchSentence[n] = sentences[e];
+      switchCandidate[n] = newCandidates[e];
+      ++n;
+    }
+    firstSwitch[size] = n;
+  }
+
+  /** Sets the point at which the sweep ends, past the last threshold. */
+  void setEnd(double point) {
+    distinct[size] = point;
+  }
+
+  /** The number of distinct thresholds. */
+  int size() {
+    return size;
+  }
+
+  double point(int t) {
+    return distinct[t];
+  }
+
+  int firstSwitch(int t) {
+    return firstSwitch[t];
+  }
+
+  int sentence(int s) {
+    return switchSentence[s];
+  }
+
+  int candidate(int s) {
+    return switchCandidate[s];
+  }
+
+  /**
+   * Adds the candidates that take part in the switches to indicesOfInterest: the old 1-best of
+   * every switch, and the last new 1-best of each sentence.
+   */
+  void addCandidatesOfInterest(TreeSet<Integer>[] indicesOfInterest) {
+    for (int e = 0; e < count; ++e) {
+      indicesOfInterest[sentences[e]].add(oldCandidates[e]);
+      if (e == count - 1 || sentences[e + 1] != sentences[e])
+        indicesOfInterest[sentences[e]].add(newCandidates[e]);
+    }
+  }
+
+  /*
+   * Merge-sorts order[from..to) by point.
+   */
+  private void sortOrder(int from, int to) {
+    if (to - from < 2) return;
+    int mid = (from + to) >>> 1;
+    sortOrder(from, mid);
+    sortOrder(mid, to);
+    if (Double.compare(points[order[mid - 1]], points[order[mid]]) <= 0) return;
+
+    System.arraycopy(order, from, buffer, from, to - from);
+    int a = from, b = mid;
+    for (int o = from; o < to; ++o) {
+      if (b == to || (a < mid && Double.compare(points[buffer[a]], points[buffer[b]]) <= 0))
+        order[o] = buffer[a++];
+      else
+        order[o] = buffer[b++];
+    }
+  }
+
+  private static double[] grow(double[] array, int capacity) {
+    double[] grown = new double[capacity];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static int[] grow(int[] array, int capacity) {
+    int[] grown = new int[capacity];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+}
@@ -0,0 +1,184 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.corpus;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for writing and reading vocabulary files, in both the mapped and the older format.
+ */
+public class VocabularyTest {
+
+	private static final String[] WORDS = { "the", "house", "[X]", "H\u00e4uschen", "[X,1]", "klein" };
+
+	private static File tempFile() throws IOException {
+		File file = File.createTempFile("vocab", null);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/* Reads a vocabulary with just the test words, and returns their ids. */
+	private static int[] readWords() throws IOException {
+		File file = tempFile();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(0);
+		out.close();
+		Vocabulary.read(file.getPath());
+
+		int[] ids = new int[WORDS.length];
+		for (int i = 0; i < WORDS.length; i++)
+			ids[i] = Vocabulary.id(WORDS[i]);
+		return ids;
+	}
+
+	@Test
+	public void writeThenRead() throws IOException {
+		int[] ids = readWords();
+
+		File file = tempFile();
+		Vocabulary.write(file.getPath());
+		Assert.assertTrue(MappedVocabulary.isMapped(file.getPath()));
+
+		Vocabulary.id("forgotten");
+		Assert.assertTrue(Vocabulary.read(file.getPath()));
+
+		Assert.assertEquals(Vocabulary.size(), WORDS.length + 1);
+		for (int i = 0; i < WORDS.length; i++) {
+			Assert.assertEquals(Vocabulary.id(WORDS[i]), ids[i]);
+			Assert.assertEquals(Vocabulary.word(ids[i]), WORDS[i]);
+		}
+		Assert.assertEquals(Vocabulary.size(), WORDS.length + 1);
+		Assert.assertEquals(Vocabulary.word(Vocabulary.getUnknownId()), Vocabulary.getUnknownWord());
+	}
+
+	@Test
+	public void freezeThenWrite() throws IOException {
+		readWords();
+
+		// as the grammar packer does
+		Vocabulary.freeze();
+		int[] ids = new int[WORDS.length];
+		for (int i = 0; i < WORDS.length; i++)
+			ids[i] = Vocabulary.id(WORDS[i]);
+
+		File file = tempFile();
+		Vocabulary.write(file.getPath());
+		Assert.assertTrue(Vocabulary.read(file.getPath()));
+
+		for (int i = 0; i < WORDS.length; i++) {
+			Assert.assertEquals(Vocabulary.id(WORDS[i]), ids[i]);
+			Assert.assertEquals(Vocabulary.word(ids[i]), WORDS[i]);
+		}
+	}
+
+	@Test
+	public void nonterminals() throws IOException {
+		readWords();
+
+		File file = tempFile();
+		Vocabulary.write(file.getPath());
+		Vocabulary.read(file.getPath());
+
+		for (String word : WORDS) {
+			int id = Vocabulary.id(word);
+			Assert.assertEquals(Vocabulary.nt(id), Vocabulary.nt(word));
+			Assert.assertEquals(Vocabulary.word(id), word);
+			Assert.assertEquals(Vocabulary.word(-id), word);
+		}
+		Assert.assertTrue(Vocabulary.id("[X]") < 0);
+		Assert.assertTrue(Vocabulary.id("the") > 0);
+	}
+
+	@Test
+	public void wordsBeyondMapped() throws IOException {
+		readWords();
+
+		File file = tempFile();
+		Vocabulary.write(file.getPath());
+		Vocabulary.read(file.getPath());
+
+		int mappedSize = Vocabulary.size();
+		int oov = Vocabulary.id("Gartenhaus");
+		int nt = Vocabulary.id("[S]");
+		Assert.assertEquals(oov, mappedSize);
+		Assert.assertEquals(nt, -(mappedSize + 1));
+		Assert.assertEquals(Vocabulary.id("Gartenhaus"), oov);
+		Assert.assertEquals(Vocabulary.word(oov), "Gartenhaus");
+		Assert.assertEquals(Vocabulary.word(nt), "[S]");
+		Assert.assertEquals(Vocabulary.size(), mappedSize + 2);
+
+		Assert.assertTrue(Vocabulary.hasId(oov));
+		Assert.assertFalse(Vocabulary.hasId(mappedSize + 2));
+
+		// the mapped words keep their ids
+		for (int i = 1; i < mappedSize; i++)
+			Assert.assertEquals(Math.abs(Vocabulary.id(Vocabulary.word(i))), i);
+	}
+
+	@Test(expectedExceptions = Vocabulary.UnknownSymbolException.class)
+	public void unknownId() throws IOException {
+		readWords();
+
+		File file = tempFile();
+		Vocabulary.write(file.getPath());
+		Vocabulary.read(file.getPath());
+
+		Vocabulary.word(Vocabulary.size());
+	}
+
+	@Test
+	public void readLegacy() throws IOException {
+		File file = tempFile();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(WORDS.length);
+		for (int i = 0; i < WORDS.length; i++) {
+			out.writeInt(i + 1);
+			out.writeUTF(WORDS[i]);
+		}
+		out.close();
+		Assert.assertFalse(MappedVocabulary.isMapped(file.getPath()));
+
+		Assert.assertTrue(Vocabulary.read(file.getPath()));
+		Assert.assertEquals(Vocabulary.size(), WORDS.length + 1);
+		for (int i = 0; i < WORDS.length; i++) {
+			Assert.assertEquals(Math.abs(Vocabulary.id(WORDS[i])), i + 1);
+			Assert.assertEquals(Vocabulary.word(i + 1), WORDS[i]);
+		}
+		Assert.assertTrue(Vocabulary.id("[X,1]") < 0);
+	}
+
+	@Test
+	public void readLegacyMismatch() throws IOException {
+		File file = tempFile();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(2);
+		out.writeInt(1);
+		out.writeUTF("the");
+		out.writeInt(3);
+		out.writeUTF("house");
+		out.close();
+
+		Assert.assertFalse(Vocabulary.read(file.getPath()));
+	}
+
+}
@@ -0,0 +1,196 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.decoder.chart_parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import joshua.decoder.hypergraph.HGNode;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for NodeTable.
+ */
+public class NodeTableTest {
+
+	/* The capacity of a new table. */
+	private static final int CAPACITY = 16;
+
+	/* Nodes without states: the signature is just the lhs. */
+	private static HGNode node(int lhs) {
+		return new HGNode(0, 1, lhs, null, null, 0.0);
+	}
+
+	/* The slot a node hashes to in a table of the given capacity. */
+	private static int home(HGNode node, int capacity) {
+		long hash = node.getSignatureHash();
+		return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+	}
+
+	/* Returns count nodes with distinct signatures that hash to the given slot of a new table. */
+	private static List<HGNode> nodesAt(int slot, int count, Set<Integer> used) {
+		List<HGNode> nodes = new ArrayList<HGNode>();
+		for (int lhs = 1; nodes.size() < count; lhs++) {
+			HGNode node = node(lhs);
+			if (!used.contains(lhs) && home(node, CAPACITY) == slot) {
+				used.add(lhs);
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	private static void assertContains(NodeTable table, List<HGNode> nodes) {
+		for (HGNode node : nodes) {
+			// look up an equal node, not the same object
+			Assert.assertSame(table.get(node(node.lhs)), node);
+		}
+	}
+
+	@Test
+	public void replace() {
+		NodeTable table = new NodeTable();
+		HGNode first = node(7);
+		HGNode second = node(7);
+		table.put(first);
+		table.put(second);
+
+		Assert.assertEquals(table.size(), 1);
+		Assert.assertSame(table.get(node(7)), second);
+		Assert.assertNull(table.get(node(8)));
+	}
+
+	@Test
+	public void removeWrapsAround() {
+		Set<Integer> used = new HashSet<Integer>();
+		// three nodes that hash to the last slot, so the cluster continues at the start of the array,
+		// and one that hashes to slot 0 and is pushed behind them
+		List<HGNode> last = nodesAt(CAPACITY - 1, 3, used);
+		List<HGNode> first = nodesAt(0, 1, used);
+
+		NodeTable table = new NodeTable();
+		for (HGNode node : last)
+			table.put(node);
+		table.put(first.get(0));
+
+		table.remove(node(last.get(0).lhs));
+
+		Assert.assertEquals(table.size(), 3);
+		Assert.assertNull(table.get(last.get(0)));
+		assertContains(table, last.subList(1, 3));
+		assertContains(table, first);
+
+		// and again from the front of the array
+		table.remove(last.get(2));
+
+		Assert.assertEquals(table.size(), 2);
+		Assert.assertNull(table.get(last.get(2)));
+		assertContains(table, last.subList(1, 2));
+		assertContains(table, first);
+	}
+
+	@Test
+	public void removeFromMiddleOfCluster() {
+		Set<Integer> used = new HashSet<Integer>();
+		// a cluster over slots 3 .. 7: three nodes that hash to 3, one that hashes to 4 (and ends up
+		// in 6), and one that hashes to 7 (and stays there)
+		List<HGNode> three = nodesAt(3, 3, used);
+		List<HGNode> four = nodesAt(4, 1, used);
+		List<HGNode> seven = nodesAt(7, 1, used);
+
+		NodeTable table = new NodeTable();
+		for (HGNode node : three)
+			table.put(node);
+		table.put(four.get(0));
+		table.put(seven.get(0));
+
+		table.remove(three.get(1));
+
+		Assert.assertEquals(table.size(), 4);
+		Assert.assertNull(table.get(three.get(1)));
+		assertContains(table, three.subList(0, 1));
+		assertContains(table, three.subList(2, 3));
+		assertContains(table, four);
+		assertContains(table, seven);
+
+		// removing a node that is not there changes nothing
+		table.remove(three.get(1));
+		Assert.assertEquals(table.size(), 4);
+	}
+
+	@Test
+	public void resize() {
+		List<HGNode> nodes = new ArrayList<HGNode>();
+		NodeTable table = new NodeTable();
+		for (int lhs = 1; lhs <= 10 * CAPACITY; lhs++) {
+			HGNode node = node(lhs);
+			nodes.add(node);
+			table.put(node);
+			Assert.assertEquals(table.size(), lhs);
+		}
+		assertContains(table, nodes);
+		Assert.assertEquals(table.toArray().length, nodes.size());
+
+		for (int k = 0; k < nodes.size(); k += 2)
+			table.remove(nodes.get(k));
+		Assert.assertEquals(table.size(), nodes.size() / 2);
+		for (int k = 0; k < nodes.size(); k++) {
+			if (k % 2 == 0)
+				Assert.assertNull(table.get(nodes.get(k)));
+			else
+				Assert.assertSame(table.get(nodes.get(k)), nodes.get(k));
+		}
+	}
+
+	@Test
+	public void randomOperations() {
+		Random random = new Random(42);
+		NodeTable table = new NodeTable();
+		Map<Integer, HGNode> expected = new HashMap<Integer, HGNode>();
+
+		for (int k = 0; k < 20000; k++) {
+			int lhs = 1 + random.nextInt(200);
+			if (random.nextInt(3) == 0) {
+				table.remove(node(lhs));
+				expected.remove(lhs);
+			} else {
+				HGNode node = node(lhs);
+				table.put(node);
+				expected.put(lhs, node);
+			}
+			Assert.assertEquals(table.size(), expected.size());
+		}
+
+		for (int lhs = 1; lhs <= 200; lhs++) {
+			HGNode node = table.get(node(lhs));
+			if (expected.containsKey(lhs))
+				Assert.assertSame(node, expected.get(lhs));
+			else
+				Assert.assertNull(node);
+		}
+		for (HGNode node : table.toArray())
+			Assert.assertSame(expected.get(node.lhs), node);
+	}
+
+}
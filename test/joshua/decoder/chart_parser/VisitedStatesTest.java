@@ -0,0 +1,135 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.decoder.chart_parser;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for VisitedStates, on both the packed path and the overflow path for states that
+ * don't fit in a long.
+ */
+public class VisitedStatesTest {
+
+	/*
+	 * The largest rank that fits in the packed key of a state with the given number of ranks (at
+	 * least two, so that it is an int).
+	 */
+	private static int maxPackedRank(int numRanks) {
+		return (1 << (48 / numRanks)) - 1;
+	}
+
+	@Test
+	public void packed() {
+		VisitedStates visited = new VisitedStates();
+
+		Assert.assertTrue(visited.add(0, new int[] { 1, 1, 1 }));
+		Assert.assertFalse(visited.add(0, new int[] { 1, 1, 1 }));
+
+		// neighbors differ in one rank, or in the dot node
+		Assert.assertTrue(visited.add(0, new int[] { 2, 1, 1 }));
+		Assert.assertTrue(visited.add(0, new int[] { 1, 2, 1 }));
+		Assert.assertTrue(visited.add(0, new int[] { 1, 1, 2 }));
+		Assert.assertTrue(visited.add(1, new int[] { 1, 1, 1 }));
+		Assert.assertFalse(visited.add(0, new int[] { 1, 2, 1 }));
+		Assert.assertFalse(visited.add(1, new int[] { 1, 1, 1 }));
+
+		// the largest values that are still packed
+		int max = maxPackedRank(3);
+		Assert.assertTrue(visited.add(65535, new int[] { max, max, max }));
+		Assert.assertFalse(visited.add(65535, new int[] { max, max, max }));
+	}
+
+	@Test
+	public void overflowDotIndex() {
+		VisitedStates visited = new VisitedStates();
+
+		Assert.assertTrue(visited.add(65536, new int[] { 1, 1 }));
+		Assert.assertFalse(visited.add(65536, new int[] { 1, 1 }));
+
+		// must not be confused with the state whose dot index wraps to 0 in the low bits
+		Assert.assertTrue(visited.add(0, new int[] { 1, 1 }));
+		Assert.assertTrue(visited.add(65537, new int[] { 1, 1 }));
+		Assert.assertFalse(visited.add(0, new int[] { 1, 1 }));
+	}
+
+	@Test
+	public void overflowRank() {
+		VisitedStates visited = new VisitedStates();
+		int max = maxPackedRank(2);
+
+		Assert.assertTrue(visited.add(3, new int[] { max + 1, 1 }));
+		Assert.assertFalse(visited.add(3, new int[] { max + 1, 1 }));
+		Assert.assertTrue(visited.add(3, new int[] { 1, max + 1 }));
+		Assert.assertFalse(visited.add(3, new int[] { 1, max + 1 }));
+
+		// the packed neighbors of an overflowing state are distinct from it
+		Assert.assertTrue(visited.add(3, new int[] { max, 1 }));
+		Assert.assertFalse(visited.add(3, new int[] { max, 1 }));
+		Assert.assertFalse(visited.add(3, new int[] { max + 1, 1 }));
+	}
+
+	@Test
+	public void overflowArity() {
+		VisitedStates visited = new VisitedStates();
+
+		// more ranks than bits: no state can be packed
+		int[] ranks = new int[49];
+		Arrays.fill(ranks, 1);
+		Assert.assertTrue(visited.add(2, ranks));
+		Assert.assertFalse(visited.add(2, ranks.clone()));
+
+		ranks[48] = 2;
+		Assert.assertTrue(visited.add(2, ranks));
+		Assert.assertFalse(visited.add(2, ranks.clone()));
+
+		// the overflow key is a copy, so changing the array afterwards does not change the set
+		ranks[48] = 3;
+		Assert.assertTrue(visited.add(2, ranks));
+	}
+
+	@Test
+	public void clear() {
+		VisitedStates visited = new VisitedStates();
+		int[] big = { maxPackedRank(2) + 1, 1 };
+
+		Assert.assertTrue(visited.add(0, new int[] { 1, 1 }));
+		Assert.assertTrue(visited.add(0, big));
+
+		visited.clear();
+
+		Assert.assertTrue(visited.add(0, new int[] { 1, 1 }));
+		Assert.assertTrue(visited.add(0, big));
+		Assert.assertFalse(visited.add(0, new int[] { 1, 1 }));
+		Assert.assertFalse(visited.add(0, big));
+	}
+
+	@Test
+	public void resize() {
+		VisitedStates visited = new VisitedStates();
+
+		for (int rule = 1; rule <= 100; rule++)
+			for (int ant = 1; ant <= 100; ant++)
+				Assert.assertTrue(visited.add(rule % 7, new int[] { rule, ant }));
+		for (int rule = 1; rule <= 100; rule++)
+			for (int ant = 1; ant <= 100; ant++)
+				Assert.assertFalse(visited.add(rule % 7, new int[] { rule, ant }));
+	}
+
+}
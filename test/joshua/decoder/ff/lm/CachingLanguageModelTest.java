@@ -0,0 +1,170 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.decoder.ff.lm;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for CachingLanguageModel.
+ */
+public class CachingLanguageModelTest {
+
+	/**
+	 * A trigram model that gives every n-gram a different log probability, and counts how often it
+	 * is asked.
+	 */
+	private static class CountingLM extends DefaultNGramLanguageModel {
+		int calls = 0;
+
+		CountingLM() {
+			super(3);
+		}
+
+		public double ngramLogProbability(int[] ngram, int order) {
+			calls++;
+			return logProb(ngram, 0, ngram.length);
+		}
+
+		static double logProb(int[] buffer, int offset, int length) {
+			double logProb = -length;
+			for (int i = 0; i < length; i++)
+				logProb -= (i + 1) * buffer[offset + i] / 1000.0;
+			return logProb;
+		}
+	}
+
+	@Test
+	public void hitsAndMisses() {
+		CountingLM lm = new CountingLM();
+		CachingLanguageModel cache = new CachingLanguageModel(lm, 1024);
+
+		int[] trigram = { 4, 5, 6 };
+		Assert.assertEquals(cache.ngramLogProbability(trigram), CountingLM.logProb(trigram, 0, 3));
+		Assert.assertEquals(cache.ngramLogProbability(trigram), CountingLM.logProb(trigram, 0, 3));
+		Assert.assertEquals(cache.getMisses(), 1);
+		Assert.assertEquals(cache.getHits(), 1);
+		Assert.assertEquals(lm.calls, 1);
+
+		// the same words at another offset, and a prefix of them, are different entries
+		int[] buffer = { 9, 4, 5, 6 };
+		Assert.assertEquals(cache.ngramLogProbability(buffer, 1, 3), CountingLM.logProb(trigram, 0, 3));
+		Assert.assertEquals(cache.ngramLogProbability(buffer, 1, 2), CountingLM.logProb(trigram, 0, 2));
+		Assert.assertEquals(cache.getHits(), 2);
+		Assert.assertEquals(cache.getMisses(), 2);
+		Assert.assertEquals(lm.calls, 2);
+	}
+
+	@Test
+	public void passThrough() {
+		CountingLM lm = new CountingLM();
+		CachingLanguageModel cache = new CachingLanguageModel(lm, 1024);
+
+		// longer than the model's order, and an order that isn't the n-gram's length
+		int[] fourgram = { 1, 2, 3, 4 };
+		int[] bigram = { 1, 2 };
+		for (int k = 0; k < 2; k++) {
+			cache.ngramLogProbability(fourgram, 0, 4);
+			cache.ngramLogProbability(bigram, 3);
+		}
+		Assert.assertEquals(lm.calls, 4);
+		Assert.assertEquals(cache.getHits() + cache.getMisses(), 0);
+
+		Assert.assertEquals(cache.getOrder(), 3);
+		Assert.assertSame(cache.getLanguageModel(), lm);
+	}
+
+	@Test
+	public void eviction() {
+		CountingLM lm = new CountingLM();
+		// four slots, all of which any n-gram may probe
+		CachingLanguageModel cache = new CachingLanguageModel(lm, 4);
+
+		int[][] ngrams = { { 1, 2, 3 }, { 2, 3, 4 }, { 3, 4, 5 }, { 4, 5, 6 }, { 5, 6, 7 } };
+		for (int n = 0; n < 4; n++)
+			cache.ngramLogProbability(ngrams[n]);
+		for (int n = 0; n < 4; n++)
+			Assert.assertEquals(cache.ngramLogProbability(ngrams[n]),
+					CountingLM.logProb(ngrams[n], 0, 3));
+		Assert.assertEquals(cache.getMisses(), 4);
+		Assert.assertEquals(cache.getHits(), 4);
+
+		// a full table: the fifth n-gram replaces one of the others
+		cache.ngramLogProbability(ngrams[4]);
+		Assert.assertEquals(cache.ngramLogProbability(ngrams[4]), CountingLM.logProb(ngrams[4], 0, 3));
+		Assert.assertEquals(cache.getMisses(), 5);
+		Assert.assertEquals(cache.getHits(), 5);
+
+		int misses = 0;
+		for (int n = 0; n < 4; n++) {
+			long before = cache.getMisses();
+			Assert.assertEquals(cache.ngramLogProbability(ngrams[n]),
+					CountingLM.logProb(ngrams[n], 0, 3));
+			misses += cache.getMisses() - before;
+		}
+		Assert.assertTrue(misses >= 1);
+		Assert.assertEquals(lm.calls, cache.getMisses());
+	}
+
+	@Test
+	public void collisions() {
+		Random random = new Random(11);
+		CountingLM lm = new CountingLM();
+		// far fewer slots than n-grams, so that they collide all the time
+		CachingLanguageModel cache = new CachingLanguageModel(lm, 16);
+
+		int[] buffer = new int[8];
+		for (int k = 0; k < 20000; k++) {
+			int length = 1 + random.nextInt(3);
+			int offset = random.nextInt(buffer.length - length + 1);
+			for (int i = 0; i < buffer.length; i++)
+				buffer[i] = random.nextInt(4);
+
+			Assert.assertEquals(cache.ngramLogProbability(buffer, offset, length),
+					CountingLM.logProb(buffer, offset, length));
+		}
+		Assert.assertEquals(cache.getHits() + cache.getMisses(), 20000);
+		Assert.assertEquals(lm.calls, cache.getMisses());
+		Assert.assertTrue(cache.getHits() > 0);
+	}
+
+	@Test
+	public void perThread() throws InterruptedException {
+		final CountingLM lm = new CountingLM();
+		final CachingLanguageModel cache = new CachingLanguageModel(lm, 1024);
+		final int[] trigram = { 7, 8, 9 };
+
+		cache.ngramLogProbability(trigram);
+
+		// another thread has its own cache, so it misses too
+		Thread thread = new Thread() {
+			public void run() {
+				cache.ngramLogProbability(trigram);
+				cache.ngramLogProbability(trigram);
+			}
+		};
+		thread.start();
+		thread.join();
+
+		Assert.assertEquals(cache.getMisses(), 2);
+		Assert.assertEquals(cache.getHits(), 1);
+		Assert.assertEquals(lm.calls, 2);
+	}
+
+}
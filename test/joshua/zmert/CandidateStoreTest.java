@@ -0,0 +1,158 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.zmert;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for CandidateStore.
+ */
+public class CandidateStoreTest {
+
+	private static final int NUM_PARAMS = 3;
+	private static final int SUFF_STATS_COUNT = 2;
+
+	/** Candidates of three sentences; the second has none. */
+	private static final String[][] CANDIDATES = {
+		{ "the house", "a house", "the home" },
+		{ },
+		{ "das Haus ist klein", "" },
+	};
+
+	private static double[] featVal(int i, int n) {
+		// feature values are 1-indexed
+		return new double[] { 0.0, i + 0.5, -n / 3.0, i * 100 + n };
+	}
+
+	private static int[] stats(int i, int n) {
+		return new int[] { i, 10 * n + 1 };
+	}
+
+	private static String feats(int i, int n) {
+		return i + " " + n + " " + (i + n);
+	}
+
+	private static File write(boolean withText) throws IOException {
+		File file = File.createTempFile("cands", null);
+		file.deleteOnExit();
+
+		CandidateStore.Writer writer = new CandidateStore.Writer(file.getPath(), CANDIDATES.length,
+				NUM_PARAMS, SUFF_STATS_COUNT, withText);
+		for (int i = 0; i < CANDIDATES.length; i++) {
+			for (int n = 0; n < CANDIDATES[i].length; n++) {
+				String candidate = CANDIDATES[i][n];
+				if (withText)
+					writer.add(CandidateStore.id(candidate), featVal(i, n), stats(i, n), candidate, feats(i, n));
+				else
+					writer.add(CandidateStore.id(candidate), featVal(i, n), stats(i, n));
+			}
+			writer.endSentence();
+		}
+		writer.close();
+
+		return file;
+	}
+
+	private static void check(CandidateStore store, boolean withText) {
+		double[] featVal = new double[NUM_PARAMS + 1];
+		int[] stats = new int[SUFF_STATS_COUNT];
+
+		for (int i = 0; i < CANDIDATES.length; i++) {
+			Assert.assertEquals(store.count(i), CANDIDATES[i].length);
+			for (int n = 0; n < CANDIDATES[i].length; n++) {
+				Assert.assertEquals(store.id(i, n), CandidateStore.id(CANDIDATES[i][n]));
+
+				store.features(i, n, featVal);
+				for (int c = 1; c <= NUM_PARAMS; c++)
+					Assert.assertEquals(featVal[c], featVal(i, n)[c]);
+
+				store.suffStats(i, n, stats);
+				Assert.assertTrue(Arrays.equals(stats, stats(i, n)));
+
+				if (withText) {
+					Assert.assertEquals(store.candidate(i, n), CANDIDATES[i][n]);
+					Assert.assertEquals(store.featureString(i, n), feats(i, n));
+				} else {
+					Assert.assertNull(store.candidate(i, n));
+					Assert.assertNull(store.featureString(i, n));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void withoutText() throws IOException {
+		check(CandidateStore.open(write(false).getPath()), false);
+	}
+
+	@Test
+	public void withText() throws IOException {
+		check(CandidateStore.open(write(true).getPath()), true);
+	}
+
+	@Test
+	public void noCandidates() throws IOException {
+		File file = File.createTempFile("cands", null);
+		file.deleteOnExit();
+
+		CandidateStore.Writer writer = new CandidateStore.Writer(file.getPath(), 2, NUM_PARAMS,
+				SUFF_STATS_COUNT, true);
+		writer.endSentence();
+		writer.endSentence();
+		writer.close();
+
+		CandidateStore store = CandidateStore.open(file.getPath());
+		Assert.assertEquals(store.count(0), 0);
+		Assert.assertEquals(store.count(1), 0);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void closeBeforeLastSentence() throws IOException {
+		File file = File.createTempFile("cands", null);
+		file.deleteOnExit();
+
+		CandidateStore.Writer writer = new CandidateStore.Writer(file.getPath(), 2, NUM_PARAMS,
+				SUFF_STATS_COUNT);
+		writer.endSentence();
+		writer.close();
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void notAStore() throws IOException {
+		File file = File.createTempFile("cands", null);
+		file.deleteOnExit();
+
+		FileWriter out = new FileWriter(file);
+		out.write("0 ||| the house ||| 1 2 3\n0 ||| a house ||| 1 2 3\n");
+		out.close();
+
+		CandidateStore.open(file.getPath());
+	}
+
+	@Test
+	public void id() {
+		Assert.assertEquals(CandidateStore.id("the house"), CandidateStore.id(new String("the house")));
+		Assert.assertFalse(CandidateStore.id("the house") == CandidateStore.id("a house"));
+	}
+
+}
@@ -0,0 +1,206 @@
+/* This file is part of the Joshua Machine Translation System.
+ *
+ * Joshua is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package joshua.zmert;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for Thresholds, which are checked against the map of maps that IntermediateOptimizer
+ * used to keep the thresholds of a parameter in.
+ */
+public class ThresholdsTest {
+
+	/**
+	 * The thresholds as IntermediateOptimizer used to build them: for each point, a map from each
+	 * sentence whose 1-best changes there to its {old_k, new_k}, along with the candidates of
+	 * interest.
+	 */
+	private static class Reference {
+		final TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll =
+				new TreeMap<Double, TreeMap<Integer, int[]>>();
+		final TreeSet<Integer>[] indicesOfInterest;
+
+		private int sentence = -1;
+		private int last_new_k = -1;
+
+		Reference(int numSentences) {
+			indicesOfInterest = newIndices(numSentences);
+		}
+
+		void add(double point, int i, int oldK, int newK) {
+			if (i != sentence) endSentence();
+			sentence = i;
+
+			int[] th_info = { oldK, newK };
+			last_new_k = newK;
+			indicesOfInterest[i].add(oldK);
+
+			if (!thresholdsAll.containsKey(point)) {
+				TreeMap<Integer, int[]> A = new TreeMap<Integer, int[]>();
+				A.put(i, th_info);
+				thresholdsAll.put(point, A);
+			} else {
+				TreeMap<Integer, int[]> A = thresholdsAll.get(point);
+				if (!A.containsKey(i)) {
+					A.put(i, th_info);
+				} else {
+					int[] old_th_info = A.get(i);
+					old_th_info[1] = th_info[1];
+					A.put(i, th_info);
+				}
+			}
+		}
+
+		void endSentence() {
+			if (last_new_k != -1) indicesOfInterest[sentence].add(last_new_k);
+			last_new_k = -1;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static TreeSet<Integer>[] newIndices(int numSentences) {
+		TreeSet<Integer>[] indices = new TreeSet[numSentences];
+		for (int i = 0; i < numSentences; i++)
+			indices[i] = new TreeSet<Integer>();
+		return indices;
+	}
+
+	private static void assertSame(Thresholds thresholds, Reference reference, int numSentences) {
+		reference.endSentence();
+
+		Assert.assertEquals(thresholds.size(), reference.thresholdsAll.size());
+		int t = 0;
+		for (Map.Entry<Double, TreeMap<Integer, int[]>> entry : reference.thresholdsAll.entrySet()) {
+			Assert.assertEquals(Double.compare(thresholds.point(t), entry.getKey()), 0);
+
+			int s = thresholds.firstSwitch(t);
+			for (Map.Entry<Integer, int[]> th_info : entry.getValue().entrySet()) {
+				Assert.assertTrue(s < thresholds.firstSwitch(t + 1));
+				Assert.assertEquals(thresholds.sentence(s), (int) th_info.getKey());
+				Assert.assertEquals(thresholds.candidate(s), th_info.getValue()[1]);
+				++s;
+			}
+			Assert.assertEquals(s, thresholds.firstSwitch(t + 1));
+			++t;
+		}
+
+		TreeSet<Integer>[] indicesOfInterest = newIndices(numSentences);
+		thresholds.addCandidatesOfInterest(indicesOfInterest);
+		for (int i = 0; i < numSentences; i++)
+			Assert.assertEquals(indicesOfInterest[i], reference.indicesOfInterest[i]);
+	}
+
+	@Test
+	public void empty() {
+		Thresholds thresholds = new Thresholds();
+		thresholds.sort();
+		thresholds.setEnd(1.0);
+
+		Assert.assertEquals(thresholds.size(), 0);
+		Assert.assertEquals(thresholds.firstSwitch(0), 0);
+		Assert.assertEquals(thresholds.point(0), 1.0);
+	}
+
+	@Test
+	public void repeatedPoint() {
+		Thresholds thresholds = new Thresholds();
+		Reference reference = new Reference(3);
+
+		double[] points = { -1.0, 0.5, 0.5, 0.5, 2.0 };
+		int[][] switches = {
+			// sentence 0 switches from 3 to 5 and then from 5 to 7 at the same point, then to 2
+			{ 0, 1, 3, 0 }, { 0, 1, 3, 5 }, { 0, 2, 5, 7 }, { 0, 4, 7, 2 },
+			// sentence 1 switches at the same point as sentence 0, and at one of its own
+			{ 1, 0, 0, 4 }, { 1, 1, 4, 1 },
+			// sentence 2 switches three times at the same point
+			{ 2, 1, 6, 8 }, { 2, 2, 8, 9 }, { 2, 3, 9, 0 },
+		};
+		for (int[] sw : switches) {
+			thresholds.add(points[sw[1]], sw[0], sw[2], sw[3]);
+			reference.add(points[sw[1]], sw[0], sw[2], sw[3]);
+		}
+		thresholds.sort();
+
+		assertSame(thresholds, reference, 3);
+
+		// the switches at 0.5 are grouped, in order of sentence, each with its last new candidate
+		Assert.assertEquals(thresholds.size(), 3);
+		Assert.assertEquals(thresholds.point(1), 0.5);
+		int s = thresholds.firstSwitch(1);
+		Assert.assertEquals(thresholds.firstSwitch(2) - s, 3);
+		Assert.assertEquals(thresholds.sentence(s), 0);
+		Assert.assertEquals(thresholds.candidate(s), 7);
+		Assert.assertEquals(thresholds.sentence(s + 1), 1);
+		Assert.assertEquals(thresholds.candidate(s + 1), 1);
+		Assert.assertEquals(thresholds.sentence(s + 2), 2);
+		Assert.assertEquals(thresholds.candidate(s + 2), 0);
+	}
+
+	@Test
+	public void signedZero() {
+		// the map told -0.0 and 0.0 apart, so the thresholds must too
+		Thresholds thresholds = new Thresholds();
+		Reference reference = new Reference(2);
+
+		thresholds.add(0.0, 0, 1, 2);
+		reference.add(0.0, 0, 1, 2);
+		thresholds.add(-0.0, 1, 3, 4);
+		reference.add(-0.0, 1, 3, 4);
+		thresholds.sort();
+
+		assertSame(thresholds, reference, 2);
+		Assert.assertEquals(thresholds.size(), 2);
+	}
+
+	@Test
+	public void random() {
+		Random random = new Random(17);
+		Thresholds thresholds = new Thresholds();
+
+		for (int run = 0; run < 50; run++) {
+			int numSentences = 1 + random.nextInt(40);
+			Reference reference = new Reference(numSentences);
+
+			// reused, as the line search does
+			thresholds.clear();
+			for (int i = 0; i < numSentences; i++) {
+				// the switches of a sentence come in order of their points, from a coarse grid so that
+				// many of them coincide
+				int switches = random.nextInt(6);
+				int point = random.nextInt(5) - 10;
+				int k = random.nextInt(10);
+				for (int n = 0; n < switches; n++) {
+					point += random.nextInt(3);
+					int newK = random.nextInt(10);
+					thresholds.add(point / 4.0, i, k, newK);
+					reference.add(point / 4.0, i, k, newK);
+					k = newK;
+				}
+			}
+			thresholds.sort();
+
+			assertSame(thresholds, reference, numSentences);
+		}
+	}
+
+}